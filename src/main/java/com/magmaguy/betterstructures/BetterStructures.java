@@ -1,5 +1,8 @@
 package com.magmaguy.betterstructures;
 
+import com.magmaguy.betterstructures.buildingfitter.ChunkScanQueue;
+import com.magmaguy.betterstructures.buildingfitter.PlacementPipeline;
+import com.magmaguy.betterstructures.buildingfitter.util.SchematicPicker;
 import com.magmaguy.betterstructures.commands.*;
 import com.magmaguy.betterstructures.config.DefaultConfig;
 import com.magmaguy.betterstructures.config.ValidWorldsConfig;
@@ -16,8 +19,15 @@ import com.magmaguy.betterstructures.listeners.FirstTimeSetupWarner;
 import com.magmaguy.betterstructures.listeners.NewChunkLoadEvent;
 import com.magmaguy.betterstructures.modules.ModulesContainer;
 import com.magmaguy.betterstructures.modules.WFCGenerator;
+import com.magmaguy.betterstructures.placement.FootprintIndex;
+import com.magmaguy.betterstructures.placement.Pregenerator;
+import com.magmaguy.betterstructures.placement.RetroGenerator;
+import com.magmaguy.betterstructures.placement.StructureRegistry;
 import com.magmaguy.betterstructures.schematics.SchematicContainer;
 import com.magmaguy.betterstructures.thirdparty.WorldGuard;
+import com.magmaguy.betterstructures.util.distributedload.TickBudget;
+import com.magmaguy.betterstructures.util.distributedload.TickMonitor;
+import com.magmaguy.betterstructures.worldedit.PasteScheduler;
 import com.magmaguy.easyminecraftgoals.NMSManager;
 import com.magmaguy.magmacore.MagmaCore;
 import com.magmaguy.magmacore.command.CommandManager;
@@ -57,12 +67,22 @@ public final class BetterStructures extends JavaPlugin {
         new ModuleGeneratorsConfig();
         new SpawnPoolsConfig();
         new SchematicConfig();
+        PlacementPipeline.warnOversizedSchematics();
         new ModulesConfig();
         new ContentPackageConfig();
         ComponentsConfigFolder.initialize();
+        TickMonitor.start();
+        PasteScheduler.start();
+        NewChunkLoadEvent.start();
+        ChunkScanQueue.start();
+        //Worlds might not be loaded yet while enabling
+        Bukkit.getScheduler().runTask(this, Pregenerator::resume);
         CommandManager commandManager = new CommandManager(this, "betterstructures");
         commandManager.registerCommand(new LootifyCommand());
         commandManager.registerCommand(new PlaceCommand());
+        commandManager.registerCommand(new LocateCommand());
+        commandManager.registerCommand(new PregenCommand());
+        commandManager.registerCommand(new RetroGenCommand());
         commandManager.registerCommand(new ReloadCommand());
         commandManager.registerCommand(new SilentCommand());
         commandManager.registerCommand(new TeleportCommand());
@@ -97,7 +117,18 @@ public final class BetterStructures extends JavaPlugin {
     @Override
     public void onDisable() {
         // Plugin shutdown logic
+        Pregenerator.shutdown();
+        RetroGenerator.shutdown();
+        ChunkScanQueue.shutdown();
+        TickMonitor.shutdown();
+        TickBudget.shutdown();
+        PasteScheduler.shutdown();
+        PlacementPipeline.shutdown();
+        FootprintIndex.shutdown();
+        StructureRegistry.shutdown();
+        NewChunkLoadEvent.shutdown();
         SchematicContainer.shutdown();
+        SchematicPicker.shutdown();
         Bukkit.getServer().getScheduler().cancelTasks(MetadataHandler.PLUGIN);
         MagmaCore.shutdown();
         HandlerList.unregisterAll(MetadataHandler.PLUGIN);
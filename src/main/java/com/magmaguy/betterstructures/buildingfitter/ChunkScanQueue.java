@@ -0,0 +1,467 @@
+package com.magmaguy.betterstructures.buildingfitter;
+
+import com.magmaguy.betterstructures.MetadataHandler;
+import com.magmaguy.betterstructures.buildingfitter.util.ChunkSnapshotRegion;
+import com.magmaguy.betterstructures.config.DefaultConfig;
+import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
+import com.magmaguy.betterstructures.util.ChunkKey;
+import com.magmaguy.betterstructures.util.distributedload.TickMonitor;
+import com.magmaguy.magmacore.util.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Bounded queue of chunks waiting for the main thread stage of the {@link PlacementPipeline}.
+ * <p>
+ * Chunks are drained within a per-tick millisecond budget and not at all while ticks are already running over the
+ * configured ceiling. Once the queue is full, new chunks either go to a backlog that is saved between restarts, or
+ * push out the lowest priority structure types that are already queued.
+ * <p>
+ * Chunks whose footprint isn't fully loaded yet are set aside until the chunks around them load, so that capturing them
+ * never loads chunks on the main thread. They stay set aside until then and only go to the backlog on shutdown.
+ */
+public class ChunkScanQueue {
+    //Highest priority first, surface builds are the ones players notice
+    private static final List<GeneratorConfigFields.StructureType> PRIORITY = List.of(
+            GeneratorConfigFields.StructureType.SURFACE,
+            GeneratorConfigFields.StructureType.SKY,
+            GeneratorConfigFields.StructureType.LIQUID_SURFACE,
+            GeneratorConfigFields.StructureType.UNDERGROUND_SHALLOW,
+            GeneratorConfigFields.StructureType.UNDERGROUND_DEEP);
+    private static final String BACKLOG_FILENAME = "scan_backlog.bin";
+    //Weight of the newest submit in the smoothed cost of a submit
+    private static final double COST_SMOOTHING = 0.2;
+    //Queued entries in order, entries stripped of every structure type stay in it as removed until they are polled
+    private static final ArrayDeque<ScanEntry> QUEUE = new ArrayDeque<>();
+    private static final Map<UUID, Map<Long, ScanEntry>> QUEUED_CHUNKS = new HashMap<>();
+    //Queued entries by lowest priority structure type then newest first, only kept under DROP_LOWEST_PRIORITY. Stale
+    //nodes are skipped when they come up and purged once they outnumber the queued entries
+    private static final PriorityQueue<EvictionNode> EVICTION_CANDIDATES = new PriorityQueue<>();
+    private static final LinkedHashMap<BacklogKey, ScanEntry> BACKLOG = new LinkedHashMap<>();
+    //Chunks waiting for their footprint to load, oldest first, as many as the backlog can hold
+    private static final Map<UUID, LinkedHashMap<Long, ScanEntry>> DEFERRED = new HashMap<>();
+    private static int queuedCount = 0;
+    private static int deferredSize = 0;
+    private static long sequence = 0;
+    private static boolean warnedBacklogFull = false;
+    private static boolean warnedDeferredFull = false;
+    //Unused budget carries over to the next tick up to one tick's worth, overruns are paid back by the next ticks
+    private static long budgetBalanceNanos = 0;
+    private static long averageSubmitNanos = 0;
+    private static BukkitTask task = null;
+
+    private ChunkScanQueue() {
+    }
+
+    public static void start() {
+        if (task != null) return;
+        loadBacklog();
+        task = new BukkitRunnable() {
+            @Override
+            public void run() {
+                process();
+            }
+        }.runTaskTimer(MetadataHandler.PLUGIN, 1, 1);
+    }
+
+    public static void shutdown() {
+        if (task != null) task.cancel();
+        task = null;
+        //Whatever didn't get scanned is kept for the next start, queued chunks go first
+        LinkedHashMap<BacklogKey, ScanEntry> remaining = new LinkedHashMap<>();
+        for (ScanEntry entry : QUEUE)
+            if (!entry.removed) remaining.put(new BacklogKey(entry), entry);
+        remaining.putAll(BACKLOG);
+        for (Map<Long, ScanEntry> deferred : DEFERRED.values())
+            for (ScanEntry entry : deferred.values()) remaining.putIfAbsent(new BacklogKey(entry), entry);
+        BACKLOG.clear();
+        for (ScanEntry entry : remaining.values()) addToBacklog(entry);
+        saveBacklog();
+        QUEUE.clear();
+        QUEUED_CHUNKS.clear();
+        EVICTION_CANDIDATES.clear();
+        BACKLOG.clear();
+        DEFERRED.clear();
+        queuedCount = 0;
+        deferredSize = 0;
+        warnedBacklogFull = false;
+        warnedDeferredFull = false;
+        budgetBalanceNanos = 0;
+        averageSubmitNanos = 0;
+    }
+
+    /**
+     * Queues a chunk for structure placement. Must be called from the main thread.
+     *
+     * @param world          World of the chunk
+     * @param chunkX         Chunk X coordinate
+     * @param chunkZ         Chunk Z coordinate
+     * @param structureTypes Structure types whose grid position matched the chunk
+     */
+    public static void enqueue(World world, int chunkX, int chunkZ, List<GeneratorConfigFields.StructureType> structureTypes) {
+        int typeMask = 0;
+        for (GeneratorConfigFields.StructureType structureType : structureTypes)
+            typeMask |= 1 << structureType.ordinal();
+        if (typeMask == 0) return;
+
+        Map<Long, ScanEntry> worldQueue = QUEUED_CHUNKS.computeIfAbsent(world.getUID(), uuid -> new HashMap<>());
+        long key = ChunkKey.pack(chunkX, chunkZ);
+        ScanEntry queued = worldQueue.get(key);
+        if (queued != null) {
+            queued.typeMask |= typeMask;
+            trackEviction(queued);
+            return;
+        }
+        if (DEFERRED.containsKey(world.getUID())) queued = DEFERRED.get(world.getUID()).get(key);
+        if (queued == null) queued = BACKLOG.get(new BacklogKey(world.getUID(), key));
+        if (queued != null) {
+            queued.typeMask |= typeMask;
+            return;
+        }
+
+        ScanEntry entry = new ScanEntry(world.getUID(), chunkX, chunkZ, typeMask);
+        if (queuedCount >= DefaultConfig.getChunkScanQueueMaxDepth()) {
+            if (DefaultConfig.getChunkScanOverflowPolicy() == OverflowPolicy.DEFER) {
+                addToBacklog(entry);
+                return;
+            }
+            if (!makeRoom(entry)) return;
+        }
+        addToQueue(entry);
+    }
+
+    private static void addToQueue(ScanEntry entry) {
+        entry.removed = false;
+        entry.sequence = sequence++;
+        QUEUE.add(entry);
+        QUEUED_CHUNKS.computeIfAbsent(entry.worldUUID, uuid -> new HashMap<>()).put(ChunkKey.pack(entry.chunkX, entry.chunkZ), entry);
+        queuedCount++;
+        trackEviction(entry);
+    }
+
+    /**
+     * Pushes the current lowest priority structure type of a queued entry on the eviction heap. Older nodes of the
+     * entry become stale. Does nothing unless queued structure types can get dropped.
+     */
+    private static void trackEviction(ScanEntry entry) {
+        entry.version++;
+        if (DefaultConfig.getChunkScanOverflowPolicy() != OverflowPolicy.DROP_LOWEST_PRIORITY) return;
+        EVICTION_CANDIDATES.add(new EvictionNode(entry, lowestPriorityType(entry.typeMask), entry.sequence, entry.version));
+    }
+
+    /**
+     * @return The queued entry with the lowest priority structure type, newest first, or null if the queue is empty
+     */
+    private static EvictionNode peekEvictionCandidate() {
+        //The policy was switched to DROP_LOWEST_PRIORITY by a reload while chunks were queued
+        if (EVICTION_CANDIDATES.isEmpty() && queuedCount > 0) rebuildEvictionCandidates();
+        EvictionNode node;
+        while ((node = EVICTION_CANDIDATES.peek()) != null && isStale(node))
+            EVICTION_CANDIDATES.poll();
+        return node;
+    }
+
+    private static boolean isStale(EvictionNode node) {
+        return node.entry.removed || node.version != node.entry.version;
+    }
+
+    private static void rebuildEvictionCandidates() {
+        EVICTION_CANDIDATES.clear();
+        for (ScanEntry entry : QUEUE)
+            if (!entry.removed) trackEviction(entry);
+    }
+
+    /**
+     * Drops the eviction heap once most of it is stale, so that it doesn't keep processed entries around.
+     */
+    private static void purgeEvictionCandidates() {
+        if (DefaultConfig.getChunkScanOverflowPolicy() != OverflowPolicy.DROP_LOWEST_PRIORITY) {
+            EVICTION_CANDIDATES.clear();
+            return;
+        }
+        if (EVICTION_CANDIDATES.size() > 2 * queuedCount + 64) EVICTION_CANDIDATES.removeIf(ChunkScanQueue::isStale);
+    }
+
+    /**
+     * Strips the lowest priority structure types out of the queue, or out of the incoming entry, until something gives.
+     *
+     * @return True if the incoming entry still has structure types left to queue
+     */
+    private static boolean makeRoom(ScanEntry incoming) {
+        while (queuedCount >= DefaultConfig.getChunkScanQueueMaxDepth()) {
+            EvictionNode candidate = peekEvictionCandidate();
+            int lowest = lowestPriorityType(incoming.typeMask);
+            if (candidate != null) lowest = Math.max(lowest, candidate.priority);
+            int bit = 1 << PRIORITY.get(lowest).ordinal();
+
+            if ((incoming.typeMask & bit) != 0 || candidate == null) {
+                incoming.typeMask &= ~bit;
+                if (incoming.typeMask == 0) return false;
+                continue;
+            }
+
+            ScanEntry queued = candidate.entry;
+            queued.typeMask &= ~bit;
+            if (queued.typeMask == 0) remove(queued);
+            else trackEviction(queued);
+        }
+        return true;
+    }
+
+    private static void remove(ScanEntry entry) {
+        entry.removed = true;
+        queuedCount--;
+        forget(entry);
+        if (queuedCount == 0) EVICTION_CANDIDATES.clear();
+    }
+
+    private static int lowestPriorityType(int typeMask) {
+        for (int i = PRIORITY.size() - 1; i >= 0; i--)
+            if ((typeMask & (1 << PRIORITY.get(i).ordinal())) != 0) return i;
+        return 0;
+    }
+
+    private static void forget(ScanEntry entry) {
+        Map<Long, ScanEntry> worldQueue = QUEUED_CHUNKS.get(entry.worldUUID);
+        if (worldQueue != null) worldQueue.remove(ChunkKey.pack(entry.chunkX, entry.chunkZ));
+    }
+
+    /**
+     * Adds an entry to the backlog, merging it with the one already there for the same chunk.
+     *
+     * @return False if the backlog is full and the entry was dropped
+     */
+    private static boolean addToBacklog(ScanEntry entry) {
+        BacklogKey key = new BacklogKey(entry);
+        ScanEntry existing = BACKLOG.get(key);
+        if (existing != null) {
+            existing.typeMask |= entry.typeMask;
+            return true;
+        }
+        if (BACKLOG.size() >= DefaultConfig.getChunkScanBacklogMaxSize()) {
+            if (!warnedBacklogFull) {
+                Logger.warn("The chunk scan backlog is full, new chunks will not get structures until it drains!");
+                warnedBacklogFull = true;
+            }
+            return false;
+        }
+        warnedBacklogFull = false;
+        BACKLOG.put(key, entry);
+        return true;
+    }
+
+    private static ScanEntry pollBacklog() {
+        Iterator<ScanEntry> iterator = BACKLOG.values().iterator();
+        ScanEntry entry = iterator.next();
+        iterator.remove();
+        return entry;
+    }
+
+    /**
+     * Sends the deferred chunks around a chunk that just loaded back to the queue once their whole footprint is loaded.
+     * Must be called from the main thread.
+     */
+    public static void onChunkLoad(World world, int chunkX, int chunkZ) {
+        Map<Long, ScanEntry> deferred = DEFERRED.get(world.getUID());
+        if (deferred == null || deferred.isEmpty()) return;
+        int radius = PlacementPipeline.MAX_CAPTURE_RADIUS;
+        for (int dx = -radius; dx <= radius; dx++)
+            for (int dz = -radius; dz <= radius; dz++) {
+                long key = ChunkKey.pack(chunkX + dx, chunkZ + dz);
+                ScanEntry entry = deferred.get(key);
+                if (entry == null || !isFootprintLoaded(world, entry, getStructureTypes(entry))) continue;
+                deferred.remove(key);
+                deferredSize--;
+                if (queuedCount < DefaultConfig.getChunkScanQueueMaxDepth()) requeue(entry);
+                else addToBacklog(entry);
+            }
+    }
+
+    private static void requeue(ScanEntry entry) {
+        Map<Long, ScanEntry> worldQueue = QUEUED_CHUNKS.get(entry.worldUUID);
+        ScanEntry queued = worldQueue == null ? null : worldQueue.get(ChunkKey.pack(entry.chunkX, entry.chunkZ));
+        if (queued != null) {
+            queued.typeMask |= entry.typeMask;
+            trackEviction(queued);
+        } else addToQueue(entry);
+    }
+
+    /**
+     * Sets a chunk aside until the chunks around it load. Deferred chunks only leave when that happens, sending them
+     * to the backlog would bring them straight back to the queue. Past the size of the backlog, the oldest one of the
+     * world is dropped.
+     */
+    private static void defer(ScanEntry entry) {
+        LinkedHashMap<Long, ScanEntry> deferred = DEFERRED.computeIfAbsent(entry.worldUUID, uuid -> new LinkedHashMap<>());
+        ScanEntry existing = deferred.putIfAbsent(ChunkKey.pack(entry.chunkX, entry.chunkZ), entry);
+        if (existing != null) {
+            existing.typeMask |= entry.typeMask;
+            return;
+        }
+        deferredSize++;
+        if (deferredSize <= DefaultConfig.getChunkScanBacklogMaxSize()) return;
+        Iterator<ScanEntry> oldest = deferred.values().iterator();
+        oldest.next();
+        oldest.remove();
+        deferredSize--;
+        if (!warnedDeferredFull) {
+            Logger.warn("Too many chunks are waiting for the chunks around them to load, the oldest ones will not get structures!");
+            warnedDeferredFull = true;
+        }
+    }
+
+    private static List<GeneratorConfigFields.StructureType> getStructureTypes(ScanEntry entry) {
+        List<GeneratorConfigFields.StructureType> structureTypes = new ArrayList<>(PRIORITY.size());
+        for (GeneratorConfigFields.StructureType structureType : PRIORITY)
+            if ((entry.typeMask & (1 << structureType.ordinal())) != 0) structureTypes.add(structureType);
+        return structureTypes;
+    }
+
+    private static boolean isFootprintLoaded(World world, ScanEntry entry, List<GeneratorConfigFields.StructureType> structureTypes) {
+        return ChunkSnapshotRegion.isFootprintLoaded(world, entry.chunkX, entry.chunkZ, PlacementPipeline.getCaptureRadius(structureTypes));
+    }
+
+    /**
+     * Moves up to maxDepth / 2 backlog entries per tick towards the queue. The ones whose footprint isn't loaded go
+     * straight to the deferred chunks instead of taking a spot in the queue.
+     */
+    private static void drainBacklog(int maxDepth) {
+        for (int moved = 0; moved < maxDepth / 2 && !BACKLOG.isEmpty() && queuedCount < maxDepth / 2; moved++) {
+            ScanEntry entry = pollBacklog();
+            World world = Bukkit.getWorld(entry.worldUUID);
+            if (world == null) continue;
+            if (isFootprintLoaded(world, entry, getStructureTypes(entry))) requeue(entry);
+            else defer(entry);
+        }
+    }
+
+    private static void process() {
+        purgeEvictionCandidates();
+        if (TickMonitor.getLastTickMillis() > DefaultConfig.getChunkScanMsptCeiling()) return;
+
+        int maxDepth = DefaultConfig.getChunkScanQueueMaxDepth();
+        drainBacklog(maxDepth);
+
+        long tickBudgetNanos = (long) (DefaultConfig.getChunkScanMillisecondsPerTick() * 1_000_000L);
+        budgetBalanceNanos = Math.min(tickBudgetNanos, budgetBalanceNanos + tickBudgetNanos);
+        //A submit captures up to 81 chunk snapshots, so it only starts if its usual cost still fits, or if it has the
+        //whole budget of a tick to itself so that submits costlier than a tick still get through
+        while (queuedCount > 0 && budgetBalanceNanos > 0 &&
+                (budgetBalanceNanos >= averageSubmitNanos || budgetBalanceNanos >= tickBudgetNanos)) {
+            ScanEntry entry = QUEUE.poll();
+            if (entry.removed) continue;
+            remove(entry);
+            long start = System.nanoTime();
+            World world = Bukkit.getWorld(entry.worldUUID);
+            if (world == null) continue;
+            List<GeneratorConfigFields.StructureType> structureTypes = getStructureTypes(entry);
+            //Also catches anchors that were unloaded after being queued
+            if (!isFootprintLoaded(world, entry, structureTypes)) {
+                defer(entry);
+                budgetBalanceNanos -= System.nanoTime() - start;
+                continue;
+            }
+            PlacementPipeline.submit(world.getChunkAt(entry.chunkX, entry.chunkZ), structureTypes);
+            long cost = System.nanoTime() - start;
+            budgetBalanceNanos -= cost;
+            averageSubmitNanos = averageSubmitNanos == 0 ? cost : averageSubmitNanos + (long) ((cost - averageSubmitNanos) * COST_SMOOTHING);
+        }
+    }
+
+    public static int getQueueSize() {
+        return queuedCount;
+    }
+
+    public static int getBacklogSize() {
+        return BACKLOG.size();
+    }
+
+    public static int getDeferredSize() {
+        return deferredSize;
+    }
+
+    private static File getBacklogFile() {
+        return new File(MetadataHandler.PLUGIN.getDataFolder(), BACKLOG_FILENAME);
+    }
+
+    private static void saveBacklog() {
+        File file = getBacklogFile();
+        if (BACKLOG.isEmpty()) {
+            if (file.exists()) file.delete();
+            return;
+        }
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            outputStream.writeInt(BACKLOG.size());
+            for (ScanEntry entry : BACKLOG.values()) {
+                outputStream.writeLong(entry.worldUUID.getMostSignificantBits());
+                outputStream.writeLong(entry.worldUUID.getLeastSignificantBits());
+                outputStream.writeInt(entry.chunkX);
+                outputStream.writeInt(entry.chunkZ);
+                outputStream.writeInt(entry.typeMask);
+            }
+        } catch (IOException exception) {
+            Logger.warn("Failed to save the chunk scan backlog! " + BACKLOG.size() + " chunks will not get structures.");
+            exception.printStackTrace();
+        }
+    }
+
+    private static void loadBacklog() {
+        File file = getBacklogFile();
+        if (!file.exists()) return;
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int size = inputStream.readInt();
+            for (int i = 0; i < size; i++)
+                addToBacklog(new ScanEntry(
+                        new UUID(inputStream.readLong(), inputStream.readLong()),
+                        inputStream.readInt(),
+                        inputStream.readInt(),
+                        inputStream.readInt()));
+        } catch (IOException exception) {
+            Logger.warn("Failed to read the chunk scan backlog, it will be discarded.");
+            exception.printStackTrace();
+        }
+        file.delete();
+    }
+
+    public enum OverflowPolicy {
+        DEFER,
+        DROP_LOWEST_PRIORITY
+    }
+
+    private static class ScanEntry {
+        private final UUID worldUUID;
+        private final int chunkX;
+        private final int chunkZ;
+        private int typeMask;
+        private boolean removed = false;
+        private long sequence = 0;
+        private int version = 0;
+
+        private ScanEntry(UUID worldUUID, int chunkX, int chunkZ, int typeMask) {
+            this.worldUUID = worldUUID;
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            this.typeMask = typeMask;
+        }
+    }
+
+    private record BacklogKey(UUID worldUUID, long chunkKey) {
+        private BacklogKey(ScanEntry entry) {
+            this(entry.worldUUID, ChunkKey.pack(entry.chunkX, entry.chunkZ));
+        }
+    }
+
+    private record EvictionNode(ScanEntry entry, int priority, long sequence,
+                                int version) implements Comparable<EvictionNode> {
+        @Override
+        public int compareTo(EvictionNode other) {
+            if (priority != other.priority) return Integer.compare(other.priority, priority);
+            return Long.compare(other.sequence, sequence);
+        }
+    }
+}
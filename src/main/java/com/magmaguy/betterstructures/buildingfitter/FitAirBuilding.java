@@ -1,13 +1,12 @@
 package com.magmaguy.betterstructures.buildingfitter;
 
+import com.magmaguy.betterstructures.buildingfitter.util.ColumnProfile;
 import com.magmaguy.betterstructures.buildingfitter.util.TerrainAdequacy;
+import com.magmaguy.betterstructures.buildingfitter.util.TerrainSample;
 import com.magmaguy.betterstructures.config.DefaultConfig;
 import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
 import com.magmaguy.betterstructures.schematics.SchematicContainer;
-import com.magmaguy.betterstructures.util.WorldEditUtils;
-import org.bukkit.Chunk;
 import org.bukkit.Location;
-import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.util.Vector;
 
@@ -20,25 +19,27 @@ public class FitAirBuilding extends FitAnything {
     private static final int NETHER_LOWEST_Y = 45;
     private static final int NETHER_HIGHEST_Y = 100;
 
-    public FitAirBuilding(Chunk chunk, SchematicContainer schematicContainer) {
+    public FitAirBuilding(TerrainSample terrain, SchematicContainer schematicContainer) {
         super(schematicContainer);
         super.structureType = GeneratorConfigFields.StructureType.SKY;
+        this.terrain = terrain;
         this.schematicContainer = schematicContainer;
         this.schematicClipboard = schematicContainer.getClipboard();
-        scan(chunk);
+        scan();
     }
 
-    public FitAirBuilding(Chunk chunk) {
+    public FitAirBuilding(TerrainSample terrain) {
         super();
         super.structureType = GeneratorConfigFields.StructureType.SKY;
-        scan(chunk);
+        this.terrain = terrain;
+        scan();
     }
 
-    private void scan(Chunk chunk) {
-        World world = chunk.getWorld();
+    private void scan() {
+        World world = terrain.getWorld();
 
         // Calculate base location with altitude
-        Location originalLocation = calculateBaseLocationWithAltitude(chunk, world);
+        Location originalLocation = calculateBaseLocationWithAltitude(world);
         if (originalLocation == null) {
             return;
         }
@@ -48,26 +49,13 @@ public class FitAirBuilding extends FitAnything {
             return;
         }
 
-        randomizeSchematicContainer(originalLocation, GeneratorConfigFields.StructureType.SKY);
-        if (schematicClipboard == null) {
-            return;
-        }
-
-        schematicOffset = WorldEditUtils.getSchematicOffset(schematicClipboard);
-
         // Search for optimal placement
-        searchOptimalPlacement(originalLocation);
-
-        if (location == null) {
-            return;
-        }
-
-        paste(location);
+        fitSchematicCandidates(originalLocation, GeneratorConfigFields.StructureType.SKY, this::searchOptimalPlacement);
     }
 
-    private Location calculateBaseLocationWithAltitude(Chunk chunk, World world) {
-        int centerX = chunk.getX() * 16 + 8;
-        int centerZ = chunk.getZ() * 16 + 8;
+    private Location calculateBaseLocationWithAltitude(World world) {
+        int centerX = terrain.getCenterChunkX() * 16 + 8;
+        int centerZ = terrain.getCenterChunkZ() * 16 + 8;
 
         // Get highest block location without creating temporary objects
         World.Environment environment = world.getEnvironment();
@@ -92,7 +80,8 @@ public class FitAirBuilding extends FitAnything {
                 altitude = 0;
         }
 
-        int highestY = world.getHighestBlockYAt(centerX, centerZ);
+        int highestY = terrain.getHighestBlockYAt(centerX, centerZ);
+        if (highestY == Integer.MIN_VALUE) return null;
         return new Location(world, centerX, highestY + altitude, centerZ);
     }
 
@@ -115,40 +104,11 @@ public class FitAirBuilding extends FitAnything {
     }
 
     private boolean processNetherEnvironment(Location originalLocation) {
-        int lowPoint = 0;
-        int highPoint = 0;
-        boolean streak = false;
-        int tolerance = 3;
-
-        reusableLocation.setWorld(originalLocation.getWorld());
-        reusableLocation.setX(originalLocation.getX());
-        reusableLocation.setZ(originalLocation.getZ());
-
-        for (int y = NETHER_LOWEST_Y; y < NETHER_HIGHEST_Y; y++) {
-            reusableLocation.setY(y);
-            Material blockType = reusableLocation.getBlock().getType();
-
-            if (blockType.isAir()) {
-                if (streak) {
-                    highPoint = y;
-                } else {
-                    lowPoint = y;
-                    streak = true;
-                }
-            } else {
-                if (blockType == Material.VOID_AIR || blockType == Material.BEDROCK || tolerance == 0) {
-                    if (streak) {
-                        streak = false;
-                        if (highPoint - lowPoint >= 40) break;
-                        if (blockType == Material.VOID_AIR || blockType == Material.BEDROCK) return false;
-                        tolerance = 3;
-                    }
-                } else if (streak) {
-                    tolerance--;
-                    highPoint = y;
-                }
-            }
-        }
+        ColumnProfile column = terrain.getColumn(originalLocation.getBlockX(), originalLocation.getBlockZ());
+        int[] streak = column.findStreak(TerrainSample.AIR, NETHER_LOWEST_Y, NETHER_HIGHEST_Y, 1, 40, false, false);
+        if (streak == null) return false;
+        int lowPoint = streak[0];
+        int highPoint = streak[1];
 
         if (highPoint - lowPoint < 20) {
             return false;
@@ -196,7 +156,8 @@ public class FitAirBuilding extends FitAnything {
         reusableLocation.setY(originalLocation.getY());
         reusableLocation.setZ(originalLocation.getZ() + offsetZ);
 
-        double newScore = TerrainAdequacy.scan(scanStep, schematicClipboard, reusableLocation, schematicOffset, TerrainAdequacy.ScanType.AIR);
+        // Only a perfect score is used, so the scan can stop at the first inadequate sample
+        double newScore = TerrainAdequacy.scan(terrain, getFitProfile(), reusableLocation, schematicOffset, TerrainAdequacy.ScanType.AIR, Math.nextDown(startingScore));
 
         // Original logic: if score equals startingScore, use this location
         if (newScore == startingScore) {
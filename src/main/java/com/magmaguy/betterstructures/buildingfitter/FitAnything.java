@@ -2,11 +2,17 @@ package com.magmaguy.betterstructures.buildingfitter;
 
 import com.magmaguy.betterstructures.api.BuildPlaceEvent;
 import com.magmaguy.betterstructures.api.ChestFillEvent;
+import com.magmaguy.betterstructures.buildingfitter.util.ChunkSnapshotRegion;
+import com.magmaguy.betterstructures.buildingfitter.util.FitProfile;
 import com.magmaguy.betterstructures.buildingfitter.util.FitUndergroundDeepBuilding;
 import com.magmaguy.betterstructures.buildingfitter.util.LocationProjector;
 import com.magmaguy.betterstructures.buildingfitter.util.SchematicPicker;
+import com.magmaguy.betterstructures.buildingfitter.util.TerrainSample;
 import com.magmaguy.betterstructures.config.DefaultConfig;
 import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
+import com.magmaguy.betterstructures.placement.FootprintIndex;
+import com.magmaguy.betterstructures.placement.PlacedStructure;
+import com.magmaguy.betterstructures.placement.StructureRegistry;
 import com.magmaguy.betterstructures.schematics.SchematicContainer;
 import com.magmaguy.betterstructures.thirdparty.EliteMobs;
 import com.magmaguy.betterstructures.thirdparty.MythicMobs;
@@ -27,15 +33,17 @@ import org.bukkit.scheduler.BukkitRunnable;
 import org.bukkit.util.Vector;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 public class FitAnything {
     public static boolean worldGuardWarn = false;
     protected final int searchRadius = 1;
-    protected final int scanStep = 3;
+    protected final int scanStep = FitProfile.DEFAULT_SCAN_STEP;
     private final HashMap<Material, Integer> undergroundPedestalMaterials = new HashMap<>();
     private final HashMap<Material, Integer> surfacePedestalMaterials = new HashMap<>();
 
@@ -53,12 +61,17 @@ public class FitAnything {
     protected Clipboard schematicClipboard = null;
     @Getter
     protected Vector schematicOffset;
+    //Quarter turns around the Y axis the schematic is fitted and pasted at
+    @Getter
+    protected int rotation = 0;
     protected int verticalOffset = 0;
     //At 10% it is assumed a fit is so bad it's better just to skip
     protected double highestScore = 10;
     @Getter
     protected Location location = null;
     protected GeneratorConfigFields.StructureType structureType;
+    @Getter
+    protected TerrainSample terrain;
     private Material pedestalMaterial = null;
 
     public FitAnything(SchematicContainer schematicContainer) {
@@ -69,42 +82,120 @@ public class FitAnything {
     public FitAnything() {
     }
 
+    /**
+     * Fits and pastes a specific schematic synchronously. Only meant for commands, regular generation goes through
+     * the {@link PlacementPipeline}.
+     */
     public static void commandBasedCreation(Chunk chunk, GeneratorConfigFields.StructureType structureType, SchematicContainer container) {
-        switch (structureType) {
-            case SKY:
-                new FitAirBuilding(chunk, container);
-                break;
-            case SURFACE:
-                new FitSurfaceBuilding(chunk, container);
-                break;
-            case LIQUID_SURFACE:
-                new FitLiquidBuilding(chunk, container);
-                break;
-            case UNDERGROUND_DEEP:
-                FitUndergroundDeepBuilding.fit(chunk, container);
-                break;
-            case UNDERGROUND_SHALLOW:
-                FitUndergroundShallowBuilding.fit(chunk, container);
-                break;
-            default:
+        TerrainSample terrain = new TerrainSample(ChunkSnapshotRegion.capture(chunk, PlacementPipeline.getCaptureRadius(structureType)));
+        FitAnything fitAnything = switch (structureType) {
+            case SKY -> new FitAirBuilding(terrain, container);
+            case SURFACE -> new FitSurfaceBuilding(terrain, container);
+            case LIQUID_SURFACE -> new FitLiquidBuilding(terrain, container);
+            case UNDERGROUND_DEEP -> FitUndergroundDeepBuilding.fit(terrain, container);
+            case UNDERGROUND_SHALLOW -> FitUndergroundShallowBuilding.fit(terrain, container);
+            default -> null;
+        };
+        if (fitAnything != null) fitAnything.pasteBestFit();
+    }
+
+    /**
+     * Pastes the schematic at the best location found by the scan, if the scan found one.
+     * Scans can run off the main thread, but this must always be called from the main thread.
+     */
+    public void pasteBestFit() {
+        if (location != null && schematicClipboard != null) paste(location);
+    }
+
+    /**
+     * Runs the search of the fitter for up to {@link DefaultConfig#getFitCandidates()} schematics drawn by weight,
+     * stopping at the first one that finds a location. All of them are scored against the same terrain sample.
+     * If a schematic was already chosen, for instance by a command, only that one is tried.
+     * <p>
+     * Each schematic is searched at every rotation, starting from a random one, until one finds a location, or at all
+     * of them if the fitter {@link #scoresEveryRotation() keeps the best score}.
+     *
+     * @param anchorLocation Location the candidates are picked for, each search gets its own copy
+     * @param structureType  Structure type
+     * @param search         Search of the fitter, sets the location if it finds one
+     */
+    protected void fitSchematicCandidates(Location anchorLocation, GeneratorConfigFields.StructureType structureType, Consumer<Location> search) {
+        List<SchematicContainer> candidates = schematicClipboard != null ?
+                List.of(schematicContainer) :
+                SchematicPicker.pickCandidates(terrain, anchorLocation, structureType, Math.max(1, DefaultConfig.getFitCandidates()));
+        int rotations = DefaultConfig.isRotateStructures() ? FitProfile.ROTATIONS : 1;
+        for (SchematicContainer candidate : candidates) {
+            schematicContainer = candidate;
+            schematicClipboard = candidate.getClipboard();
+            verticalOffset = schematicClipboard.getMinimumPoint().y() - schematicClipboard.getOrigin().y();
+            int firstRotation = ThreadLocalRandom.current().nextInt(rotations);
+            int winningRotation = 0;
+            for (int i = 0; i < rotations; i++) {
+                rotation = (firstRotation + i) % rotations;
+                schematicOffset = candidate.getSchematicOffset(rotation);
+                Location previousLocation = location;
+                search.accept(anchorLocation.clone());
+                if (location != previousLocation) winningRotation = rotation;
+                if (location != null && !scoresEveryRotation()) break;
+            }
+            if (location != null) {
+                applyRotation(winningRotation);
+                return;
+            }
         }
     }
 
-    protected void randomizeSchematicContainer(Location location, GeneratorConfigFields.StructureType structureType) {
-        if (schematicClipboard != null) return;
-        schematicContainer = SchematicPicker.pick(location, structureType);
-        if (schematicContainer != null) {
-            schematicClipboard = schematicContainer.getClipboard();
-            verticalOffset = schematicContainer.getClipboard().getMinimumPoint().y() - schematicContainer.getClipboard().getOrigin().y();
+    /**
+     * @return True if the search only replaces the location with better scoring ones, so that every rotation can be
+     * searched and the best one kept
+     */
+    protected boolean scoresEveryRotation() {
+        return false;
+    }
+
+    /**
+     * @return The sample points of the current schematic at the current rotation
+     */
+    protected FitProfile getFitProfile() {
+        return schematicContainer.getFitProfile(scanStep, rotation);
+    }
+
+    private void applyRotation(int winningRotation) {
+        rotation = winningRotation;
+        schematicOffset = schematicContainer.getSchematicOffset(rotation);
+        if (rotation == 0) return;
+        Clipboard rotatedClipboard;
+        try {
+            rotatedClipboard = schematicContainer.getRotatedClipboard(rotation);
+        } catch (Exception exception) {
+            Logger.warn("Failed to rotate schematic " + schematicContainer.getClipboardFilename() + "!");
+            exception.printStackTrace();
+            location = null;
+            return;
         }
+        //Keeps the lowest corner where it was scored
+        Vector rotatedOffset = WorldEditUtils.getSchematicOffset(rotatedClipboard);
+        location.add(schematicOffset).subtract(rotatedOffset);
+        schematicClipboard = rotatedClipboard;
+        schematicOffset = rotatedOffset;
     }
 
     protected void paste(Location location) {
+        //Reserved before the event so that listeners only hear about builds that actually get pasted
+        PlacedStructure placedStructure = toPlacedStructure();
+        if (DefaultConfig.isPreventStructureOverlap() && !FootprintIndex.reserve(location.getWorld(), placedStructure))
+            return;
+
         BuildPlaceEvent buildPlaceEvent = new BuildPlaceEvent(this);
         Bukkit.getServer().getPluginManager().callEvent(buildPlaceEvent);
-        if (buildPlaceEvent.isCancelled()) return;
+        if (buildPlaceEvent.isCancelled()) {
+            FootprintIndex.release(location.getWorld(), placedStructure);
+            return;
+        }
 
         FitAnything fitAnything = this;
+        //Kept so that the world can still be referenced if it unloads before the paste is done
+        World world = location.getWorld();
 
         // Set pedestal material before the paste so bedrock blocks get replaced correctly
         assignPedestalMaterial(location);
@@ -124,19 +215,65 @@ public class FitAnything {
         Function<Boolean, Material> pedestalMaterialProvider = this::getPedestalMaterial;
 
         // Paste the schematic with the moved logic
-        Schematic.pasteSchematic(
-                schematicClipboard,
-                location,
-                schematicOffset,
-                pedestalMaterialProvider,
-                onPasteComplete(fitAnything, location)
-        );
+        try {
+            Schematic.pasteSchematic(
+                    schematicContainer.getCompiledSchematic(rotation, schematicClipboard),
+                    location,
+                    schematicOffset,
+                    pedestalMaterialProvider,
+                    onPasteComplete(fitAnything, location, placedStructure),
+                    started -> onPasteAborted(world, placedStructure, started)
+            );
+        } catch (RuntimeException exception) {
+            FootprintIndex.release(location.getWorld(), placedStructure);
+            throw exception;
+        }
+    }
+
+    /**
+     * @return The structure as it gets stored in the {@link StructureRegistry}, bounds included
+     */
+    public PlacedStructure toPlacedStructure() {
+        int minX = (int) Math.floor(location.getX() + schematicOffset.getX());
+        int minY = (int) Math.floor(location.getY() + schematicOffset.getY());
+        int minZ = (int) Math.floor(location.getZ() + schematicOffset.getZ());
+        int anchorChunkX = terrain != null ? terrain.getCenterChunkX() : location.getBlockX() >> 4;
+        int anchorChunkZ = terrain != null ? terrain.getCenterChunkZ() : location.getBlockZ() >> 4;
+        return new PlacedStructure(schematicContainer.getConfigFilename(), structureType, anchorChunkX, anchorChunkZ,
+                minX, minY, minZ,
+                minX + schematicClipboard.getDimensions().x() - 1,
+                minY + schematicClipboard.getDimensions().y() - 1,
+                minZ + schematicClipboard.getDimensions().z() - 1,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Releases the reservation of a paste that got dropped. A paste that had started is registered anyway, so that
+     * nothing else gets placed over the blocks it left behind.
+     */
+    private static void onPasteAborted(World world, PlacedStructure placedStructure, boolean started) {
+        if (started) {
+            try {
+                StructureRegistry.record(world, placedStructure);
+            } catch (Exception exception) {
+                Logger.warn("Failed to register the structure!");
+                exception.printStackTrace();
+            }
+        }
+        FootprintIndex.release(world, placedStructure);
     }
 
-    private BukkitRunnable onPasteComplete(FitAnything fitAnything, Location location) {
+    private BukkitRunnable onPasteComplete(FitAnything fitAnything, Location location, PlacedStructure placedStructure) {
         return new BukkitRunnable() {
             @Override
             public void run() {
+                try {
+                    StructureRegistry.record(location.getWorld(), placedStructure);
+                } catch (Exception exception) {
+                    Logger.warn("Failed to register the structure!");
+                    exception.printStackTrace();
+                }
+                FootprintIndex.release(location.getWorld(), placedStructure);
                 if (DefaultConfig.isNewBuildingWarn()) {
                     String structureTypeString = fitAnything.structureType.toString().toLowerCase(Locale.ROOT).replace("_", " ");
                     for (Player player : Bukkit.getOnlinePlayers())
@@ -221,7 +358,7 @@ public class FitAnything {
                             reusableLocation.getBlockZ()
                     );
 
-                    if (aboveBlock.getType().isSolid() && groundBlock.getType().isSolid() && !SurfaceMaterials.ignorable(groundBlock.getType()))
+                    if (SurfaceMaterials.isSolid(aboveBlock.getType()) && SurfaceMaterials.isSolidGround(groundBlock.getType()))
                         undergroundPedestalMaterials.merge(groundBlock.getType(), 1, Integer::sum);
                 }
             }
@@ -235,7 +372,7 @@ public class FitAnything {
                 reusableLocation.setY(baseY + height);
                 reusableLocation.setZ(baseZ + z);
 
-                boolean scanUp = reusableLocation.getBlock().getType().isSolid();
+                boolean scanUp = SurfaceMaterials.isSolid(reusableLocation.getBlock().getType());
                 for (int y = 0; y < MAX_SURFACE_SCAN_HEIGHT; y++) {
                     int currentY = scanUp ? y : -y;
                     reusableLocation.setY(baseY + currentY);
@@ -247,7 +384,7 @@ public class FitAnything {
                             reusableLocation.getBlockZ()
                     );
 
-                    if (!aboveBlock.getType().isSolid() && groundBlock.getType().isSolid()) {
+                    if (!SurfaceMaterials.isSolid(aboveBlock.getType()) && SurfaceMaterials.isSolid(groundBlock.getType())) {
                         surfacePedestalMaterials.merge(groundBlock.getType(), 1, Integer::sum);
                         break;
                     }
@@ -321,7 +458,7 @@ public class FitAnything {
                                 reusableLocation.getBlockY() + 1,
                                 reusableLocation.getBlockZ()
                         );
-                        block.setType(getPedestalMaterial(!aboveBlock.getType().isSolid()));
+                        block.setType(getPedestalMaterial(!SurfaceMaterials.isSolid(aboveBlock.getType())));
                     } else {
                         //Pedestal only fills until it hits the first solid block
                         break;
@@ -355,7 +492,7 @@ public class FitAnything {
                     reusableLocation.setZ(baseZ + z);
 
                     Block block = reusableLocation.getBlock();
-                    if (SurfaceMaterials.ignorable(block.getType()) && !block.getType().isAir()) {
+                    if (SurfaceMaterials.isTreePart(block.getType())) {
                         detectedTreeElement = true;
                         block.setType(Material.AIR);
                     }
@@ -368,7 +505,7 @@ public class FitAnything {
         if (schematicContainer.getGeneratorConfigFields().getChestContents() != null) {
             for (Vector chestPosition : schematicContainer.getChestLocations()) {
                 // Use optimized projection
-                LocationProjector.project(reusableLocation, location, schematicOffset, chestPosition);
+                LocationProjector.project(reusableLocation, location, schematicOffset, schematicContainer.rotatePosition(chestPosition, rotation));
 
                 if (!(reusableLocation.getBlock().getState() instanceof Container container)) {
                     Logger.warn("Expected a container for " + reusableLocation.getBlock().getType() + " but didn't get it. Skipping this loot!");
@@ -393,7 +530,7 @@ public class FitAnything {
 
         // Spawn vanilla entities
         for (Map.Entry<Vector, EntityType> entry : schematicContainer.getVanillaSpawns().entrySet()) {
-            LocationProjector.project(reusableLocation, location, schematicOffset, entry.getKey());
+            LocationProjector.project(reusableLocation, location, schematicOffset, schematicContainer.rotatePosition(entry.getKey(), rotation));
             reusableLocation.getBlock().setType(Material.AIR);
             // If mobs spawn in corners they might choke on adjacent walls
             reusableLocation.add(0.5, 0, 0.5);
@@ -414,7 +551,7 @@ public class FitAnything {
 
         // Spawn EliteMobs entities
         for (Map.Entry<Vector, String> entry : schematicContainer.getEliteMobsSpawns().entrySet()) {
-            LocationProjector.project(reusableLocation, location, schematicOffset, entry.getKey());
+            LocationProjector.project(reusableLocation, location, schematicOffset, schematicContainer.rotatePosition(entry.getKey(), rotation));
             reusableLocation.getBlock().setType(Material.AIR);
             reusableLocation.add(0.5, 0, 0.5);
 
@@ -441,7 +578,7 @@ public class FitAnything {
 
         // Spawn MythicMobs entities
         for (Map.Entry<Vector, String> entry : schematicContainer.getMythicMobsSpawns().entrySet()) {
-            LocationProjector.project(reusableLocation, location, schematicOffset, entry.getKey());
+            LocationProjector.project(reusableLocation, location, schematicOffset, schematicContainer.rotatePosition(entry.getKey(), rotation));
             reusableLocation.getBlock().setType(Material.AIR);
 
             // If the spawn fails then don't continue
@@ -1,10 +1,9 @@
 package com.magmaguy.betterstructures.buildingfitter;
 
 import com.magmaguy.betterstructures.buildingfitter.util.TerrainAdequacy;
+import com.magmaguy.betterstructures.buildingfitter.util.TerrainSample;
 import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
 import com.magmaguy.betterstructures.schematics.SchematicContainer;
-import com.magmaguy.betterstructures.util.WorldEditUtils;
-import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.World;
@@ -18,54 +17,43 @@ public class FitLiquidBuilding extends FitAnything {
     private final Location reusableLocation = new Location(null, 0, 0, 0);
 
     // For commands
-    public FitLiquidBuilding(Chunk chunk, SchematicContainer schematicContainer) {
+    public FitLiquidBuilding(TerrainSample terrain, SchematicContainer schematicContainer) {
         super(schematicContainer);
         super.structureType = GeneratorConfigFields.StructureType.LIQUID_SURFACE;
+        this.terrain = terrain;
         this.schematicContainer = schematicContainer;
         this.schematicClipboard = schematicContainer.getClipboard();
-        scan(chunk);
+        scan();
     }
 
-    public FitLiquidBuilding(Chunk chunk) {
+    public FitLiquidBuilding(TerrainSample terrain) {
         super();
         super.structureType = GeneratorConfigFields.StructureType.LIQUID_SURFACE;
-        scan(chunk);
+        this.terrain = terrain;
+        scan();
     }
 
-    private void scan(Chunk chunk) {
-        World world = chunk.getWorld();
+    private void scan() {
+        World world = terrain.getWorld();
 
         // Calculate base location with minimal object creation
-        Location originalLocation = calculateBaseLocation(chunk, world);
+        Location originalLocation = calculateBaseLocation(world);
 
         // Check if location is valid for liquid structure
-        if (!isValidLiquidLocation(originalLocation, world)) {
+        if (originalLocation == null || !isValidLiquidLocation(originalLocation, world)) {
             return;
         }
 
-        randomizeSchematicContainer(originalLocation, GeneratorConfigFields.StructureType.LIQUID_SURFACE);
-        if (schematicClipboard == null) {
-            return;
-        }
-
-        schematicOffset = WorldEditUtils.getSchematicOffset(schematicClipboard);
-
         // Search for optimal placement
-        searchOptimalPlacement(originalLocation);
-
-        if (location == null) {
-            return;
-        }
-
-        super.paste(location);
+        fitSchematicCandidates(originalLocation, GeneratorConfigFields.StructureType.LIQUID_SURFACE, this::searchOptimalPlacement);
     }
 
-    private Location calculateBaseLocation(Chunk chunk, World world) {
-        double x = chunk.getX() * 16.0 + 8.0;
-        double z = chunk.getZ() * 16.0 + 8.0;
-        Location location = new Location(world, x, 0, z);
-        location.setY(world.getHighestBlockYAt(location));
-        return location;
+    private Location calculateBaseLocation(World world) {
+        double x = terrain.getCenterChunkX() * 16.0 + 8.0;
+        double z = terrain.getCenterChunkZ() * 16.0 + 8.0;
+        int highestY = terrain.getHighestBlockYAt((int) x, (int) z);
+        if (highestY == Integer.MIN_VALUE) return null;
+        return new Location(world, x, highestY, z);
     }
 
     private boolean isValidLiquidLocation(Location location, World world) {
@@ -74,11 +62,11 @@ public class FitLiquidBuilding extends FitAnything {
         switch (environment) {
             case CUSTOM:
             case NORMAL:
-                return location.getBlock().isLiquid();
+                return terrain.isLiquid(location.getBlockX(), location.getBlockY(), location.getBlockZ());
 
             case NETHER:
                 location.setY(NETHER_LAVA_OCEAN_HEIGHT);
-                if (location.getBlock().getType() != Material.LAVA) {
+                if (terrain.getType(location.getBlockX(), location.getBlockY(), location.getBlockZ()) != Material.LAVA) {
                     return false;
                 }
                 // Check that there's air above for placement
@@ -92,13 +80,11 @@ public class FitLiquidBuilding extends FitAnything {
     private boolean hasClearAirAbove(Location location) {
         int startX = location.getBlockX();
         int startZ = location.getBlockZ();
-        World world = location.getWorld();
         int startY = location.getBlockY() + 1;
 
         for (int y = startY; y < startY + 20; y++) {
-            if (y > world.getMaxHeight()) break;
-            Material blockType = world.getBlockAt(startX, y, startZ).getType();
-            if (!blockType.isAir()) {
+            if (y > terrain.getMaxHeight()) break;
+            if (!terrain.isAir(startX, y, startZ)) {
                 return false;
             }
         }
@@ -138,7 +124,8 @@ public class FitLiquidBuilding extends FitAnything {
         reusableLocation.setY(originalLocation.getY() + 1); // Add 1 as in original code
         reusableLocation.setZ(originalLocation.getZ() + offsetZ);
 
-        double newScore = TerrainAdequacy.scan(scanStep, schematicClipboard, reusableLocation, schematicOffset, TerrainAdequacy.ScanType.LIQUID);
+        // Anything under 90 gets rejected regardless of the best fit
+        double newScore = TerrainAdequacy.scan(terrain, getFitProfile(), reusableLocation, schematicOffset, TerrainAdequacy.ScanType.LIQUID, Math.nextDown(90.0));
 
         if (newScore < 90) {
             return false;
@@ -1,11 +1,12 @@
 package com.magmaguy.betterstructures.buildingfitter;
 
+import com.magmaguy.betterstructures.buildingfitter.util.FitProfile;
+import com.magmaguy.betterstructures.buildingfitter.util.HeightField;
 import com.magmaguy.betterstructures.buildingfitter.util.TerrainAdequacy;
+import com.magmaguy.betterstructures.buildingfitter.util.TerrainSample;
 import com.magmaguy.betterstructures.buildingfitter.util.Topology;
 import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
 import com.magmaguy.betterstructures.schematics.SchematicContainer;
-import com.magmaguy.betterstructures.util.WorldEditUtils;
-import org.bukkit.Chunk;
 import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.util.Vector;
@@ -24,44 +25,54 @@ public class FitSurfaceBuilding extends FitAnything {
             new Vector(0, 0, 32)    // Far South
     };
 
-    public FitSurfaceBuilding(Chunk chunk, SchematicContainer schematicContainer) {
+    // Surface heights of the current schematic's search, one field per scan grid phase since offsets of 16 blocks
+    // don't land on the same scan grid
+    private HeightField[] heightFields;
+    private double searchOriginX;
+    private double searchOriginZ;
+
+    public FitSurfaceBuilding(TerrainSample terrain, SchematicContainer schematicContainer) {
         super(schematicContainer);
         this.structureType = GeneratorConfigFields.StructureType.SURFACE;
+        this.terrain = terrain;
         this.schematicContainer = schematicContainer;
         this.schematicClipboard = schematicContainer.getClipboard();
-        scan(chunk);
+        scan();
     }
 
-    public FitSurfaceBuilding(Chunk chunk) {
+    public FitSurfaceBuilding(TerrainSample terrain) {
         super();
         this.structureType = GeneratorConfigFields.StructureType.SURFACE;
-        scan(chunk);
+        this.terrain = terrain;
+        scan();
     }
 
-    private void scan(Chunk chunk) {
-        World world = chunk.getWorld();
-        Location baseLocation = getChunkCenterLocation(chunk, world);
-
-        randomizeSchematicContainer(baseLocation, GeneratorConfigFields.StructureType.SURFACE);
-        if (schematicClipboard == null) return;
+    private void scan() {
+        Location baseLocation = getChunkCenterLocation();
+        if (baseLocation == null) return;
 
-        schematicOffset = WorldEditUtils.getSchematicOffset(schematicClipboard);
-        findBestFit(baseLocation);
+        fitSchematicCandidates(baseLocation, GeneratorConfigFields.StructureType.SURFACE, this::findBestFit);
+    }
 
-        if (location != null) {
-            paste(location);
-        }
+    private Location getChunkCenterLocation() {
+        double x = (terrain.getCenterChunkX() << 4) + 8.0; // bit-shift instead of multiply for speed
+        double z = (terrain.getCenterChunkZ() << 4) + 8.0;
+        int y = terrain.getHighestBlockYAt((int) x, (int) z);
+        if (y == Integer.MIN_VALUE) return null;
+        return new Location(terrain.getWorld(), x, y, z);
     }
 
-    private static Location getChunkCenterLocation(Chunk chunk, World world) {
-        double x = (chunk.getX() << 4) + 8.0; // bit-shift instead of multiply for speed
-        double z = (chunk.getZ() << 4) + 8.0;
-        int y = world.getHighestBlockYAt((int) x, (int) z);
-        return new Location(world, x, y, z);
+    @Override
+    protected boolean scoresEveryRotation() {
+        return true;
     }
 
     private void findBestFit(Location origin) {
-        double bestScore = evaluateLocation(origin);
+        heightFields = new HeightField[scanStep * scanStep];
+        searchOriginX = origin.getX();
+        searchOriginZ = origin.getZ();
+
+        double bestScore = evaluateLocation(origin, highestScore);
         if (bestScore > highestScore) {
             highestScore = bestScore;
             location = origin;
@@ -70,30 +81,72 @@ public class FitSurfaceBuilding extends FitAnything {
         // Stop early if the first (center) location is already very good
         if (highestScore >= 50) return;
 
-        // Try other offsets in order
-        for (Vector offset : SEARCH_PATTERN) {
+        // Score the other offsets in parallel against the best score so far, which can only prune candidates that
+        // wouldn't have won anyway, then pick in order as a serial search would
+        Location[] candidates = new Location[SEARCH_PATTERN.length];
+        for (int i = 0; i < SEARCH_PATTERN.length; i++) {
+            Vector offset = SEARCH_PATTERN[i];
             if (offset.getX() == 0 && offset.getZ() == 0) continue;
+            candidates[i] = origin.clone().add(offset);
+            getHeightField(candidates[i]);
+        }
+        double bound = highestScore;
+        double[] scores = PlacementPipeline.evaluate(candidates.length, i -> candidates[i] == null ? 0 : evaluateLocation(candidates[i], bound));
 
-            Location loc = origin.clone().add(offset);
-            double score = evaluateLocation(loc);
-
-            if (score > highestScore) {
-                highestScore = score;
-                location = loc;
+        for (int i = 0; i < candidates.length; i++) {
+            if (candidates[i] == null) continue;
+            if (scores[i] > highestScore) {
+                highestScore = scores[i];
+                location = candidates[i];
 
                 if (highestScore >= 50) break; // good enough
             }
         }
     }
 
-    private double evaluateLocation(Location loc) {
-        World world = loc.getWorld();
-        double start = (world.getEnvironment() == World.Environment.NETHER) ? 200 : this.startingScore;
+    /**
+     * Scores a location, returning 0 as soon as it can't beat the bound. Safe to run in parallel once the height field
+     * of the location is built.
+     */
+    private double evaluateLocation(Location loc, double bound) {
+        double start = (terrain.getEnvironment() == World.Environment.NETHER) ? 200 : this.startingScore;
 
-        double topology = Topology.scan(start, scanStep, schematicClipboard, loc, schematicOffset);
+        FitProfile fitProfile = getFitProfile();
+        double topology = Topology.scan(getHeightField(loc), start, fitProfile.getWidth(), fitProfile.getDepth(), loc, schematicOffset);
         if (topology <= 0) return 0;
 
-        double adequacy = TerrainAdequacy.scan(scanStep, schematicClipboard, loc, schematicOffset, TerrainAdequacy.ScanType.SURFACE);
+        // Adequacy is worth half, so this is the adequacy the location needs to beat the bound
+        double adequacyBound = 2 * (bound - topology);
+        double adequacy = TerrainAdequacy.scan(terrain, fitProfile, loc, schematicOffset, TerrainAdequacy.ScanType.SURFACE, adequacyBound);
+        if (adequacy <= adequacyBound) return 0;
         return topology + (0.5 * adequacy);
     }
+
+    /**
+     * Gets the field that covers the footprint at this location, building it for every search offset on the same scan
+     * grid phase at once.
+     */
+    private HeightField getHeightField(Location loc) {
+        int baseX = (int) Math.floor(loc.getX() + schematicOffset.getX());
+        int baseZ = (int) Math.floor(loc.getZ() + schematicOffset.getZ());
+        int phaseX = Math.floorMod(baseX, scanStep);
+        int phaseZ = Math.floorMod(baseZ, scanStep);
+        int index = phaseX * scanStep + phaseZ;
+        if (heightFields[index] != null) return heightFields[index];
+
+        int lastSampleX = Math.max(0, getFitProfile().getWidth() - 1) / scanStep * scanStep;
+        int lastSampleZ = Math.max(0, getFitProfile().getDepth() - 1) / scanStep * scanStep;
+        int minX = baseX, minZ = baseZ, maxX = baseX + lastSampleX, maxZ = baseZ + lastSampleZ;
+        for (Vector offset : SEARCH_PATTERN) {
+            int offsetBaseX = (int) Math.floor(searchOriginX + offset.getX() + schematicOffset.getX());
+            int offsetBaseZ = (int) Math.floor(searchOriginZ + offset.getZ() + schematicOffset.getZ());
+            if (Math.floorMod(offsetBaseX, scanStep) != phaseX || Math.floorMod(offsetBaseZ, scanStep) != phaseZ) continue;
+            minX = Math.min(minX, offsetBaseX);
+            minZ = Math.min(minZ, offsetBaseZ);
+            maxX = Math.max(maxX, offsetBaseX + lastSampleX);
+            maxZ = Math.max(maxZ, offsetBaseZ + lastSampleZ);
+        }
+        heightFields[index] = HeightField.build(terrain, minX, minZ, maxX, maxZ, scanStep);
+        return heightFields[index];
+    }
 }
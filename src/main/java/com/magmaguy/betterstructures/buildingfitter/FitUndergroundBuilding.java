@@ -1,63 +1,60 @@
 package com.magmaguy.betterstructures.buildingfitter;
 
-import com.magmaguy.betterstructures.buildingfitter.util.TerrainAdequacy;
+import com.magmaguy.betterstructures.buildingfitter.util.ColumnProfile;
+import com.magmaguy.betterstructures.buildingfitter.util.FitProfile;
+import com.magmaguy.betterstructures.buildingfitter.util.SolidGrid;
+import com.magmaguy.betterstructures.buildingfitter.util.TerrainSample;
 import com.magmaguy.betterstructures.config.DefaultConfig;
 import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
 import com.magmaguy.betterstructures.schematics.SchematicContainer;
-import com.magmaguy.betterstructures.util.WorldEditUtils;
-import org.bukkit.Chunk;
 import org.bukkit.Location;
-import org.bukkit.Material;
 import org.bukkit.World;
 
 import java.util.concurrent.ThreadLocalRandom;
 
 public class FitUndergroundBuilding extends FitAnything {
 
+    // Vertical reach of the search around the picked Y level, in blocks
+    private static final int SEARCH_HEIGHT = 12;
     private final int lowestY;
     private final int highestY;
 
-    // Reused mutable objects
-    private final Location workLoc = new Location(null, 0, 0, 0);
-
-    public FitUndergroundBuilding(Chunk chunk, SchematicContainer schematicContainer, int lowestY, int highestY, GeneratorConfigFields.StructureType type) {
+    public FitUndergroundBuilding(TerrainSample terrain, SchematicContainer schematicContainer, int lowestY, int highestY, GeneratorConfigFields.StructureType type) {
         super(schematicContainer);
         this.structureType = type;
+        this.terrain = terrain;
         this.lowestY = lowestY;
         this.highestY = highestY;
         this.schematicContainer = schematicContainer;
         this.schematicClipboard = schematicContainer.getClipboard();
-        scan(chunk);
+        scan();
     }
 
-    public FitUndergroundBuilding(Chunk chunk, int lowestY, int highestY, GeneratorConfigFields.StructureType type) {
+    public FitUndergroundBuilding(TerrainSample terrain, int lowestY, int highestY, GeneratorConfigFields.StructureType type) {
         super();
         this.structureType = type;
+        this.terrain = terrain;
         this.lowestY = lowestY;
         this.highestY = highestY;
-        scan(chunk);
+        scan();
     }
 
-    private void scan(Chunk chunk) {
-        World world = chunk.getWorld();
-        Location base = getChunkCenter(chunk, world);
+    private void scan() {
+        World world = terrain.getWorld();
+        Location base = getChunkCenter(terrain);
 
         if (!determineY(base, world)) return;
 
-        randomizeSchematicContainer(base, structureType);
-        if (schematicClipboard == null) return;
-
-        schematicOffset = WorldEditUtils.getSchematicOffset(schematicClipboard);
-        fixWorldBounds(base, world);
-        searchOptimalPlacement(base, world);
-
-        if (location != null) paste(location);
+        fitSchematicCandidates(base, structureType, candidateBase -> {
+            fixWorldBounds(candidateBase, world);
+            searchOptimalPlacement(candidateBase, world);
+        });
     }
 
-    private static Location getChunkCenter(Chunk chunk, World world) {
-        double x = (chunk.getX() << 4) + 8.0;
-        double z = (chunk.getZ() << 4) + 8.0;
-        return new Location(world, x, 0, z);
+    private static Location getChunkCenter(TerrainSample terrain) {
+        double x = (terrain.getCenterChunkX() << 4) + 8.0;
+        double z = (terrain.getCenterChunkZ() << 4) + 8.0;
+        return new Location(terrain.getWorld(), x, 0, z);
     }
 
     /**
@@ -76,41 +73,13 @@ public class FitUndergroundBuilding extends FitAnything {
 
     private boolean findNetherY(Location base) {
         final boolean shallow = structureType == GeneratorConfigFields.StructureType.UNDERGROUND_SHALLOW;
-        final int dir = shallow ? 1 : -1;
-        int y = shallow ? lowestY : highestY;
-
-        int low = 0, high = 0, tolerance = 3;
-        boolean inSolid = false;
-
-        World world = base.getWorld();
-        workLoc.setWorld(world);
-        workLoc.setX(base.getX());
-        workLoc.setZ(base.getZ());
-
-        while (shallow ? y < highestY : y > lowestY) {
-            workLoc.setY(y);
-            Material mat = workLoc.getBlock().getType();
-
-            if (mat.isSolid()) {
-                if (!inSolid) {
-                    inSolid = true;
-                    if (shallow) low = y; else high = y;
-                } else {
-                    if (shallow) high = y; else low = y;
-                }
-            } else if (inSolid) {
-                if (mat == Material.VOID_AIR || mat == Material.BEDROCK || tolerance == 0) {
-                    inSolid = false;
-                    if (Math.abs(high - low) >= 20) break;
-                    if (mat == Material.VOID_AIR || mat == Material.BEDROCK) return false;
-                    tolerance = 3;
-                } else {
-                    tolerance--;
-                    if (shallow) high = y; else low = y;
-                }
-            }
-            y += dir;
-        }
+        ColumnProfile column = terrain.getColumn(base.getBlockX(), base.getBlockZ());
+        int[] streak = shallow
+                ? column.findStreak(TerrainSample.SOLID, lowestY, highestY, 1, 20, true, false)
+                : column.findStreak(TerrainSample.SOLID, highestY, lowestY, -1, 20, true, false);
+        if (streak == null) return false;
+        int low = shallow ? streak[0] : streak[1];
+        int high = shallow ? streak[1] : streak[0];
 
         int diff = Math.abs(high - low);
         if (diff < 20) return false;
@@ -126,36 +95,11 @@ public class FitUndergroundBuilding extends FitAnything {
     }
 
     private boolean findEndY(Location base) {
-        int low = 0, high = 0, tolerance = 3;
-        boolean inSolid = false;
-
-        World world = base.getWorld();
-        workLoc.setWorld(world);
-        workLoc.setX(base.getX());
-        workLoc.setZ(base.getZ());
-
-        for (int y = lowestY; y < highestY; y++) {
-            workLoc.setY(y);
-            Material mat = workLoc.getBlock().getType();
-
-            if (mat.isSolid()) {
-                if (!inSolid) {
-                    inSolid = true;
-                    low = y;
-                }
-                high = y;
-            } else if (inSolid) {
-                if (mat == Material.VOID_AIR || mat == Material.BEDROCK || tolerance == 0) {
-                    inSolid = false;
-                    if (high - low >= 20) break;
-                    if (mat == Material.VOID_AIR || mat == Material.BEDROCK) return false;
-                    tolerance = 3;
-                } else {
-                    tolerance--;
-                    high = y;
-                }
-            }
-        }
+        ColumnProfile column = terrain.getColumn(base.getBlockX(), base.getBlockZ());
+        int[] streak = column.findStreak(TerrainSample.SOLID, lowestY, highestY, 1, 20, false, true);
+        if (streak == null) return false;
+        int low = streak[0];
+        int high = streak[1];
 
         int diff = high - low;
         if (diff < 20) return false;
@@ -167,64 +111,90 @@ public class FitUndergroundBuilding extends FitAnything {
     }
 
     private void fixWorldBounds(Location base, World world) {
+        double[] bounds = getWorldBounds(world);
+        if (bounds == null) return;
         double y = base.getY();
         double height = schematicClipboard.getRegion().getHeight();
         double offsetY = Math.abs(schematicOffset.getY());
 
-        double minY, maxY;
-        switch (world.getEnvironment()) {
-            case NORMAL:
-            case CUSTOM:
-                minY = DefaultConfig.getLowestYNormalCustom();
-                maxY = DefaultConfig.getHighestYNormalCustom();
-                break;
-            case NETHER:
-                minY = DefaultConfig.getLowestYNether();
-                maxY = DefaultConfig.getHighestYNether();
-                break;
-            case THE_END:
-                minY = DefaultConfig.getLowestYEnd();
-                maxY = DefaultConfig.getHighestYEnd();
-                break;
-            default:
-                return;
+        if (y - offsetY < bounds[0]) {
+            base.setY(bounds[0] + 1 + offsetY);
+        } else if (y + offsetY - height > bounds[1]) {
+            base.setY(bounds[1] - height + offsetY);
         }
+    }
 
-        if (y - offsetY < minY) {
-            base.setY(minY + 1 + offsetY);
-        } else if (y + offsetY - height > maxY) {
-            base.setY(maxY - height + offsetY);
-        }
+    /**
+     * @return The configured lowest and highest Y for structures of this environment, or null if there are none
+     */
+    private static double[] getWorldBounds(World world) {
+        return switch (world.getEnvironment()) {
+            case NORMAL, CUSTOM ->
+                    new double[]{DefaultConfig.getLowestYNormalCustom(), DefaultConfig.getHighestYNormalCustom()};
+            case NETHER -> new double[]{DefaultConfig.getLowestYNether(), DefaultConfig.getHighestYNether()};
+            case THE_END -> new double[]{DefaultConfig.getLowestYEnd(), DefaultConfig.getHighestYEnd()};
+            default -> null;
+        };
     }
 
+    /**
+     * Scores every scan grid aligned position within a chunk horizontally and {@link #SEARCH_HEIGHT} blocks vertically
+     * of the base, using one {@link SolidGrid} for the whole neighbourhood. The score is the same solid sample ratio
+     * as an underground {@link com.magmaguy.betterstructures.buildingfitter.util.TerrainAdequacy} scan; ties go to the
+     * position closest to the base.
+     */
     private void searchOptimalPlacement(Location base, World world) {
-        chunkScan(base, 0, 0);
-        if (highestScore >= 90) return;
-
-        for (int x = -searchRadius; x <= searchRadius; x++) {
-            for (int z = -searchRadius; z <= searchRadius; z++) {
-                if (x == 0 && z == 0) continue;
-                chunkScan(base, x, z);
-                if (highestScore >= 90) return;
+        FitProfile fitProfile = getFitProfile();
+        int samplesX = (fitProfile.getWidth() + scanStep - 1) / scanStep;
+        int samplesY = (fitProfile.getHeight() + scanStep - 1) / scanStep;
+        int samplesZ = (fitProfile.getDepth() + scanStep - 1) / scanStep;
+        int totalCount = samplesX * samplesY * samplesZ;
+        if (totalCount == 0) return;
+
+        int reachXZ = (searchRadius << 4) / scanStep;
+        int reachY = SEARCH_HEIGHT / scanStep;
+        int baseX = (int) Math.floor(base.getX() + schematicOffset.getX());
+        int baseY = (int) Math.floor(base.getY() + schematicOffset.getY());
+        int baseZ = (int) Math.floor(base.getZ() + schematicOffset.getZ());
+        SolidGrid solidGrid = SolidGrid.build(terrain,
+                baseX - reachXZ * scanStep, baseY - reachY * scanStep, baseZ - reachXZ * scanStep,
+                samplesX + 2 * reachXZ, samplesY + 2 * reachY, samplesZ + 2 * reachXZ, scanStep);
+
+        double[] bounds = getWorldBounds(world);
+        double height = schematicClipboard.getRegion().getHeight();
+        double offsetY = Math.abs(schematicOffset.getY());
+        boolean normal = world.getEnvironment() == World.Environment.NORMAL || world.getEnvironment() == World.Environment.CUSTOM;
+        double minScore = (world.getEnvironment() == World.Environment.NETHER) ? 50 : 70;
+        boolean found = false;
+        int bestDistance = Integer.MAX_VALUE;
+        int bestX = 0, bestY = 0, bestZ = 0;
+
+        for (int dy = -reachY; dy <= reachY; dy++) {
+            double y = base.getY() + dy * scanStep;
+            // The base itself was already placed within bounds, other levels may not leave them
+            if (dy != 0) {
+                if (bounds != null && (y - offsetY < bounds[0] || y + offsetY - height > bounds[1])) continue;
+                if (normal && (y < lowestY || y >= highestY)) continue;
+            }
+            for (int dx = -reachXZ; dx <= reachXZ; dx++) {
+                for (int dz = -reachXZ; dz <= reachXZ; dz++) {
+                    int solidCount = solidGrid.countSolid(dx + reachXZ, dy + reachY, dz + reachXZ, samplesX, samplesY, samplesZ);
+                    double score = 100.0 - ((totalCount - solidCount) * 100.0) / totalCount;
+                    if (score < minScore) continue;
+                    int distance = dx * dx + dy * dy + dz * dz;
+                    if (score > highestScore || (score == highestScore && found && distance < bestDistance)) {
+                        found = true;
+                        highestScore = score;
+                        bestDistance = distance;
+                        bestX = dx;
+                        bestY = dy;
+                        bestZ = dz;
+                    }
+                }
             }
         }
-    }
 
-    private void chunkScan(Location base, int cx, int cz) {
-        World world = base.getWorld();
-        workLoc.setWorld(world);
-        workLoc.setX(base.getX() + (cx << 4));
-        workLoc.setY(base.getY());
-        workLoc.setZ(base.getZ() + (cz << 4));
-
-        double score = TerrainAdequacy.scan(scanStep, schematicClipboard, workLoc, schematicOffset, TerrainAdequacy.ScanType.UNDERGROUND);
-        double minScore = (world.getEnvironment() == World.Environment.NETHER) ? 50 : 70;
-
-        if (score < minScore) return;
-
-        if (score > highestScore) {
-            highestScore = score;
-            location = workLoc.clone(); // only clone when storing
-        }
+        if (found)
+            location = base.clone().add(bestX * scanStep, bestY * scanStep, bestZ * scanStep);
     }
 }
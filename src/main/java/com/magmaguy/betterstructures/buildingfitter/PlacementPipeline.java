@@ -0,0 +1,254 @@
+package com.magmaguy.betterstructures.buildingfitter;
+
+import com.magmaguy.betterstructures.MetadataHandler;
+import com.magmaguy.betterstructures.buildingfitter.util.ChunkSnapshotRegion;
+import com.magmaguy.betterstructures.buildingfitter.util.FitUndergroundDeepBuilding;
+import com.magmaguy.betterstructures.buildingfitter.util.TerrainSample;
+import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
+import com.magmaguy.betterstructures.placement.FootprintIndex;
+import com.magmaguy.betterstructures.schematics.SchematicContainer;
+import com.magmaguy.betterstructures.util.WorldEditUtils;
+import com.magmaguy.magmacore.util.Logger;
+import com.sk89q.worldedit.extent.clipboard.Clipboard;
+import org.bukkit.Bukkit;
+import org.bukkit.Chunk;
+import org.bukkit.util.Vector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * Staged structure placement.
+ * <p>
+ * 1. Main thread: captures a {@link ChunkSnapshotRegion} around the new chunk, shared by every structure type as one {@link TerrainSample}.<br>
+ * 2. Worker pool: picks the schematic and scores the candidate locations against the snapshots, fanning the candidates of
+ * a search out to a shared evaluation pool.<br>
+ * 3. Main thread: pastes the winning location.
+ */
+public class PlacementPipeline {
+    //Chunk radius that still covers the furthest SEARCH_PATTERN offset of surface builds
+    private static final int SURFACE_SEARCH_SPAN = 32;
+    //Every other fitter searches the neighbouring chunks
+    private static final int DEFAULT_SEARCH_SPAN = 16;
+    //17x17 chunks, the snapshots are taken on the main thread so this can't grow without bound
+    static final int MAX_CAPTURE_RADIUS = 8;
+    private static final Map<GeneratorConfigFields.StructureType, Integer> CAPTURE_RADIUS_CACHE = new ConcurrentHashMap<>();
+    private static final AtomicInteger PENDING_FITS = new AtomicInteger();
+    private static ExecutorService executor = null;
+    private static ForkJoinPool evaluationPool = null;
+
+    private PlacementPipeline() {
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null || executor.isShutdown()) {
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            AtomicInteger threadCounter = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "BetterStructures-Fitter-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    private static synchronized ForkJoinPool getEvaluationPool() {
+        if (evaluationPool == null || evaluationPool.isShutdown()) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            evaluationPool = new ForkJoinPool(threads, pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("BetterStructures-Evaluator-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+        }
+        return evaluationPool;
+    }
+
+    /**
+     * Scores independent candidates in parallel. The scorer must only read shared state, callers then walk the scores
+     * in candidate order so that the pick is the same as the one of a serial search.
+     *
+     * @param count  Amount of candidates
+     * @param scorer Scores the candidate at an index
+     * @return The score of every candidate, left at 0 for the ones that didn't get scored because of a shutdown
+     */
+    public static double[] evaluate(int count, IntToDoubleFunction scorer) {
+        double[] scores = new double[count];
+        List<Callable<Double>> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            tasks.add(() -> scores[index] = scorer.applyAsDouble(index));
+        }
+        List<Future<Double>> futures;
+        try {
+            futures = getEvaluationPool().invokeAll(tasks);
+        } catch (RejectedExecutionException exception) {
+            //Happens while the plugin is shutting down
+            return scores;
+        }
+        for (Future<Double> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                return scores;
+            } catch (ExecutionException exception) {
+                throw new RuntimeException(exception.getCause());
+            } catch (CancellationException exception) {
+                return scores;
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Captures the terrain around the chunk and queues the structure types for off-thread fitting.
+     * Must be called from the main thread.
+     *
+     * @param chunk          Freshly generated chunk
+     * @param structureTypes Structure types whose grid position matched this chunk
+     */
+    public static void submit(Chunk chunk, List<GeneratorConfigFields.StructureType> structureTypes) {
+        if (structureTypes.isEmpty()) return;
+        TerrainSample terrain = new TerrainSample(ChunkSnapshotRegion.capture(chunk, getCaptureRadius(structureTypes)));
+        PENDING_FITS.incrementAndGet();
+        try {
+            getExecutor().execute(() -> {
+                try {
+                    fit(terrain, structureTypes);
+                } finally {
+                    PENDING_FITS.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            //Happens while the plugin is shutting down, the chunk simply doesn't get a structure
+            PENDING_FITS.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return Amount of chunks that were submitted but whose fitting hasn't finished yet
+     */
+    public static int getPendingFits() {
+        return Math.max(0, PENDING_FITS.get());
+    }
+
+    private static void fit(TerrainSample terrain, List<GeneratorConfigFields.StructureType> structureTypes) {
+        for (GeneratorConfigFields.StructureType structureType : structureTypes) {
+            FitAnything fitAnything;
+            try {
+                fitAnything = fit(terrain, structureType);
+            } catch (Exception exception) {
+                Logger.warn("Failed to fit " + structureType + " structure at chunk " + terrain.getCenterChunkX() + ", " + terrain.getCenterChunkZ() + "!");
+                exception.printStackTrace();
+                continue;
+            }
+            if (fitAnything == null || fitAnything.getLocation() == null) continue;
+            //Reads the registry here rather than when the paste checks it on the main thread
+            FootprintIndex.preload(terrain.getWorld(), fitAnything.toPlacedStructure());
+            if (!MetadataHandler.PLUGIN.isEnabled()) return;
+            Bukkit.getScheduler().runTask(MetadataHandler.PLUGIN, fitAnything::pasteBestFit);
+        }
+    }
+
+    /**
+     * Runs the fitter of a structure type. Does not paste anything and is safe to call off the main thread.
+     *
+     * @param terrain       Terrain around the anchor chunk
+     * @param structureType Structure type
+     * @return The fit, whose location is null if no good spot was found, or null if the type has no fitter
+     */
+    public static FitAnything fit(TerrainSample terrain, GeneratorConfigFields.StructureType structureType) {
+        return switch (structureType) {
+            case SURFACE -> new FitSurfaceBuilding(terrain);
+            case UNDERGROUND_SHALLOW -> FitUndergroundShallowBuilding.fit(terrain);
+            case UNDERGROUND_DEEP -> FitUndergroundDeepBuilding.fit(terrain);
+            case SKY -> new FitAirBuilding(terrain);
+            case LIQUID_SURFACE -> new FitLiquidBuilding(terrain);
+            default -> null;
+        };
+    }
+
+    /**
+     * Gets the radius, in chunks, that the footprints of a structure type can reach from the chunk that anchors them.
+     * This is based on the largest schematic for the type and on how far the fitter searches around the anchor, capped
+     * at {@link #MAX_CAPTURE_RADIUS}, see {@link #warnOversizedSchematics()}.
+     *
+     * @param structureType Structure type
+     * @return Capture radius in chunks
+     */
+    public static int getCaptureRadius(GeneratorConfigFields.StructureType structureType) {
+        return CAPTURE_RADIUS_CACHE.computeIfAbsent(structureType, type -> {
+            int radius = 0;
+            for (SchematicContainer schematicContainer : SchematicContainer.getSchematics().get(type))
+                radius = Math.max(radius, getRequiredRadius(type, schematicContainer));
+            return Math.min(MAX_CAPTURE_RADIUS, radius);
+        });
+    }
+
+    /**
+     * @return Radius, in chunks, that the footprint of a schematic can reach from its anchor chunk, uncapped
+     */
+    private static int getRequiredRadius(GeneratorConfigFields.StructureType structureType, SchematicContainer schematicContainer) {
+        Clipboard clipboard = schematicContainer.getClipboard();
+        Vector offset = WorldEditUtils.getSchematicOffset(clipboard);
+        int reach = (int) Math.max(Math.abs(offset.getX()), Math.abs(offset.getX() + clipboard.getDimensions().x()));
+        reach = Math.max(reach, (int) Math.max(Math.abs(offset.getZ()), Math.abs(offset.getZ() + clipboard.getDimensions().z())));
+        int span = structureType == GeneratorConfigFields.StructureType.SURFACE ? SURFACE_SEARCH_SPAN : DEFAULT_SEARCH_SPAN;
+        //The anchor sits in the middle of its chunk, hence the extra 8 blocks
+        return (8 + span + reach + 15) >> 4;
+    }
+
+    /**
+     * Warns about the schematics whose footprint reaches past the captured terrain. Terrain outside of the capture
+     * reads as void, which the fitters reject, so those schematics score badly and rarely get placed.
+     */
+    public static void warnOversizedSchematics() {
+        for (GeneratorConfigFields.StructureType structureType : SchematicContainer.getSchematics().keySet())
+            for (SchematicContainer schematicContainer : SchematicContainer.getSchematics().get(structureType)) {
+                int radius = getRequiredRadius(structureType, schematicContainer);
+                if (radius <= MAX_CAPTURE_RADIUS) continue;
+                Logger.warn("Schematic " + schematicContainer.getClipboardFilename() + " is too large to be fitted as a " +
+                        structureType + " structure: it needs the terrain " + radius + " chunks around its anchor but only " +
+                        MAX_CAPTURE_RADIUS + " chunks are sampled. It will rarely or never get placed.");
+            }
+    }
+
+    /**
+     * @return The largest capture radius of the structure types
+     */
+    public static int getCaptureRadius(List<GeneratorConfigFields.StructureType> structureTypes) {
+        int radius = 0;
+        for (GeneratorConfigFields.StructureType structureType : structureTypes)
+            radius = Math.max(radius, getCaptureRadius(structureType));
+        return radius;
+    }
+
+    public static void clearCaches() {
+        CAPTURE_RADIUS_CACHE.clear();
+    }
+
+    public static synchronized void shutdown() {
+        if (executor != null) executor.shutdownNow();
+        executor = null;
+        if (evaluationPool != null) evaluationPool.shutdownNow();
+        evaluationPool = null;
+        PENDING_FITS.set(0);
+        clearCaches();
+    }
+}
@@ -0,0 +1,134 @@
+package com.magmaguy.betterstructures.buildingfitter.util;
+
+import lombok.Getter;
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Biome;
+
+/**
+ * Immutable square of chunk snapshots centered on a freshly generated chunk.
+ * Captured on the main thread, then read from the fitter worker threads instead of the live Block API.
+ * Blocks that fall outside of the captured chunks read as VOID_AIR, which every fitter already treats as a bad fit.
+ */
+public class ChunkSnapshotRegion implements TerrainSource {
+    @Getter
+    private final World world;
+    @Getter
+    private final World.Environment environment;
+    @Getter
+    private final int minHeight;
+    @Getter
+    private final int maxHeight;
+    @Getter
+    private final int centerChunkX;
+    @Getter
+    private final int centerChunkZ;
+    @Getter
+    private final int radius;
+    private final int diameter;
+    private final ChunkSnapshot[] snapshots;
+
+    private ChunkSnapshotRegion(World world, int centerChunkX, int centerChunkZ, int radius) {
+        this.world = world;
+        this.environment = world.getEnvironment();
+        this.minHeight = world.getMinHeight();
+        this.maxHeight = world.getMaxHeight();
+        this.centerChunkX = centerChunkX;
+        this.centerChunkZ = centerChunkZ;
+        this.radius = radius;
+        this.diameter = radius * 2 + 1;
+        this.snapshots = new ChunkSnapshot[diameter * diameter];
+    }
+
+    /**
+     * Captures the center chunk and every neighbour within the radius that is loaded. Nothing gets loaded or generated
+     * here, callers wait for the footprint with {@link #isFootprintLoaded(World, int, int, int)} so that the neighbours
+     * are there. Must run on the main thread.
+     *
+     * @param center The chunk the structure is anchored to
+     * @param radius Radius, in chunks, of the neighbourhood that the footprints may reach
+     * @return The captured region
+     */
+    public static ChunkSnapshotRegion capture(Chunk center, int radius) {
+        World world = center.getWorld();
+        ChunkSnapshotRegion region = new ChunkSnapshotRegion(world, center.getX(), center.getZ(), radius);
+        for (int dx = -radius; dx <= radius; dx++)
+            for (int dz = -radius; dz <= radius; dz++) {
+                int chunkX = center.getX() + dx;
+                int chunkZ = center.getZ() + dz;
+                Chunk chunk;
+                if (dx == 0 && dz == 0) chunk = center;
+                else if (world.isChunkLoaded(chunkX, chunkZ)) chunk = world.getChunkAt(chunkX, chunkZ);
+                else continue;
+                region.snapshots[region.index(dx, dz)] = chunk.getChunkSnapshot(true, true, false);
+            }
+        return region;
+    }
+
+    /**
+     * @return True if the chunk and every neighbour within the radius are loaded, so that a capture sees all of them
+     */
+    public static boolean isFootprintLoaded(World world, int centerChunkX, int centerChunkZ, int radius) {
+        for (int dx = -radius; dx <= radius; dx++)
+            for (int dz = -radius; dz <= radius; dz++)
+                if (!world.isChunkLoaded(centerChunkX + dx, centerChunkZ + dz)) return false;
+        return true;
+    }
+
+    private int index(int dx, int dz) {
+        return (dx + radius) * diameter + (dz + radius);
+    }
+
+    private ChunkSnapshot snapshotAt(int blockX, int blockZ) {
+        int dx = (blockX >> 4) - centerChunkX;
+        int dz = (blockZ >> 4) - centerChunkZ;
+        if (dx < -radius || dx > radius || dz < -radius || dz > radius) return null;
+        return snapshots[index(dx, dz)];
+    }
+
+    /**
+     * @return True if the column at these block coordinates was captured
+     */
+    @Override
+    public boolean isCaptured(int blockX, int blockZ) {
+        return snapshotAt(blockX, blockZ) != null;
+    }
+
+    /**
+     * Equivalent of {@link World#getBlockAt(int, int, int)}.getType() for the captured region.
+     *
+     * @return The material, or VOID_AIR if the block is outside of the captured region or the world height
+     */
+    @Override
+    public Material getType(int blockX, int blockY, int blockZ) {
+        if (blockY < minHeight || blockY >= maxHeight) return Material.VOID_AIR;
+        ChunkSnapshot snapshot = snapshotAt(blockX, blockZ);
+        if (snapshot == null) return Material.VOID_AIR;
+        return snapshot.getBlockType(blockX & 15, blockY, blockZ & 15);
+    }
+
+    /**
+     * Equivalent of {@link World#getHighestBlockYAt(int, int)} for the captured region.
+     *
+     * @return The highest block Y, or Integer.MIN_VALUE if the column was not captured
+     */
+    @Override
+    public int getHighestBlockYAt(int blockX, int blockZ) {
+        ChunkSnapshot snapshot = snapshotAt(blockX, blockZ);
+        if (snapshot == null) return Integer.MIN_VALUE;
+        return snapshot.getHighestBlockYAt(blockX & 15, blockZ & 15);
+    }
+
+    /**
+     * @return The biome at these coordinates, or null if the column was not captured
+     */
+    @Override
+    public Biome getBiome(int blockX, int blockY, int blockZ) {
+        ChunkSnapshot snapshot = snapshotAt(blockX, blockZ);
+        if (snapshot == null) return null;
+        blockY = Math.max(minHeight, Math.min(maxHeight - 1, blockY));
+        return snapshot.getBiome(blockX & 15, blockY, blockZ & 15);
+    }
+}
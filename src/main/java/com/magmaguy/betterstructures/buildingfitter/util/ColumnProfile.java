@@ -0,0 +1,163 @@
+package com.magmaguy.betterstructures.buildingfitter.util;
+
+import java.util.Arrays;
+
+/**
+ * Run-length encoded {@link TerrainSample} flags of one block column, built once and shared by every vertical search
+ * of the column. Blocks below and above the world read as void, as two unbounded runs.
+ */
+public class ColumnProfile {
+    //How many non-matching blocks a streak can swallow before it ends
+    private static final int STREAK_TOLERANCE = 3;
+    private static final int UNBOUNDED = 1 << 30;
+    private final int minY;
+    private final int maxY;
+    private final byte voidFlags;
+    private final int[] runStarts;
+    private final byte[] runFlags;
+    private final int runCount;
+
+    private ColumnProfile(int minY, int maxY, byte voidFlags, int[] runStarts, byte[] runFlags, int runCount) {
+        this.minY = minY;
+        this.maxY = maxY;
+        this.voidFlags = voidFlags;
+        this.runStarts = runStarts;
+        this.runFlags = runFlags;
+        this.runCount = runCount;
+    }
+
+    static ColumnProfile build(TerrainSample terrain, int blockX, int blockZ, byte voidFlags) {
+        int minY = terrain.getMinHeight();
+        int maxY = terrain.getMaxHeight();
+        int[] starts = new int[16];
+        byte[] flags = new byte[16];
+        int count = 0;
+        for (int y = minY; y < maxY; y++) {
+            byte blockFlags = terrain.getFlags(blockX, y, blockZ);
+            if (count > 0 && flags[count - 1] == blockFlags) continue;
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                flags = Arrays.copyOf(flags, count * 2);
+            }
+            starts[count] = y;
+            flags[count] = blockFlags;
+            count++;
+        }
+        return new ColumnProfile(minY, maxY, voidFlags, starts, flags, count);
+    }
+
+    /**
+     * @return Index of the run holding the block, -1 below the world and the run count above it
+     */
+    public int runIndex(int blockY) {
+        if (blockY < minY) return -1;
+        if (blockY >= maxY) return runCount;
+        int low = 0;
+        int high = runCount - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (runStarts[middle] <= blockY) low = middle;
+            else high = middle - 1;
+        }
+        return low;
+    }
+
+    public int getRunStart(int runIndex) {
+        if (runIndex < 0) return -UNBOUNDED;
+        if (runIndex >= runCount) return maxY;
+        return runStarts[runIndex];
+    }
+
+    /**
+     * @return First Y past the run
+     */
+    public int getRunEnd(int runIndex) {
+        if (runIndex < 0) return minY;
+        if (runIndex >= runCount) return UNBOUNDED;
+        return runIndex + 1 < runCount ? runStarts[runIndex + 1] : maxY;
+    }
+
+    public byte getRunFlags(int runIndex) {
+        if (runIndex < 0 || runIndex >= runCount) return voidFlags;
+        return runFlags[runIndex];
+    }
+
+    public byte getFlags(int blockY) {
+        return getRunFlags(runIndex(blockY));
+    }
+
+    /**
+     * @return Lowest Y of the block's stretch of blocks that all do or all don't have one of the flags of the mask
+     */
+    public int stretchStart(int blockY, byte mask) {
+        int index = runIndex(blockY);
+        boolean matches = (getRunFlags(index) & mask) != 0;
+        while (index >= 0 && ((getRunFlags(index - 1) & mask) != 0) == matches) index--;
+        return getRunStart(index);
+    }
+
+    /**
+     * @return First Y past the block's stretch of blocks that all do or all don't have one of the flags of the mask
+     */
+    public int stretchEnd(int blockY, byte mask) {
+        int index = runIndex(blockY);
+        boolean matches = (getRunFlags(index) & mask) != 0;
+        while (index < runCount && ((getRunFlags(index + 1) & mask) != 0) == matches) index++;
+        return getRunEnd(index);
+    }
+
+    /**
+     * Walks the column looking for a streak of blocks with one of the flags of the mask, a run at a time. A streak
+     * goes on through up to 3 other blocks and ends on the next one, or right away on void or bedrock.
+     *
+     * @param mask           Flags the streak is made of
+     * @param from           First Y of the walk
+     * @param to             Y the walk stops at, exclusive
+     * @param direction      1 to walk up, -1 to walk down
+     * @param breakLength    Length at which an ending streak stops the walk
+     * @param absoluteLength True to measure the streak length as an absolute value
+     * @param lastOnEnter    True if the first block of a streak also counts as its last block
+     * @return The first and last Y of the streak the walk stopped on, which stay at 0 if never set, or null if void or
+     * bedrock ended a streak that was too short
+     */
+    public int[] findStreak(byte mask, int from, int to, int direction, int breakLength, boolean absoluteLength, boolean lastOnEnter) {
+        int first = 0;
+        int last = 0;
+        int tolerance = STREAK_TOLERANCE;
+        boolean inStreak = false;
+        int y = from;
+        while (direction > 0 ? y < to : y > to) {
+            int index = runIndex(y);
+            //Last block of the run in walk order, without leaving the walk
+            int runLast = direction > 0 ? Math.min(getRunEnd(index) - 1, to - 1) : Math.max(getRunStart(index), to + 1);
+            int length = Math.abs(runLast - y) + 1;
+            byte flags = getRunFlags(index);
+            if ((flags & mask) != 0) {
+                if (!inStreak) {
+                    inStreak = true;
+                    first = y;
+                    if (lastOnEnter || length > 1) last = runLast;
+                } else {
+                    last = runLast;
+                }
+            } else if (inStreak) {
+                boolean terminal = (flags & (TerrainSample.VOID | TerrainSample.BEDROCK)) != 0;
+                int swallowed = terminal ? 0 : Math.min(tolerance, length);
+                if (swallowed > 0) {
+                    tolerance -= swallowed;
+                    last = y + direction * (swallowed - 1);
+                }
+                if (swallowed < length) {
+                    //The streak ends on the next block of this run
+                    inStreak = false;
+                    int streakLength = absoluteLength ? Math.abs(last - first) : last - first;
+                    if (streakLength >= breakLength) break;
+                    if (terminal) return null;
+                    tolerance = STREAK_TOLERANCE;
+                }
+            }
+            y = runLast + direction;
+        }
+        return new int[]{first, last};
+    }
+}
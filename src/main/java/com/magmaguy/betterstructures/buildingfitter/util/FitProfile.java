@@ -0,0 +1,155 @@
+package com.magmaguy.betterstructures.buildingfitter.util;
+
+import com.sk89q.worldedit.bukkit.BukkitAdapter;
+import com.sk89q.worldedit.extent.clipboard.Clipboard;
+import com.sk89q.worldedit.math.BlockVector3;
+import lombok.Getter;
+import org.bukkit.Material;
+
+/**
+ * Sample points that {@link TerrainAdequacy} scores a schematic at, compiled once per schematic and scan step.
+ * Each sample keeps its offset from the schematic corner and the class of the schematic block there, so scoring a
+ * candidate location only reads primitive arrays and the {@link TerrainSample}.
+ * <p>
+ * Samples are ordered floor layer and footprint perimeter first, since that is where bad locations fail, which lets
+ * bounded scans give up after only a few samples.
+ */
+public class FitProfile {
+    //Scan step used by every fitter
+    public static final int DEFAULT_SCAN_STEP = 3;
+    public static final byte AIR = 0;
+    public static final byte SOLID = 1;
+    public static final byte LIQUID = 2;
+    public static final byte OTHER = 3;
+    //Quarter turns around the Y axis a schematic can be fitted at
+    public static final int ROTATIONS = 4;
+    @Getter
+    private final int width;
+    @Getter
+    private final int height;
+    @Getter
+    private final int depth;
+    @Getter
+    private final int scanStep;
+    final int[] offsetX;
+    final int[] offsetY;
+    final int[] offsetZ;
+    final byte[] classes;
+
+    private FitProfile(int width, int height, int depth, int scanStep) {
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.scanStep = scanStep;
+        int samples = ceilDiv(width, scanStep) * ceilDiv(height, scanStep) * ceilDiv(depth, scanStep);
+        offsetX = new int[samples];
+        offsetY = new int[samples];
+        offsetZ = new int[samples];
+        classes = new byte[samples];
+    }
+
+    /**
+     * Samples the schematic every scanStep blocks on each axis.
+     *
+     * @param clipboard Schematic
+     * @param scanStep  Distance between samples
+     * @return The profile
+     */
+    public static FitProfile compile(Clipboard clipboard, int scanStep) {
+        BlockVector3 dimensions = clipboard.getDimensions();
+        FitProfile fitProfile = new FitProfile(dimensions.x(), dimensions.y(), dimensions.z(), scanStep);
+        int lastX = Math.max(0, (fitProfile.width - 1) / scanStep * scanStep);
+        int lastZ = Math.max(0, (fitProfile.depth - 1) / scanStep * scanStep);
+        int i = 0;
+        //Fills the samples priority by priority: floor perimeter, rest of the floor, walls, then the inside
+        for (int priority = 0; priority < 4; priority++)
+            for (int x = 0; x < fitProfile.width; x += scanStep)
+                for (int y = 0; y < fitProfile.height; y += scanStep)
+                    for (int z = 0; z < fitProfile.depth; z += scanStep) {
+                        boolean perimeter = x == 0 || z == 0 || x == lastX || z == lastZ;
+                        if (priorityOf(y == 0, perimeter) != priority) continue;
+                        //Same clipboard coordinates the adequacy scan has always read
+                        Material material = BukkitAdapter.adapt(clipboard.getBlock(BlockVector3.at(x, y, z)).getBlockType());
+                        fitProfile.offsetX[i] = x;
+                        fitProfile.offsetY[i] = y;
+                        fitProfile.offsetZ[i] = z;
+                        fitProfile.classes[i] = classOf(material);
+                        i++;
+                    }
+        return fitProfile;
+    }
+
+    /**
+     * Turns a profile around the Y axis, the same way a WorldEdit rotateY transform of -90 degrees per quarter turn
+     * turns the schematic blocks. Sample order is kept, so the floor perimeter still comes first.
+     *
+     * @param fitProfile   Profile of the unrotated schematic
+     * @param quarterTurns Quarter turns, from 0 to 3
+     * @return The rotated profile
+     */
+    public static FitProfile rotate(FitProfile fitProfile, int quarterTurns) {
+        boolean swapped = (quarterTurns & 1) != 0;
+        FitProfile rotated = new FitProfile(
+                swapped ? fitProfile.depth : fitProfile.width,
+                fitProfile.height,
+                swapped ? fitProfile.width : fitProfile.depth,
+                fitProfile.scanStep);
+        for (int i = 0; i < fitProfile.size(); i++) {
+            int x = fitProfile.offsetX[i];
+            int z = fitProfile.offsetZ[i];
+            rotated.offsetX[i] = rotateX(x, z, fitProfile.width, fitProfile.depth, quarterTurns);
+            rotated.offsetY[i] = fitProfile.offsetY[i];
+            rotated.offsetZ[i] = rotateZ(x, z, fitProfile.width, fitProfile.depth, quarterTurns);
+            rotated.classes[i] = fitProfile.classes[i];
+        }
+        return rotated;
+    }
+
+    /**
+     * @return X, from the corner of the rotated schematic, of a position given from the corner of the unrotated one
+     */
+    public static int rotateX(int x, int z, int width, int depth, int quarterTurns) {
+        return switch (quarterTurns & 3) {
+            case 1 -> depth - 1 - z;
+            case 2 -> width - 1 - x;
+            case 3 -> z;
+            default -> x;
+        };
+    }
+
+    /**
+     * @return Z, from the corner of the rotated schematic, of a position given from the corner of the unrotated one
+     */
+    public static int rotateZ(int x, int z, int width, int depth, int quarterTurns) {
+        return switch (quarterTurns & 3) {
+            case 1 -> x;
+            case 2 -> depth - 1 - z;
+            case 3 -> width - 1 - x;
+            default -> z;
+        };
+    }
+
+    private static int priorityOf(boolean floor, boolean perimeter) {
+        if (floor) return perimeter ? 0 : 1;
+        return perimeter ? 2 : 3;
+    }
+
+    private static byte classOf(Material material) {
+        if (material == null) return OTHER;
+        if (material.isAir()) return AIR;
+        if (material == Material.WATER || material == Material.LAVA) return LIQUID;
+        if (material.isSolid()) return SOLID;
+        return OTHER;
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return value <= 0 ? 0 : (value + divisor - 1) / divisor;
+    }
+
+    /**
+     * @return Amount of sample points
+     */
+    public int size() {
+        return classes.length;
+    }
+}
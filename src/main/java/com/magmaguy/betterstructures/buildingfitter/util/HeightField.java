@@ -0,0 +1,203 @@
+package com.magmaguy.betterstructures.buildingfitter.util;
+
+import lombok.Getter;
+
+/**
+ * Surface heights of a grid of columns spaced scanStep blocks apart, read once from the {@link TerrainSample} and
+ * kept in primitive arrays.
+ * <p>
+ * Summed-area tables give the height sum, liquid count and invalid count of any rectangle of the grid in constant
+ * time, and per-row sparse tables give its minimum and maximum height in one lookup per row. Grid coordinates are
+ * relative to the first column of the field.
+ */
+public class HeightField {
+    public static final int INVALID = Integer.MIN_VALUE;
+    @Getter
+    private final int originX;
+    @Getter
+    private final int originZ;
+    @Getter
+    private final int step;
+    private final int sizeX;
+    private final int sizeZ;
+    private final int[] heights;
+    private final boolean[] liquid;
+    private final long[] heightSums;
+    private final int[] liquidCounts;
+    private final int[] validCounts;
+    private final int[][] rowMinimums;
+    private final int[][] rowMaximums;
+
+    private HeightField(int originX, int originZ, int step, int sizeX, int sizeZ) {
+        this.originX = originX;
+        this.originZ = originZ;
+        this.step = step;
+        this.sizeX = sizeX;
+        this.sizeZ = sizeZ;
+        heights = new int[sizeX * sizeZ];
+        liquid = new boolean[sizeX * sizeZ];
+        heightSums = new long[(sizeX + 1) * (sizeZ + 1)];
+        liquidCounts = new int[(sizeX + 1) * (sizeZ + 1)];
+        validCounts = new int[(sizeX + 1) * (sizeZ + 1)];
+        int levels = 32 - Integer.numberOfLeadingZeros(sizeZ);
+        rowMinimums = new int[levels][];
+        rowMaximums = new int[levels][];
+    }
+
+    /**
+     * Reads the surface of every column from minX, minZ to maxX, maxZ, in steps of step blocks.
+     *
+     * @param terrain Terrain to read
+     * @param minX    First column X, which sets the X phase of the grid
+     * @param minZ    First column Z, which sets the Z phase of the grid
+     * @param maxX    Last column X, inclusive
+     * @param maxZ    Last column Z, inclusive
+     * @param step    Distance between columns
+     * @return The field
+     */
+    public static HeightField build(TerrainSample terrain, int minX, int minZ, int maxX, int maxZ, int step) {
+        HeightField heightField = new HeightField(minX, minZ, step,
+                Math.max(0, (maxX - minX) / step + 1), Math.max(0, (maxZ - minZ) / step + 1));
+        heightField.fill(terrain);
+        return heightField;
+    }
+
+    private void fill(TerrainSample terrain) {
+        int tableWidth = sizeZ + 1;
+        for (int i = 0; i < sizeX; i++)
+            for (int j = 0; j < sizeZ; j++) {
+                int blockX = originX + i * step;
+                int blockZ = originZ + j * step;
+                int y = Topology.getHighestBlockYAt(terrain, blockX, blockZ);
+                int index = i * sizeZ + j;
+                heights[index] = y;
+                boolean valid = y != INVALID;
+                liquid[index] = valid && terrain.isLiquid(blockX, y, blockZ);
+
+                int table = (i + 1) * tableWidth + (j + 1);
+                heightSums[table] = (valid ? y : 0) + heightSums[table - 1] + heightSums[table - tableWidth] - heightSums[table - tableWidth - 1];
+                liquidCounts[table] = (liquid[index] ? 1 : 0) + liquidCounts[table - 1] + liquidCounts[table - tableWidth] - liquidCounts[table - tableWidth - 1];
+                validCounts[table] = (valid ? 1 : 0) + validCounts[table - 1] + validCounts[table - tableWidth] - validCounts[table - tableWidth - 1];
+            }
+
+        if (rowMinimums.length == 0) return;
+        rowMinimums[0] = heights;
+        rowMaximums[0] = heights;
+        for (int level = 1; level < rowMinimums.length; level++) {
+            int[] previousMinimums = rowMinimums[level - 1];
+            int[] previousMaximums = rowMaximums[level - 1];
+            int[] minimums = new int[heights.length];
+            int[] maximums = new int[heights.length];
+            int half = 1 << (level - 1);
+            for (int i = 0; i < sizeX; i++)
+                for (int j = 0; j + (1 << level) <= sizeZ; j++) {
+                    int index = i * sizeZ + j;
+                    minimums[index] = Math.min(previousMinimums[index], previousMinimums[index + half]);
+                    maximums[index] = Math.max(previousMaximums[index], previousMaximums[index + half]);
+                }
+            rowMinimums[level] = minimums;
+            rowMaximums[level] = maximums;
+        }
+    }
+
+    /**
+     * @return Grid X of the column, which has to be on the grid
+     */
+    public int toGridX(int blockX) {
+        return Math.floorDiv(blockX - originX, step);
+    }
+
+    /**
+     * @return Grid Z of the column, which has to be on the grid
+     */
+    public int toGridZ(int blockZ) {
+        return Math.floorDiv(blockZ - originZ, step);
+    }
+
+    private boolean isInside(int gridX, int gridZ) {
+        return gridX >= 0 && gridX < sizeX && gridZ >= 0 && gridZ < sizeZ;
+    }
+
+    /**
+     * @return The surface Y, or {@link #INVALID} if the column was not captured or is outside of the field
+     */
+    public int getHeight(int gridX, int gridZ) {
+        return isInside(gridX, gridZ) ? heights[gridX * sizeZ + gridZ] : INVALID;
+    }
+
+    /**
+     * @return True if the surface block of the column is water or lava
+     */
+    public boolean isLiquid(int gridX, int gridZ) {
+        return isInside(gridX, gridZ) && liquid[gridX * sizeZ + gridZ];
+    }
+
+    private long rectangleSum(long[] table, int minGridX, int minGridZ, int maxGridX, int maxGridZ) {
+        int tableWidth = sizeZ + 1;
+        return table[(maxGridX + 1) * tableWidth + (maxGridZ + 1)] - table[minGridX * tableWidth + (maxGridZ + 1)]
+                - table[(maxGridX + 1) * tableWidth + minGridZ] + table[minGridX * tableWidth + minGridZ];
+    }
+
+    private int rectangleSum(int[] table, int minGridX, int minGridZ, int maxGridX, int maxGridZ) {
+        int tableWidth = sizeZ + 1;
+        return table[(maxGridX + 1) * tableWidth + (maxGridZ + 1)] - table[minGridX * tableWidth + (maxGridZ + 1)]
+                - table[(maxGridX + 1) * tableWidth + minGridZ] + table[minGridX * tableWidth + minGridZ];
+    }
+
+    private boolean isRectangleInside(int minGridX, int minGridZ, int maxGridX, int maxGridZ) {
+        return minGridX >= 0 && minGridZ >= 0 && maxGridX < sizeX && maxGridZ < sizeZ && minGridX <= maxGridX && minGridZ <= maxGridZ;
+    }
+
+    /**
+     * @return Amount of columns of the rectangle that are invalid, columns outside of the field included
+     */
+    public int countInvalid(int minGridX, int minGridZ, int maxGridX, int maxGridZ) {
+        int area = Math.max(0, maxGridX - minGridX + 1) * Math.max(0, maxGridZ - minGridZ + 1);
+        int clampedMinX = Math.max(0, minGridX);
+        int clampedMinZ = Math.max(0, minGridZ);
+        int clampedMaxX = Math.min(sizeX - 1, maxGridX);
+        int clampedMaxZ = Math.min(sizeZ - 1, maxGridZ);
+        if (!isRectangleInside(clampedMinX, clampedMinZ, clampedMaxX, clampedMaxZ)) return area;
+        return area - rectangleSum(validCounts, clampedMinX, clampedMinZ, clampedMaxX, clampedMaxZ);
+    }
+
+    /**
+     * Only meaningful for rectangles that are inside of the field, like the ones below.
+     */
+    public int countLiquid(int minGridX, int minGridZ, int maxGridX, int maxGridZ) {
+        return rectangleSum(liquidCounts, minGridX, minGridZ, maxGridX, maxGridZ);
+    }
+
+    /**
+     * @return Sum of the heights of the rectangle, which must be inside of the field and free of invalid columns
+     */
+    public long sumHeights(int minGridX, int minGridZ, int maxGridX, int maxGridZ) {
+        return rectangleSum(heightSums, minGridX, minGridZ, maxGridX, maxGridZ);
+    }
+
+    /**
+     * @return Lowest height of the rectangle, which must be inside of the field and free of invalid columns
+     */
+    public int minHeight(int minGridX, int minGridZ, int maxGridX, int maxGridZ) {
+        int level = 31 - Integer.numberOfLeadingZeros(maxGridZ - minGridZ + 1);
+        int[] minimums = rowMinimums[level];
+        int secondStart = maxGridZ - (1 << level) + 1;
+        int min = Integer.MAX_VALUE;
+        for (int i = minGridX; i <= maxGridX; i++)
+            min = Math.min(min, Math.min(minimums[i * sizeZ + minGridZ], minimums[i * sizeZ + secondStart]));
+        return min;
+    }
+
+    /**
+     * @return Highest height of the rectangle, which must be inside of the field and free of invalid columns
+     */
+    public int maxHeight(int minGridX, int minGridZ, int maxGridX, int maxGridZ) {
+        int level = 31 - Integer.numberOfLeadingZeros(maxGridZ - minGridZ + 1);
+        int[] maximums = rowMaximums[level];
+        int secondStart = maxGridZ - (1 << level) + 1;
+        int max = Integer.MIN_VALUE;
+        for (int i = minGridX; i <= maxGridX; i++)
+            max = Math.max(max, Math.max(maximums[i * sizeZ + minGridZ], maximums[i * sizeZ + secondStart]));
+        return max;
+    }
+}
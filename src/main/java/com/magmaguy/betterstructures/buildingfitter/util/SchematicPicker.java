@@ -4,25 +4,144 @@ import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
 import com.magmaguy.betterstructures.schematics.SchematicContainer;
 import com.magmaguy.betterstructures.util.WeighedProbability;
 import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.block.Biome;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
+/**
+ * Picks schematics by weight. The schematics that are valid for a structure type, world, environment, biome and band
+ * of Y levels are filtered once, the first time that combination comes up, and kept with an alias table so that
+ * drawing from them is O(1). The index is dropped with the schematics on reload.
+ */
 public class SchematicPicker {
-    public static SchematicContainer pick(Location naiveAnchorLocation, GeneratorConfigFields.StructureType structureType) {
-        List<SchematicContainer> schematicContainers = new ArrayList<>(SchematicContainer.getSchematics().get(structureType));
-        if (schematicContainers.isEmpty()) return null;
-        schematicContainers.removeIf(schematicContainer ->
-                !schematicContainer.isValidWorld(naiveAnchorLocation.getWorld().getName()) ||
-                        !schematicContainer.isValidEnvironment(naiveAnchorLocation.getWorld().getEnvironment()) ||
-                        !schematicContainer.isValidBiome(naiveAnchorLocation.getBlock().getBiome()) ||
-                        !schematicContainer.isValidYLevel(naiveAnchorLocation.getBlockY()));
-        if (schematicContainers.isEmpty()) return null;
-        HashMap<Integer, Double> probabilities = new HashMap<>();
-        for (int i = 0; i < schematicContainers.size(); i++)
-            probabilities.put(i, schematicContainers.get(i).getSchematicConfigField().getWeight());
-        SchematicContainer schematicContainer = schematicContainers.get(WeighedProbability.pickWeightedProbability(probabilities));
-        return schematicContainer;
+    //Draws from the alias table that can land on already drawn schematics before falling back to a linear draw
+    private static final int MAX_REJECTED_DRAWS = 16;
+    private static final PickerEntry EMPTY_ENTRY = new PickerEntry(new SchematicContainer[0], new double[0], new WeighedProbability.AliasTable(new double[0]));
+    private static final Map<PickerKey, PickerEntry> INDEX = new ConcurrentHashMap<>();
+    private static final Map<GeneratorConfigFields.StructureType, int[]> Y_BANDS = new ConcurrentHashMap<>();
+
+    private SchematicPicker() {
+    }
+
+    /**
+     * Draws up to maxCandidates different schematics by weight, without replacement. Trying them in the returned order
+     * until one fits keeps the weighted distribution among the schematics that can fit the terrain.
+     *
+     * @param terrain             Terrain around the anchor
+     * @param naiveAnchorLocation Location used for the biome, world, environment and Y level checks
+     * @param structureType       Structure type
+     * @param maxCandidates       Maximum amount of schematics to draw
+     * @return The schematics in the order they were drawn, empty if none are valid here
+     */
+    public static List<SchematicContainer> pickCandidates(TerrainSample terrain, Location naiveAnchorLocation, GeneratorConfigFields.StructureType structureType, int maxCandidates) {
+        PickerEntry entry = getEntry(terrain, naiveAnchorLocation, structureType);
+        int first = entry.aliasTable().pick();
+        if (first < 0) return List.of();
+        if (maxCandidates == 1) return List.of(entry.schematics()[first]);
+
+        int[] drawn = new int[Math.min(maxCandidates, entry.schematics().length)];
+        drawn[0] = first;
+        int drawnCount = 1;
+        while (drawnCount < drawn.length) {
+            int index = drawAnother(entry, drawn, drawnCount);
+            if (index < 0) break;
+            drawn[drawnCount++] = index;
+        }
+        List<SchematicContainer> candidates = new ArrayList<>(drawnCount);
+        for (int i = 0; i < drawnCount; i++) candidates.add(entry.schematics()[drawn[i]]);
+        return candidates;
+    }
+
+    /**
+     * Draws a schematic that wasn't drawn yet. Redrawing from the alias table until a new one comes up follows the
+     * same distribution as drawing from the remaining weights, which is what the linear fallback does.
+     */
+    private static int drawAnother(PickerEntry entry, int[] drawn, int drawnCount) {
+        for (int attempt = 0; attempt < MAX_REJECTED_DRAWS; attempt++) {
+            int index = entry.aliasTable().pick();
+            if (!contains(drawn, drawnCount, index)) return index;
+        }
+        double remainingWeight = 0.0;
+        for (int i = 0; i < entry.weights().length; i++)
+            if (!contains(drawn, drawnCount, i)) remainingWeight += entry.weights()[i];
+        if (remainingWeight <= 0.0) return -1;
+        double random = ThreadLocalRandom.current().nextDouble(remainingWeight);
+        int last = -1;
+        for (int i = 0; i < entry.weights().length; i++) {
+            if (contains(drawn, drawnCount, i) || entry.weights()[i] <= 0.0) continue;
+            last = i;
+            random -= entry.weights()[i];
+            if (random < 0.0) return i;
+        }
+        return last;
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++)
+            if (values[i] == value) return true;
+        return false;
+    }
+
+    private static PickerEntry getEntry(TerrainSample terrain, Location naiveAnchorLocation, GeneratorConfigFields.StructureType structureType) {
+        Biome biome = terrain.getBiome(naiveAnchorLocation.getBlockX(), naiveAnchorLocation.getBlockY(), naiveAnchorLocation.getBlockZ());
+        if (biome == null) return EMPTY_ENTRY;
+        World world = naiveAnchorLocation.getWorld();
+        int y = naiveAnchorLocation.getBlockY();
+        PickerKey key = new PickerKey(structureType, world.getName(), world.getEnvironment(), biome, getYBand(structureType, y));
+        //Every Y level of a band is valid for the same schematics, so the Y of whichever location fills the entry works
+        return INDEX.computeIfAbsent(key, k -> buildEntry(k, y));
+    }
+
+    private static PickerEntry buildEntry(PickerKey key, int y) {
+        List<SchematicContainer> schematicContainers = new ArrayList<>();
+        for (SchematicContainer schematicContainer : SchematicContainer.getSchematics().get(key.structureType()))
+            if (schematicContainer.isValidWorld(key.worldName()) &&
+                    schematicContainer.isValidEnvironment(key.environment()) &&
+                    schematicContainer.isValidBiome(key.biome()) &&
+                    schematicContainer.isValidYLevel(y))
+                schematicContainers.add(schematicContainer);
+        if (schematicContainers.isEmpty()) return EMPTY_ENTRY;
+        double[] weights = new double[schematicContainers.size()];
+        for (int i = 0; i < weights.length; i++)
+            weights[i] = schematicContainers.get(i).getSchematicConfigField().getWeight();
+        return new PickerEntry(schematicContainers.toArray(new SchematicContainer[0]), weights, new WeighedProbability.AliasTable(weights));
+    }
+
+    /**
+     * Splits the Y levels at every bound of the valid Y ranges of the schematics of the type.
+     *
+     * @return Index of the band the Y level is in
+     */
+    private static int getYBand(GeneratorConfigFields.StructureType structureType, int y) {
+        int[] bounds = Y_BANDS.computeIfAbsent(structureType, type -> {
+            TreeSet<Integer> boundSet = new TreeSet<>();
+            for (SchematicContainer schematicContainer : SchematicContainer.getSchematics().get(type)) {
+                boundSet.add(schematicContainer.getGeneratorConfigFields().getLowestYLevel());
+                boundSet.add(schematicContainer.getGeneratorConfigFields().getHighestYLevel() + 1);
+            }
+            return boundSet.stream().mapToInt(Integer::intValue).toArray();
+        });
+        int index = Arrays.binarySearch(bounds, y);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    public static void shutdown() {
+        INDEX.clear();
+        Y_BANDS.clear();
+    }
+
+    private record PickerKey(GeneratorConfigFields.StructureType structureType, String worldName,
+                             World.Environment environment, Biome biome, int yBand) {
+    }
+
+    private record PickerEntry(SchematicContainer[] schematics, double[] weights,
+                               WeighedProbability.AliasTable aliasTable) {
     }
 }
@@ -0,0 +1,94 @@
+package com.magmaguy.betterstructures.buildingfitter.util;
+
+import lombok.Getter;
+
+/**
+ * Summed-volume table of solid blocks on a 3D grid of blocks spaced step blocks apart, read once from the
+ * {@link TerrainSample}. Counting the solid samples of any box of the grid takes eight lookups, so a fitter can score
+ * every grid-aligned position around an anchor for the price of reading the neighbourhood once.
+ * <p>
+ * Blocks outside of the captured terrain or of the world height count as not solid, like in {@link TerrainAdequacy}.
+ */
+public class SolidGrid {
+    @Getter
+    private final int originX;
+    @Getter
+    private final int originY;
+    @Getter
+    private final int originZ;
+    @Getter
+    private final int step;
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+    private final int[] solidCounts;
+
+    private SolidGrid(int originX, int originY, int originZ, int step, int sizeX, int sizeY, int sizeZ) {
+        this.originX = originX;
+        this.originY = originY;
+        this.originZ = originZ;
+        this.step = step;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.solidCounts = new int[(sizeX + 1) * (sizeY + 1) * (sizeZ + 1)];
+    }
+
+    /**
+     * Reads the grid.
+     *
+     * @param terrain Terrain to read
+     * @param originX X of the first grid block
+     * @param originY Y of the first grid block
+     * @param originZ Z of the first grid block
+     * @param sizeX   Grid blocks along X
+     * @param sizeY   Grid blocks along Y
+     * @param sizeZ   Grid blocks along Z
+     * @param step    Distance between grid blocks
+     * @return The grid
+     */
+    public static SolidGrid build(TerrainSample terrain, int originX, int originY, int originZ, int sizeX, int sizeY, int sizeZ, int step) {
+        SolidGrid solidGrid = new SolidGrid(originX, originY, originZ, step, Math.max(0, sizeX), Math.max(0, sizeY), Math.max(0, sizeZ));
+        solidGrid.fill(terrain);
+        return solidGrid;
+    }
+
+    private int tableIndex(int x, int y, int z) {
+        return (x * (sizeY + 1) + y) * (sizeZ + 1) + z;
+    }
+
+    private void fill(TerrainSample terrain) {
+        int strideX = (sizeY + 1) * (sizeZ + 1);
+        int strideY = sizeZ + 1;
+        for (int x = 1; x <= sizeX; x++)
+            for (int y = 1; y <= sizeY; y++)
+                for (int z = 1; z <= sizeZ; z++) {
+                    int solid = terrain.isSolid(originX + (x - 1) * step, originY + (y - 1) * step, originZ + (z - 1) * step) ? 1 : 0;
+                    int index = tableIndex(x, y, z);
+                    solidCounts[index] = solid
+                            + solidCounts[index - strideX] + solidCounts[index - strideY] + solidCounts[index - 1]
+                            - solidCounts[index - strideX - strideY] - solidCounts[index - strideX - 1] - solidCounts[index - strideY - 1]
+                            + solidCounts[index - strideX - strideY - 1];
+                }
+    }
+
+    /**
+     * Counts the solid blocks of a box of the grid. The box must be inside of the grid.
+     *
+     * @param gridX  First grid X of the box
+     * @param gridY  First grid Y of the box
+     * @param gridZ  First grid Z of the box
+     * @param countX Grid blocks along X
+     * @param countY Grid blocks along Y
+     * @param countZ Grid blocks along Z
+     * @return Amount of solid blocks
+     */
+    public int countSolid(int gridX, int gridY, int gridZ, int countX, int countY, int countZ) {
+        int x0 = gridX, y0 = gridY, z0 = gridZ;
+        int x1 = gridX + countX, y1 = gridY + countY, z1 = gridZ + countZ;
+        return solidCounts[tableIndex(x1, y1, z1)]
+                - solidCounts[tableIndex(x0, y1, z1)] - solidCounts[tableIndex(x1, y0, z1)] - solidCounts[tableIndex(x1, y1, z0)]
+                + solidCounts[tableIndex(x0, y0, z1)] + solidCounts[tableIndex(x0, y1, z0)] + solidCounts[tableIndex(x1, y0, z0)]
+                - solidCounts[tableIndex(x0, y0, z0)];
+    }
+}
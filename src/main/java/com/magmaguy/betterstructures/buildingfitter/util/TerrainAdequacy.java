@@ -1,12 +1,6 @@
 package com.magmaguy.betterstructures.buildingfitter.util;
 
-import com.magmaguy.betterstructures.util.SurfaceMaterials;
-import com.sk89q.worldedit.bukkit.BukkitAdapter;
-import com.sk89q.worldedit.extent.clipboard.Clipboard;
-import com.sk89q.worldedit.math.BlockVector3;
 import org.bukkit.Location;
-import org.bukkit.Material;
-import org.bukkit.block.Block;
 import org.bukkit.util.Vector;
 
 public class TerrainAdequacy {
@@ -17,86 +11,44 @@ public class TerrainAdequacy {
         LIQUID
     }
 
-    public static double scan(int scanStep, Clipboard schematicClipboard, Location iteratedLocation, Vector schematicOffset, ScanType scanType) {
-        BlockVector3 dimensions = schematicClipboard.getDimensions();
-        int width = dimensions.x();
-        int depth = dimensions.z();
-        int height = dimensions.y();
-
-        int floorY = iteratedLocation.getBlockY() - 1;
-
-        int totalCount = 0;
-        int negativeCount = 0;
-
-        // Reusable location object to avoid excessive object creation
-        Location projectedLocation = iteratedLocation.clone();
-
-        for (int x = 0; x < width; x += scanStep) {
-            for (int y = 0; y < height; y += scanStep) {
-                for (int z = 0; z < depth; z += scanStep) {
-                    Material schematicMaterial = BukkitAdapter.adapt(schematicClipboard.getBlock(BlockVector3.at(x, y, z)).getBlockType());
-                    LocationProjector.project(projectedLocation, iteratedLocation, new Vector(x, y, z), schematicOffset);
-                    if (!isBlockAdequate(projectedLocation, schematicMaterial, floorY, scanType)) {
-                        negativeCount++;
-                    }
-                    totalCount++;
-                }
-            }
-        }
-
-        return 100.0 - (negativeCount * 100.0) / totalCount;
+    public static double scan(TerrainSample terrain, FitProfile fitProfile, Location iteratedLocation, Vector schematicOffset, ScanType scanType) {
+        return scan(terrain, fitProfile, iteratedLocation, schematicOffset, scanType, Double.NEGATIVE_INFINITY);
     }
 
-    // Alternative version with direct coordinate calculation for maximum performance
-    public static double scanOptimized(int scanStep, Clipboard schematicClipboard, Location iteratedLocation, Vector schematicOffset, ScanType scanType) {
-        BlockVector3 dimensions = schematicClipboard.getDimensions();
-        int width = dimensions.x();
-        int depth = dimensions.z();
-        int height = dimensions.y();
-
+    /**
+     * Scores a location, giving up as soon as the samples left can no longer lift the score above the bound.
+     * The samples of the {@link FitProfile} come floor and perimeter first, which is where bad spots usually fail.
+     *
+     * @param bound Score that the location has to beat to be of any use
+     * @return The score, or an upper bound of it that is not above the bound if the scan gave up early
+     */
+    public static double scan(TerrainSample terrain, FitProfile fitProfile, Location iteratedLocation, Vector schematicOffset, ScanType scanType, double bound) {
         int floorY = iteratedLocation.getBlockY() - 1;
-        double anchorX = iteratedLocation.getX();
-        double anchorY = iteratedLocation.getY();
-        double anchorZ = iteratedLocation.getZ();
-        double offsetX = schematicOffset.getX();
-        double offsetY = schematicOffset.getY();
-        double offsetZ = schematicOffset.getZ();
+        int baseX = (int) Math.floor(iteratedLocation.getX() + schematicOffset.getX());
+        int baseY = (int) Math.floor(iteratedLocation.getY() + schematicOffset.getY());
+        int baseZ = (int) Math.floor(iteratedLocation.getZ() + schematicOffset.getZ());
 
-        int totalCount = 0;
+        int totalCount = fitProfile.size();
         int negativeCount = 0;
 
-        // Single reusable location object
-        Location projectedLocation = new Location(iteratedLocation.getWorld(), 0, 0, 0);
-
-        for (int x = 0; x < width; x += scanStep) {
-            for (int y = 0; y < height; y += scanStep) {
-                for (int z = 0; z < depth; z += scanStep) {
-                    Material schematicMaterial = BukkitAdapter.adapt(
-                            schematicClipboard.getBlock(BlockVector3.at(x, y, z)).getBlockType());
-
-                    // Direct coordinate calculation - fastest option
-                    projectedLocation.setX(anchorX + offsetX + x);
-                    projectedLocation.setY(anchorY + offsetY + y);
-                    projectedLocation.setZ(anchorZ + offsetZ + z);
-
-                    if (!isBlockAdequate(projectedLocation, schematicMaterial, floorY, scanType)) {
-                        negativeCount++;
-                    }
-                    totalCount++;
-                }
+        for (int i = 0; i < totalCount; i++) {
+            int blockY = baseY + fitProfile.offsetY[i];
+            byte worldFlags = terrain.getFlags(baseX + fitProfile.offsetX[i], blockY, baseZ + fitProfile.offsetZ[i]);
+            if (!isBlockAdequate(worldFlags, blockY, fitProfile.classes[i], floorY, scanType)) {
+                negativeCount++;
+                // Best case for the rest of the scan is that every remaining sample is adequate
+                double upperBound = 100.0 - (negativeCount * 100.0) / totalCount;
+                if (upperBound <= bound) return upperBound;
             }
         }
 
         return 100.0 - (negativeCount * 100.0) / totalCount;
     }
 
-    private static boolean isBlockAdequate(Location projectedWorldLocation, Material schematicBlockMaterial, int floorHeight, ScanType scanType) {
-        Block worldBlock = projectedWorldLocation.getBlock();
-        Material worldMaterial = worldBlock.getType();
-        int blockY = projectedWorldLocation.getBlockY();
+    private static boolean isBlockAdequate(byte worldFlags, int blockY, byte schematicBlockClass, int floorHeight, ScanType scanType) {
 
         // Early return for void air
-        if (worldMaterial == Material.VOID_AIR) {
+        if ((worldFlags & TerrainSample.VOID) != 0) {
             return false;
         }
 
@@ -104,23 +56,23 @@ public class TerrainAdequacy {
             case SURFACE:
                 if (blockY > floorHeight) {
                     // For air level - check if world block is ignorable OR schematic block is not air
-                    return SurfaceMaterials.ignorable(worldMaterial) || !schematicBlockMaterial.isAir();
+                    return (worldFlags & TerrainSample.IGNORABLE) != 0 || schematicBlockClass != FitProfile.AIR;
                 } else {
                     // For underground level - world block should not be air
-                    return !worldMaterial.isAir();
+                    return (worldFlags & TerrainSample.AIR) == 0;
                 }
             case AIR:
-                return worldMaterial.isAir();
+                return (worldFlags & TerrainSample.AIR) != 0;
             case UNDERGROUND:
-                return worldMaterial.isSolid();
+                return (worldFlags & TerrainSample.SOLID) != 0;
             case LIQUID:
                 if (blockY > floorHeight) {
                     // For air level
-                    return worldMaterial.isAir();
+                    return (worldFlags & TerrainSample.AIR) != 0;
                 } else {
                     // For underwater level - only check liquid if schematic expects liquid
-                    if (schematicBlockMaterial == Material.WATER || schematicBlockMaterial == Material.LAVA) {
-                        return worldBlock.isLiquid();
+                    if (schematicBlockClass == FitProfile.LIQUID) {
+                        return (worldFlags & TerrainSample.LIQUID) != 0;
                     }
                     return true;
                 }
@@ -128,4 +80,4 @@ public class TerrainAdequacy {
                 return false;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,227 @@
+package com.magmaguy.betterstructures.buildingfitter.util;
+
+import com.magmaguy.betterstructures.util.SurfaceMaterials;
+import lombok.Getter;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Biome;
+
+/**
+ * Terrain around a new chunk, sampled once and shared by every fitter and by the {@link SchematicPicker}.
+ * <p>
+ * Wraps a {@link TerrainSource}, usually the captured {@link ChunkSnapshotRegion}, with lazily filled caches: block classification flags per 16x16x16
+ * section, a heightmap per chunk, a {@link ColumnProfile} per column and biomes per 4x4x4 cell, which is the resolution Minecraft stores them at.
+ * Only the parts that the fitters actually read get filled. Cache entries are deterministic, so threads that race
+ * on filling the same entry simply compute the same value twice. This only holds because every cache reads as "not
+ * filled yet" until something was written to it: arrays are published without synchronization, so another thread can
+ * see a new array before any write made to it after its allocation, and only sees the zeroes it was allocated with for
+ * sure. Flags and heights are encoded so that 0 means not sampled yet, and {@link ColumnProfile} only has final
+ * fields, so another thread never sees one half built.
+ */
+public class TerrainSample {
+    public static final byte SOLID = 1;
+    public static final byte LIQUID = 1 << 1;
+    public static final byte AIR = 1 << 2;
+    public static final byte IGNORABLE = 1 << 3;
+    public static final byte VOID = 1 << 4;
+    public static final byte BEDROCK = 1 << 5;
+    //Marks filled entries, so that 0 can stand for not sampled yet
+    private static final byte SAMPLED = (byte) 0x80;
+    private static final byte[] FLAG_TABLE = buildFlagTable();
+    private static final byte VOID_FLAGS = flagsOf(Material.VOID_AIR);
+    //Heights are stored relative to this value, so that the 0 a new heightmap starts with stands for not sampled yet
+    private static final int UNKNOWN_HEIGHT = Integer.MAX_VALUE;
+    @Getter
+    private final TerrainSource source;
+    private final int radius;
+    private final int diameter;
+    private final int sectionCount;
+    private final int biomeLayers;
+    private final byte[][] sections;
+    private final int[][] heightmaps;
+    private final Biome[][] biomes;
+    private final ColumnProfile[][] columns;
+
+    public TerrainSample(TerrainSource source) {
+        this.source = source;
+        this.radius = source.getRadius();
+        this.diameter = radius * 2 + 1;
+        this.sectionCount = (source.getMaxHeight() - source.getMinHeight() + 15) >> 4;
+        this.biomeLayers = (source.getMaxHeight() - source.getMinHeight() + 3) >> 2;
+        this.sections = new byte[diameter * diameter * sectionCount][];
+        this.heightmaps = new int[diameter * diameter][];
+        this.biomes = new Biome[diameter * diameter][];
+        this.columns = new ColumnProfile[diameter * diameter][];
+    }
+
+    /**
+     * Classifies a material into the flags used by the fitters.
+     */
+    public static byte flagsOf(Material material) {
+        return FLAG_TABLE[material.ordinal()];
+    }
+
+    private static byte[] buildFlagTable() {
+        Material[] materials = Material.values();
+        byte[] table = new byte[materials.length];
+        for (Material material : materials) {
+            byte materialFlags = SurfaceMaterials.flagsOf(material);
+            byte flags = 0;
+            if ((materialFlags & SurfaceMaterials.SOLID) != 0) flags |= SOLID;
+            if ((materialFlags & SurfaceMaterials.LIQUID) != 0) flags |= LIQUID;
+            if ((materialFlags & SurfaceMaterials.AIR) != 0) flags |= AIR;
+            if ((materialFlags & SurfaceMaterials.IGNORABLE) != 0) flags |= IGNORABLE;
+            if (material == Material.VOID_AIR) flags |= VOID;
+            if (material == Material.BEDROCK) flags |= BEDROCK;
+            table[material.ordinal()] = flags;
+        }
+        return table;
+    }
+
+    public World getWorld() {
+        return source.getWorld();
+    }
+
+    public World.Environment getEnvironment() {
+        return source.getEnvironment();
+    }
+
+    public int getMinHeight() {
+        return source.getMinHeight();
+    }
+
+    public int getMaxHeight() {
+        return source.getMaxHeight();
+    }
+
+    public int getCenterChunkX() {
+        return source.getCenterChunkX();
+    }
+
+    public int getCenterChunkZ() {
+        return source.getCenterChunkZ();
+    }
+
+    public boolean isCaptured(int blockX, int blockZ) {
+        return source.isCaptured(blockX, blockZ);
+    }
+
+    /**
+     * @return The material, or VOID_AIR if the block is outside of the sample or of the world height
+     */
+    public Material getType(int blockX, int blockY, int blockZ) {
+        return source.getType(blockX, blockY, blockZ);
+    }
+
+    private int chunkIndex(int blockX, int blockZ) {
+        int dx = (blockX >> 4) - source.getCenterChunkX();
+        int dz = (blockZ >> 4) - source.getCenterChunkZ();
+        if (dx < -radius || dx > radius || dz < -radius || dz > radius) return -1;
+        return (dx + radius) * diameter + (dz + radius);
+    }
+
+    /**
+     * @return The flags of the block, see {@link #flagsOf(Material)}
+     */
+    public byte getFlags(int blockX, int blockY, int blockZ) {
+        if (blockY < source.getMinHeight() || blockY >= source.getMaxHeight()) return VOID_FLAGS;
+        int chunkIndex = chunkIndex(blockX, blockZ);
+        if (chunkIndex < 0) return VOID_FLAGS;
+        int relativeY = blockY - source.getMinHeight();
+        int sectionIndex = chunkIndex * sectionCount + (relativeY >> 4);
+        byte[] section = sections[sectionIndex];
+        if (section == null) {
+            section = new byte[4096];
+            sections[sectionIndex] = section;
+        }
+        int index = ((relativeY & 15) << 8) | ((blockZ & 15) << 4) | (blockX & 15);
+        byte flags = section[index];
+        if (flags == 0) {
+            flags = (byte) (flagsOf(source.getType(blockX, blockY, blockZ)) | SAMPLED);
+            section[index] = flags;
+        }
+        return flags;
+    }
+
+    public boolean isSolid(int blockX, int blockY, int blockZ) {
+        return (getFlags(blockX, blockY, blockZ) & SOLID) != 0;
+    }
+
+    public boolean isLiquid(int blockX, int blockY, int blockZ) {
+        return (getFlags(blockX, blockY, blockZ) & LIQUID) != 0;
+    }
+
+    public boolean isAir(int blockX, int blockY, int blockZ) {
+        return (getFlags(blockX, blockY, blockZ) & AIR) != 0;
+    }
+
+    public boolean isIgnorable(int blockX, int blockY, int blockZ) {
+        return (getFlags(blockX, blockY, blockZ) & IGNORABLE) != 0;
+    }
+
+    public boolean isVoid(int blockX, int blockY, int blockZ) {
+        return (getFlags(blockX, blockY, blockZ) & VOID) != 0;
+    }
+
+    /**
+     * @return The highest block Y, or Integer.MIN_VALUE if the column was not captured
+     */
+    public int getHighestBlockYAt(int blockX, int blockZ) {
+        int chunkIndex = chunkIndex(blockX, blockZ);
+        if (chunkIndex < 0) return Integer.MIN_VALUE;
+        int[] heightmap = heightmaps[chunkIndex];
+        if (heightmap == null) {
+            heightmap = new int[256];
+            heightmaps[chunkIndex] = heightmap;
+        }
+        int index = ((blockZ & 15) << 4) | (blockX & 15);
+        int encodedHeight = heightmap[index];
+        if (encodedHeight == 0) {
+            //Wraps around for Integer.MIN_VALUE, no real height is UNKNOWN_HEIGHT so none encodes to 0
+            encodedHeight = source.getHighestBlockYAt(blockX, blockZ) - UNKNOWN_HEIGHT;
+            heightmap[index] = encodedHeight;
+        }
+        return encodedHeight + UNKNOWN_HEIGHT;
+    }
+
+    /**
+     * @return The run-length encoded flags of the column, all void if the column was not captured
+     */
+    public ColumnProfile getColumn(int blockX, int blockZ) {
+        int chunkIndex = chunkIndex(blockX, blockZ);
+        if (chunkIndex < 0) return ColumnProfile.build(this, blockX, blockZ, (byte) (VOID_FLAGS | SAMPLED));
+        ColumnProfile[] chunkColumns = columns[chunkIndex];
+        if (chunkColumns == null) {
+            chunkColumns = new ColumnProfile[256];
+            columns[chunkIndex] = chunkColumns;
+        }
+        int index = ((blockZ & 15) << 4) | (blockX & 15);
+        ColumnProfile column = chunkColumns[index];
+        if (column == null) {
+            column = ColumnProfile.build(this, blockX, blockZ, (byte) (VOID_FLAGS | SAMPLED));
+            chunkColumns[index] = column;
+        }
+        return column;
+    }
+
+    /**
+     * @return The biome at these coordinates, or null if the column was not captured
+     */
+    public Biome getBiome(int blockX, int blockY, int blockZ) {
+        int chunkIndex = chunkIndex(blockX, blockZ);
+        if (chunkIndex < 0 || !source.isCaptured(blockX, blockZ)) return null;
+        Biome[] chunkBiomes = biomes[chunkIndex];
+        if (chunkBiomes == null) {
+            chunkBiomes = new Biome[16 * biomeLayers];
+            biomes[chunkIndex] = chunkBiomes;
+        }
+        blockY = Math.max(source.getMinHeight(), Math.min(source.getMaxHeight() - 1, blockY));
+        int index = (((blockY - source.getMinHeight()) >> 2) << 4) | (((blockZ >> 2) & 3) << 2) | ((blockX >> 2) & 3);
+        Biome biome = chunkBiomes[index];
+        if (biome == null) {
+            biome = source.getBiome(blockX, blockY, blockZ);
+            chunkBiomes[index] = biome;
+        }
+        return biome;
+    }
+}
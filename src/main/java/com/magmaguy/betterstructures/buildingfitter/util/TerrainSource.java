@@ -0,0 +1,48 @@
+package com.magmaguy.betterstructures.buildingfitter.util;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Biome;
+
+/**
+ * Read-only square of chunks centered on the chunk a structure is anchored to.
+ * Blocks outside of the captured chunks or of the world height read as VOID_AIR.
+ */
+public interface TerrainSource {
+    World getWorld();
+
+    World.Environment getEnvironment();
+
+    int getMinHeight();
+
+    int getMaxHeight();
+
+    int getCenterChunkX();
+
+    int getCenterChunkZ();
+
+    /**
+     * @return Radius of the square, in chunks
+     */
+    int getRadius();
+
+    /**
+     * @return True if the column at these block coordinates was captured
+     */
+    boolean isCaptured(int blockX, int blockZ);
+
+    /**
+     * @return The material, or VOID_AIR if the block is outside of the captured chunks or the world height
+     */
+    Material getType(int blockX, int blockY, int blockZ);
+
+    /**
+     * @return The highest block Y, or Integer.MIN_VALUE if the column was not captured
+     */
+    int getHighestBlockYAt(int blockX, int blockZ);
+
+    /**
+     * @return The biome at these coordinates, or null if the column was not captured
+     */
+    Biome getBiome(int blockX, int blockY, int blockZ);
+}
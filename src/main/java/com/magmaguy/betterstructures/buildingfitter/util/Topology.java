@@ -1,149 +1,138 @@
 package com.magmaguy.betterstructures.buildingfitter.util;
 
-import com.magmaguy.betterstructures.util.SurfaceMaterials;
-import com.sk89q.worldedit.extent.clipboard.Clipboard;
 import org.bukkit.Location;
-import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.util.Vector;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class Topology {
 
     private static final int MAX_HEIGHT_DIFF = 20;
     private static final int NETHER_SCAN_MIN_Y = 30;
     private static final int NETHER_SCAN_MAX_Y = 100;
 
-    public static double scan(double startingScore, int scanStep, Clipboard clipboard, Location origin, Vector offset) {
-        int width = clipboard.getDimensions().x();
-        int depth = clipboard.getDimensions().z();
-
-        // Preallocate exact expected capacity to prevent resizes
-        int estimatedSize = ((width / scanStep) + 1) * ((depth / scanStep) + 1);
-        List<Integer> heights = new ArrayList<>(estimatedSize);
-
-        double score = scanHighestLocations(width, depth, scanStep, origin, offset, heights, startingScore);
+    /**
+     * Scores how flat and dry the surface under a footprint is.
+     *
+     * @param heightField   Surface heights, on the same scan grid as the footprint samples
+     * @param startingScore Score before penalties
+     * @param width         Footprint width
+     * @param depth         Footprint depth
+     * @param origin        Paste location, its Y gets moved to the average surface height when the scan gets that far
+     * @param offset        Schematic offset
+     * @return The score
+     */
+    public static double scan(HeightField heightField, double startingScore, int width, int depth, Location origin, Vector offset) {
+        int step = heightField.getStep();
+        int minGridX = heightField.toGridX((int) Math.floor(origin.getX() + offset.getX()));
+        int minGridZ = heightField.toGridZ((int) Math.floor(origin.getZ() + offset.getZ()));
+        int maxGridX = minGridX + (width + step - 1) / step - 1;
+        int maxGridZ = minGridZ + (depth + step - 1) / step - 1;
+
+        double score = scanHighestLocations(heightField, width, depth, step, minGridX, minGridZ, maxGridX, maxGridZ, startingScore);
         if (score <= 75) return score;
 
-        if (hasExtremeHeightDifferences(heights)) return 0;
+        int samples = (maxGridX - minGridX + 1) * (maxGridZ - minGridZ + 1);
+        if (hasExtremeHeightDifferences(heightField, samples, minGridX, minGridZ, maxGridX, maxGridZ)) return 0;
 
-        int avgY = computeAverageHeight(heights, origin);
-        return applyHeightVariationPenalty(heights, avgY, score);
+        int avgY = computeAverageHeight(heightField, samples, minGridX, minGridZ, maxGridX, maxGridZ, origin);
+        return applyHeightVariationPenalty(heightField, samples, minGridX, minGridZ, maxGridX, maxGridZ, avgY, score);
     }
 
-    private static double scanHighestLocations(int width, int depth, int step, Location origin, Vector offset, List<Integer> heights, double score) {
-        World world = origin.getWorld();
+    private static double scanHighestLocations(HeightField heightField, int width, int depth, int step, int minGridX, int minGridZ, int maxGridX, int maxGridZ, double score) {
         int totalPoints = (width / step) * (depth / step);
         double penaltyPerPoint = 50.0 / totalPoints;
 
-        // Reusable objects
-        Location base = origin.clone();
-        Location loc = new Location(world, 0, 0, 0);
-        Vector delta = new Vector();
-
-        for (int x = 0; x < width; x += step) {
-            for (int z = 0; z < depth; z += step) {
-                delta.setX(x);
-                delta.setY(0);
-                delta.setZ(z);
-
-                LocationProjector.project(loc, base, delta, offset);
-                int y = getHighestBlockYAt(world, loc);
+        if (heightField.countInvalid(minGridX, minGridZ, maxGridX, maxGridZ) == 0) {
+            // Without invalid columns only the amount of liquid columns matters, not where they are
+            int liquidColumns = heightField.countLiquid(minGridX, minGridZ, maxGridX, maxGridZ);
+            for (int i = 0; i < liquidColumns; i++) {
+                score -= penaltyPerPoint;
+                if (score < 75) return score;
+            }
+            return score;
+        }
 
-                if (y == Integer.MIN_VALUE) return 0; // Invalid
-                Material type = world.getBlockAt(loc.getBlockX(), y, loc.getBlockZ()).getType();
+        // Invalid columns fail the scan unless the liquid penalty already did, which depends on the scan order
+        for (int gridX = minGridX; gridX <= maxGridX; gridX++) {
+            for (int gridZ = minGridZ; gridZ <= maxGridZ; gridZ++) {
+                if (heightField.getHeight(gridX, gridZ) == HeightField.INVALID) return 0; // Invalid
 
                 // Water/lava penalty
-                if (type == Material.WATER || type == Material.LAVA) {
+                if (heightField.isLiquid(gridX, gridZ)) {
                     score -= penaltyPerPoint;
                     if (score < 75) return score;
                 }
-
-                heights.add(y);
             }
         }
-        return score;
+        return 0;
     }
 
     /**
-     * Optimized: directly returns Y value (avoids new Location allocations)
+     * Surface Y used by the scans, Integer.MIN_VALUE if the column is not valid.
      */
-    private static int getHighestBlockYAt(World world, Location loc) {
-        if (world.getEnvironment() != World.Environment.NETHER) {
-            return world.getHighestBlockYAt(loc);
+    static int getHighestBlockYAt(TerrainSample terrain, int x, int z) {
+        if (terrain.getEnvironment() != World.Environment.NETHER) {
+            return terrain.getHighestBlockYAt(x, z);
         }
-        return getHighestBlockYAtNether(world, loc.getBlockX(), loc.getBlockZ());
+        return getHighestBlockYAtNether(terrain, x, z);
     }
 
     /**
      * Nether-specific terrain probing, returns surface Y or Integer.MIN_VALUE if not found.
      */
-    private static int getHighestBlockYAtNether(World world, int x, int z) {
-        // Middle starting point
+    private static int getHighestBlockYAtNether(TerrainSample terrain, int x, int z) {
+        if (!terrain.isCaptured(x, z)) return Integer.MIN_VALUE;
+        ColumnProfile column = terrain.getColumn(x, z);
+        // Middle starting point, only the tops of stretches of ground can be valid surfaces
         int y = 63;
-        Material initial = world.getBlockAt(x, y, z).getType();
-
-        if (SurfaceMaterials.ignorable(initial)) {
-            for (y = 63; y > NETHER_SCAN_MIN_Y; y--) {
-                if (isValidNetherSurface(world, x, y, z)) return y;
+        if ((column.getFlags(y) & TerrainSample.IGNORABLE) != 0) {
+            y = column.stretchStart(y, TerrainSample.IGNORABLE) - 1;
+            while (y > NETHER_SCAN_MIN_Y) {
+                if (isValidNetherSurface(column, y)) return y;
+                y = column.stretchStart(column.stretchStart(y, TerrainSample.IGNORABLE) - 1, TerrainSample.IGNORABLE) - 1;
             }
         } else {
-            for (y = 63; y < NETHER_SCAN_MAX_Y; y++) {
-                if (isValidNetherSurface(world, x, y, z)) return y;
+            y = column.stretchEnd(y, TerrainSample.IGNORABLE) - 1;
+            while (y < NETHER_SCAN_MAX_Y) {
+                if (isValidNetherSurface(column, y)) return y;
+                y = column.stretchEnd(column.stretchEnd(y + 1, TerrainSample.IGNORABLE), TerrainSample.IGNORABLE) - 1;
             }
         }
         return Integer.MIN_VALUE;
     }
 
-    private static boolean isValidNetherSurface(World world, int x, int y, int z) {
-        Material current = world.getBlockAt(x, y, z).getType();
-        Material above = world.getBlockAt(x, y + 1, z).getType();
-
-        // must be solid ground with air/ignorable above
-        if (SurfaceMaterials.ignorable(current) || !SurfaceMaterials.ignorable(above)) return false;
-
-        // ensure at least 10 blocks of air above
-        for (int i = y + 2; i < y + 12 && i <= 255; i++) {
-            if (!SurfaceMaterials.ignorable(world.getBlockAt(x, i, z).getType())) return false;
-        }
-        return true;
+    /**
+     * Checks a block that tops a stretch of ground for at least 10 blocks of air above it.
+     */
+    private static boolean isValidNetherSurface(ColumnProfile column, int y) {
+        int clearUntil = Math.max(y + 1, Math.min(y + 11, 255));
+        return column.stretchEnd(y + 1, TerrainSample.IGNORABLE) > clearUntil;
     }
 
-    private static boolean hasExtremeHeightDifferences(List<Integer> heights) {
-        if (heights.size() < 2) return false;
-
-        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
-        for (int h : heights) {
-            if (h < min) min = h;
-            if (h > max) max = h;
-        }
-        return (max - min) >= MAX_HEIGHT_DIFF;
+    private static boolean hasExtremeHeightDifferences(HeightField heightField, int samples, int minGridX, int minGridZ, int maxGridX, int maxGridZ) {
+        if (samples < 2) return false;
+        return heightField.maxHeight(minGridX, minGridZ, maxGridX, maxGridZ) - heightField.minHeight(minGridX, minGridZ, maxGridX, maxGridZ) >= MAX_HEIGHT_DIFF;
     }
 
-    private static int computeAverageHeight(List<Integer> heights, Location origin) {
-        long sum = 0;
-        for (int h : heights) sum += h;
-        int avg = (int) (sum / heights.size());
+    private static int computeAverageHeight(HeightField heightField, int samples, int minGridX, int minGridZ, int maxGridX, int maxGridZ, Location origin) {
+        int avg = (int) (heightField.sumHeights(minGridX, minGridZ, maxGridX, maxGridZ) / samples);
         origin.setY(avg + 1.0);
         return avg;
     }
 
-    private static double applyHeightVariationPenalty(List<Integer> heights, int avgY, double score) {
-        final int n = heights.size();
-        if (n == 0) return score;
+    private static double applyHeightVariationPenalty(HeightField heightField, int samples, int minGridX, int minGridZ, int maxGridX, int maxGridZ, int avgY, double score) {
+        final double maxImpact = score * 0.5 / samples; // 50% max penalty distributed evenly
 
-        final double maxImpact = score * 0.5 / n; // 50% max penalty distributed evenly
+        for (int gridX = minGridX; gridX <= maxGridX; gridX++) {
+            for (int gridZ = minGridZ; gridZ <= maxGridZ; gridZ++) {
+                int diff = Math.abs(heightField.getHeight(gridX, gridZ) - avgY);
+                if (diff < 3) continue;
 
-        for (int y : heights) {
-            int diff = Math.abs(y - avgY);
-            if (diff < 3) continue;
-
-            // Exponential penalty (clamped)
-            double penalty = (1 - diff * diff * 0.04) * maxImpact;
-            score -= penalty;
-            if (score < 85) return 0;
+                // Exponential penalty (clamped)
+                double penalty = (1 - diff * diff * 0.04) * maxImpact;
+                score -= penalty;
+                if (score < 85) return 0;
+            }
         }
         return score;
     }
@@ -0,0 +1,61 @@
+package com.magmaguy.betterstructures.commands;
+
+import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
+import com.magmaguy.betterstructures.placement.StructureCandidate;
+import com.magmaguy.betterstructures.placement.StructureLocator;
+import com.magmaguy.magmacore.command.AdvancedCommand;
+import com.magmaguy.magmacore.command.CommandData;
+import com.magmaguy.magmacore.command.SenderType;
+import com.magmaguy.magmacore.command.arguments.IntegerCommandArgument;
+import com.magmaguy.magmacore.command.arguments.ListStringCommandArgument;
+import com.magmaguy.magmacore.util.Logger;
+import org.bukkit.Chunk;
+import org.bukkit.entity.Player;
+
+import java.util.List;
+import java.util.Locale;
+
+public class LocateCommand extends AdvancedCommand {
+    private static final int MAX_RADIUS = 10000;
+    private static final int RESULTS = 5;
+
+    public LocateCommand() {
+        super(List.of("locate"));
+        addArgument("type", new ListStringCommandArgument(List.of(GeneratorConfigFields.StructureType.SURFACE.toString(), GeneratorConfigFields.StructureType.UNDERGROUND_SHALLOW.toString(), GeneratorConfigFields.StructureType.UNDERGROUND_DEEP.toString()), "<type>"));
+        addArgument("radius", new IntegerCommandArgument("<radius in chunks>"));
+        setUsage("/betterstructures locate <SURFACE/UNDERGROUND_SHALLOW/UNDERGROUND_DEEP> <radius in chunks>");
+        setPermission("betterstructures.*");
+        setDescription("Lists the nearest structure positions without loading any chunks.");
+        setSenderType(SenderType.PLAYER);
+    }
+
+    @Override
+    public void execute(CommandData commandData) {
+        Player player = commandData.getPlayerSender();
+        GeneratorConfigFields.StructureType structureType;
+        int radius;
+        try {
+            structureType = GeneratorConfigFields.StructureType.valueOf(commandData.getStringArgument("type"));
+            radius = Integer.parseInt(commandData.getStringArgument("radius"));
+        } catch (Exception exception) {
+            Logger.sendMessage(player, "Invalid structure type or radius!");
+            return;
+        }
+        if (radius < 0 || radius > MAX_RADIUS) {
+            Logger.sendMessage(player, "The radius must be between 0 and " + MAX_RADIUS + " chunks!");
+            return;
+        }
+
+        Chunk chunk = player.getLocation().getChunk();
+        List<StructureCandidate> candidates = StructureLocator.locate(player.getWorld(), structureType, chunk.getX(), chunk.getZ(), radius, RESULTS);
+        if (candidates.isEmpty()) {
+            Logger.sendMessage(player, "No " + structureType + " structure positions within " + radius + " chunks.");
+            return;
+        }
+        for (StructureCandidate candidate : candidates) {
+            int distance = (int) Math.round(Math.hypot(candidate.getChunkX() - chunk.getX(), candidate.getChunkZ() - chunk.getZ()));
+            Logger.sendMessage(player, structureType + " at x=" + candidate.getBlockX() + " z=" + candidate.getBlockZ() +
+                    " (" + distance + " chunks away, " + candidate.getStatus().toString().toLowerCase(Locale.ROOT) + ")");
+        }
+    }
+}
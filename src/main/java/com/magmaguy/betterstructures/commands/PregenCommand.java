@@ -0,0 +1,52 @@
+package com.magmaguy.betterstructures.commands;
+
+import com.magmaguy.betterstructures.config.ValidWorldsConfig;
+import com.magmaguy.betterstructures.placement.Pregenerator;
+import com.magmaguy.magmacore.command.AdvancedCommand;
+import com.magmaguy.magmacore.command.CommandData;
+import com.magmaguy.magmacore.command.arguments.IntegerCommandArgument;
+import com.magmaguy.magmacore.command.arguments.WorldCommandArgument;
+import com.magmaguy.magmacore.util.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+
+import java.util.List;
+
+public class PregenCommand extends AdvancedCommand {
+    public PregenCommand() {
+        super(List.of("pregen"));
+        addArgument("world", new WorldCommandArgument("<world>"));
+        addArgument("radius", new IntegerCommandArgument("<radius in chunks>"));
+        setUsage("/betterstructures pregen <world> <radius in chunks, 0 to stop>");
+        setPermission("betterstructures.*");
+        setDescription("Places structures around the world spawn ahead of time, generating only the chunks they need.");
+    }
+
+    @Override
+    public void execute(CommandData commandData) {
+        World world = Bukkit.getWorld(commandData.getStringArgument("world"));
+        int radius;
+        try {
+            radius = Integer.parseInt(commandData.getStringArgument("radius"));
+        } catch (Exception exception) {
+            Logger.sendMessage(commandData.getCommandSender(), "Invalid radius!");
+            return;
+        }
+        if (radius <= 0) {
+            if (Pregenerator.stop())
+                Logger.sendMessage(commandData.getCommandSender(), "Stopped the structure pregeneration.");
+            else
+                Logger.sendMessage(commandData.getCommandSender(), "No structure pregeneration is running.");
+            return;
+        }
+        if (world == null || !ValidWorldsConfig.isValidWorld(world)) {
+            Logger.sendMessage(commandData.getCommandSender(), "That world is not loaded or does not get BetterStructures structures!");
+            return;
+        }
+        if (!Pregenerator.start(world, radius, commandData.getCommandSender())) {
+            Logger.sendMessage(commandData.getCommandSender(), "A structure pregeneration is already running! Use a radius of 0 to stop it.");
+            return;
+        }
+        Logger.sendMessage(commandData.getCommandSender(), "Started the structure pregeneration of " + world.getName() + " with a radius of " + radius + " chunks. Progress is reported every 30 seconds.");
+    }
+}
@@ -0,0 +1,49 @@
+package com.magmaguy.betterstructures.commands;
+
+import com.magmaguy.betterstructures.config.ValidWorldsConfig;
+import com.magmaguy.betterstructures.placement.RetroGenerator;
+import com.magmaguy.magmacore.command.AdvancedCommand;
+import com.magmaguy.magmacore.command.CommandData;
+import com.magmaguy.magmacore.command.arguments.ListStringCommandArgument;
+import com.magmaguy.magmacore.command.arguments.WorldCommandArgument;
+import com.magmaguy.magmacore.util.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+
+import java.util.List;
+
+public class RetroGenCommand extends AdvancedCommand {
+    public RetroGenCommand() {
+        super(List.of("retrogen"));
+        addArgument("world", new WorldCommandArgument("<world>"));
+        addArgument("action", new ListStringCommandArgument(List.of("start", "stop"), "<start/stop>"));
+        setUsage("/betterstructures retrogen <world> <start/stop>");
+        setPermission("betterstructures.*");
+        setDescription("Places structures in the parts of a world that were generated before BetterStructures was installed.");
+    }
+
+    @Override
+    public void execute(CommandData commandData) {
+        if (commandData.getStringArgument("action").equalsIgnoreCase("stop")) {
+            if (RetroGenerator.stop())
+                Logger.sendMessage(commandData.getCommandSender(), "Stopped the structure retro-generation.");
+            else
+                Logger.sendMessage(commandData.getCommandSender(), "No structure retro-generation is running.");
+            return;
+        }
+        World world = Bukkit.getWorld(commandData.getStringArgument("world"));
+        if (world == null || !ValidWorldsConfig.isValidWorld(world)) {
+            Logger.sendMessage(commandData.getCommandSender(), "That world is not loaded or does not get BetterStructures structures!");
+            return;
+        }
+        if (RetroGenerator.isRunning()) {
+            Logger.sendMessage(commandData.getCommandSender(), "A structure retro-generation is already running! Stop it first.");
+            return;
+        }
+        if (!RetroGenerator.start(world, commandData.getCommandSender())) {
+            Logger.sendMessage(commandData.getCommandSender(), "That world has no region files to read!");
+            return;
+        }
+        Logger.sendMessage(commandData.getCommandSender(), "Started the structure retro-generation of " + world.getName() + ". Progress is reported every 30 seconds.");
+    }
+}
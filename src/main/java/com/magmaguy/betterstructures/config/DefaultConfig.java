@@ -1,10 +1,13 @@
 package com.magmaguy.betterstructures.config;
 
+import com.magmaguy.betterstructures.buildingfitter.ChunkScanQueue;
 import com.magmaguy.magmacore.config.ConfigurationEngine;
 import com.magmaguy.magmacore.config.ConfigurationFile;
+import com.magmaguy.magmacore.util.Logger;
 import lombok.Getter;
 
 import java.util.List;
+import java.util.Locale;
 
 public class DefaultConfig extends ConfigurationFile {
     @Getter
@@ -41,6 +44,29 @@ public class DefaultConfig extends ConfigurationFile {
     @Getter
     private static double percentageOfTickUsedForPasting = 0.2;
 
+    @Getter
+    private static double chunkScanMillisecondsPerTick;
+    @Getter
+    private static int chunkScanQueueMaxDepth;
+    @Getter
+    private static int chunkScanBacklogMaxSize;
+    @Getter
+    private static ChunkScanQueue.OverflowPolicy chunkScanOverflowPolicy;
+    @Getter
+    private static int chunkScanMsptCeiling;
+    @Getter
+    private static boolean preventStructureOverlap;
+    @Getter
+    private static int pregenChunksPerTick;
+    @Getter
+    private static int pregenMaxPendingPastes;
+    @Getter
+    private static int fitCandidates;
+    @Getter
+    private static boolean rotateStructures;
+    @Getter
+    private static boolean nativeStructurePasting;
+
     // Adding getters for the new distance and offset variables
     @Getter
     private static int distanceSurface;
@@ -108,6 +134,68 @@ public class DefaultConfig extends ConfigurationFile {
         setupDone = ConfigurationEngine.setBoolean(fileConfiguration, "setupDone", false);
         modularChunkPastingSpeed = ConfigurationEngine.setInt(fileConfiguration, "modularChunkPastingSpeed", 10);
         percentageOfTickUsedForPasting = ConfigurationEngine.setDouble(List.of("Sets the maximum percentage of a tick that BetterStructures will use to paste builds, however many it maybe trying to generate.", "Ranges from 0.01 to 1, where 0.01 is 1% and 1 is 100%.", "Slower speeds will lower performance impact, but can lead to other problems such as builds suddenly popping in."),fileConfiguration, "percentageOfTickUsedForPasting", 0.2);
+        chunkScanMillisecondsPerTick = ConfigurationEngine.setDouble(
+                List.of(
+                        "Sets the maximum amount of milliseconds per tick spent preparing new chunks for structure placement.",
+                        "Chunks that don't fit in this budget wait in a queue for the next ticks."),
+                fileConfiguration, "chunkScanMillisecondsPerTick", 4);
+        chunkScanQueueMaxDepth = ConfigurationEngine.setInt(
+                List.of(
+                        "Sets how many chunks can wait for structure placement at the same time.",
+                        "Once full, chunkScanOverflowPolicy decides what happens to new chunks."),
+                fileConfiguration, "chunkScanQueueMaxDepth", 256);
+        chunkScanBacklogMaxSize = ConfigurationEngine.setInt(
+                List.of(
+                        "Sets how many chunks the backlog keeps for later, including the ones saved between restarts.",
+                        "Chunks that come in once the backlog is full do not get structures."),
+                fileConfiguration, "chunkScanBacklogMaxSize", 65536);
+        String overflowPolicy = ConfigurationEngine.setString(
+                List.of(
+                        "Sets what happens to new chunks once chunkScanQueueMaxDepth chunks are waiting for structure placement.",
+                        "DEFER: new chunks wait in the backlog and are placed once the queue drains. Nothing is lost unless the backlog fills up.",
+                        "DROP_LOWEST_PRIORITY: the queue keeps the most visible structure types, surface first and underground deep last, and drops the others."),
+                fileConfiguration, "chunkScanOverflowPolicy", ChunkScanQueue.OverflowPolicy.DEFER.name());
+        try {
+            chunkScanOverflowPolicy = ChunkScanQueue.OverflowPolicy.valueOf(overflowPolicy.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException exception) {
+            Logger.warn("Invalid chunkScanOverflowPolicy " + overflowPolicy + " ! Valid values are DEFER and DROP_LOWEST_PRIORITY. Defaulting to DEFER.");
+            chunkScanOverflowPolicy = ChunkScanQueue.OverflowPolicy.DEFER;
+        }
+        chunkScanMsptCeiling = ConfigurationEngine.setInt(
+                List.of(
+                        "Sets the tick duration, in milliseconds, above which BetterStructures stops preparing new chunks until the server catches up.",
+                        "A healthy server runs ticks every 50 milliseconds."),
+                fileConfiguration, "chunkScanMsptCeiling", 55);
+        preventStructureOverlap = ConfigurationEngine.setBoolean(
+                List.of(
+                        "Keeps structures from being pasted into each other.",
+                        "New structures are checked against the structures that were already pasted and the ones still pasting."),
+                fileConfiguration, "preventStructureOverlap", true);
+        pregenChunksPerTick = ConfigurationEngine.setInt(
+                List.of(
+                        "Sets how many chunks /betterstructures pregen requests per tick.",
+                        "On Spigot chunks are generated synchronously, so keep this low."),
+                fileConfiguration, "pregenChunksPerTick", 4);
+        pregenMaxPendingPastes = ConfigurationEngine.setInt(
+                List.of(
+                        "Sets how many structures /betterstructures pregen lets wait for fitting and pasting before it stops loading new chunks."),
+                fileConfiguration, "pregenMaxPendingPastes", 4);
+        fitCandidates = ConfigurationEngine.setInt(
+                List.of(
+                        "Sets how many different schematics are tried, in weighted random order, before a structure position is given up on.",
+                        "Higher values place structures more reliably at the cost of more fitting work per chunk."),
+                fileConfiguration, "fitCandidates", 3);
+        rotateStructures = ConfigurationEngine.setBoolean(
+                List.of(
+                        "Tries all four rotations around the Y axis for each structure and pastes the one that fits the terrain best.",
+                        "Turning this off pastes structures in the orientation they were saved in, which makes fitting cheaper."),
+                fileConfiguration, "rotateStructures", true);
+        nativeStructurePasting = ConfigurationEngine.setBoolean(
+                List.of(
+                        "Writes plain blocks straight into the chunk instead of going through WorldEdit, which makes pasting faster.",
+                        "Those blocks skip block physics, neighbour updates and relighting, so nearby water, redstone or plants won't react to them until they get updated.",
+                        "Blocks with block entities, light sources, gravity blocks and blocks that don't fully block light are still pasted through WorldEdit. Off by default."),
+                fileConfiguration, "nativeStructurePasting", false);
 
         // Initialize the distances from configuration
         distanceSurface = ConfigurationEngine.setInt(
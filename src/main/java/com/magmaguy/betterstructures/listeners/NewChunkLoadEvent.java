@@ -1,20 +1,21 @@
 package com.magmaguy.betterstructures.listeners;
 
-import com.magmaguy.betterstructures.MetadataHandler;
-import com.magmaguy.betterstructures.buildingfitter.*;
-import com.magmaguy.betterstructures.buildingfitter.util.FitUndergroundDeepBuilding;
+import com.magmaguy.betterstructures.buildingfitter.ChunkScanQueue;
 import com.magmaguy.betterstructures.config.DefaultConfig;
 import com.magmaguy.betterstructures.config.ValidWorldsConfig;
 import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
 import com.magmaguy.betterstructures.config.modulegenerators.ModuleGeneratorsConfig;
 import com.magmaguy.betterstructures.config.modulegenerators.ModuleGeneratorsConfigFields;
 import com.magmaguy.betterstructures.modules.WFCGenerator;
+import com.magmaguy.betterstructures.placement.Pregenerator;
+import com.magmaguy.betterstructures.placement.StructureGrid;
 import com.magmaguy.betterstructures.schematics.SchematicContainer;
+import com.magmaguy.betterstructures.util.ChunkKey;
+import com.magmaguy.betterstructures.util.ExpiringLongSet;
 import org.bukkit.Chunk;
 import org.bukkit.World;
 import org.bukkit.event.*;
 import org.bukkit.event.world.ChunkLoadEvent;
-import org.bukkit.scheduler.BukkitRunnable;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -22,7 +23,8 @@ import java.util.concurrent.ThreadLocalRandom;
 
 public class NewChunkLoadEvent implements Listener {
 
-    private static final Set<Chunk> LOADING_CHUNKS = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    //Chunks that were handled in the last second, keyed by ChunkKey.pack(world, x, z)
+    private static final ExpiringLongSet LOADING_CHUNKS = new ExpiringLongSet(20);
     private static final Map<String, List<ModuleGeneratorsConfigFields>> WORLD_GENERATORS_CACHE = new ConcurrentHashMap<>();
     private static final Map<World.Environment, List<ModuleGeneratorsConfigFields>> ENVIRONMENT_GENERATORS_CACHE = new ConcurrentHashMap<>();
     private static final Map<GeneratorConfigFields.StructureType, Boolean> HAS_SCHEMATICS_CACHE = new ConcurrentHashMap<>();
@@ -31,74 +33,73 @@ public class NewChunkLoadEvent implements Listener {
     @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
     public void onChunkLoad(ChunkLoadEvent event) {
         World world = event.getWorld();
-        if (!event.isNewChunk() || !ValidWorldsConfig.isValidWorld(world)) return;
-
         Chunk chunk = event.getChunk();
-        if (!LOADING_CHUNKS.add(chunk)) return;
+        ChunkScanQueue.onChunkLoad(world, chunk.getX(), chunk.getZ());
+        if (!event.isNewChunk() || !ValidWorldsConfig.isValidWorld(world)) return;
 
-        // Schedule cleanup (removes from loading set)
-        new BukkitRunnable() {
-            @Override
-            public void run() {
-                LOADING_CHUNKS.remove(chunk);
-            }
-        }.runTaskLater(MetadataHandler.PLUGIN, 20L);
+        if (!LOADING_CHUNKS.add(ChunkKey.pack(world, chunk.getX(), chunk.getZ()))) return;
+        //The pregenerator submits its anchors itself once their neighbours are generated
+        if (Pregenerator.isClaimed(world, chunk.getX(), chunk.getZ())) return;
 
         processChunkScanners(chunk);
     }
 
     /**
      * Executes different structure scans on chunk load.
+     * Only the grid checks run here, matching chunks are queued in the {@link ChunkScanQueue}.
      */
     private void processChunkScanners(Chunk chunk) {
-        scanSurface(chunk);
-        scanUndergroundShallow(chunk);
-        scanUndergroundDeep(chunk);
+        List<GeneratorConfigFields.StructureType> structureTypes = new ArrayList<>(3);
+        scanSurface(chunk, structureTypes);
+        scanUndergroundShallow(chunk, structureTypes);
+        scanUndergroundDeep(chunk, structureTypes);
         // Uncomment if needed:
-        // scanSky(chunk);
-        // scanLiquidSurface(chunk);
+        // scanSky(chunk, structureTypes);
+        // scanLiquidSurface(chunk, structureTypes);
         // scanDungeon(chunk);
+        if (!structureTypes.isEmpty())
+            ChunkScanQueue.enqueue(chunk.getWorld(), chunk.getX(), chunk.getZ(), structureTypes);
     }
 
     /* ============================ STRUCTURE SCANNERS ============================ */
 
-    private void scanSurface(Chunk chunk) {
+    private void scanSurface(Chunk chunk, List<GeneratorConfigFields.StructureType> structureTypes) {
         if (hasSchematics(GeneratorConfigFields.StructureType.SURFACE)
                 && isValidStructurePosition(chunk, GeneratorConfigFields.StructureType.SURFACE,
                 DefaultConfig.getDistanceSurface(), DefaultConfig.getMaxOffsetSurface())) {
-            new FitSurfaceBuilding(chunk);
+            structureTypes.add(GeneratorConfigFields.StructureType.SURFACE);
         }
     }
 
-    private void scanUndergroundShallow(Chunk chunk) {
+    private void scanUndergroundShallow(Chunk chunk, List<GeneratorConfigFields.StructureType> structureTypes) {
         if (hasSchematics(GeneratorConfigFields.StructureType.UNDERGROUND_SHALLOW)
                 && isValidStructurePosition(chunk, GeneratorConfigFields.StructureType.UNDERGROUND_SHALLOW,
                 DefaultConfig.getDistanceShallow(), DefaultConfig.getMaxOffsetShallow())) {
-            FitUndergroundShallowBuilding.fit(chunk);
+            structureTypes.add(GeneratorConfigFields.StructureType.UNDERGROUND_SHALLOW);
         }
     }
 
-    private void scanUndergroundDeep(Chunk chunk) {
+    private void scanUndergroundDeep(Chunk chunk, List<GeneratorConfigFields.StructureType> structureTypes) {
         if (hasSchematics(GeneratorConfigFields.StructureType.UNDERGROUND_DEEP)
                 && isValidStructurePosition(chunk, GeneratorConfigFields.StructureType.UNDERGROUND_DEEP,
                 DefaultConfig.getDistanceDeep(), DefaultConfig.getMaxOffsetDeep())) {
-            FitUndergroundDeepBuilding.fit(chunk);
+            structureTypes.add(GeneratorConfigFields.StructureType.UNDERGROUND_DEEP);
         }
     }
 
-    private void scanSky(Chunk chunk) {
+    private void scanSky(Chunk chunk, List<GeneratorConfigFields.StructureType> structureTypes) {
         if (hasSchematics(GeneratorConfigFields.StructureType.SKY)
                 && isValidStructurePosition(chunk, GeneratorConfigFields.StructureType.SKY,
                 DefaultConfig.getDistanceSky(), DefaultConfig.getMaxOffsetSky())) {
-            new FitAirBuilding(chunk);
+            structureTypes.add(GeneratorConfigFields.StructureType.SKY);
         }
     }
 
-    private void scanLiquidSurface(Chunk chunk) {
+    private void scanLiquidSurface(Chunk chunk, List<GeneratorConfigFields.StructureType> structureTypes) {
         if (hasSchematics(GeneratorConfigFields.StructureType.LIQUID_SURFACE)
                 && isValidStructurePosition(chunk, GeneratorConfigFields.StructureType.LIQUID_SURFACE,
                 DefaultConfig.getDistanceLiquid(), DefaultConfig.getMaxOffsetLiquid())) {
-            new FitLiquidBuilding(chunk);
+            structureTypes.add(GeneratorConfigFields.StructureType.LIQUID_SURFACE);
         }
     }
 
@@ -123,42 +124,12 @@ public class NewChunkLoadEvent implements Listener {
 
     /**
      * Determines if the chunk is valid for this structure type.
-     * Uses deterministic randomization seeded from world + structure type.
+     * Uses deterministic randomization seeded from world + structure type, see {@link StructureGrid}.
      */
     private boolean isValidStructurePosition(Chunk chunk, GeneratorConfigFields.StructureType type,
                                              int gridDistance, int maxOffset) {
-        int chunkX = chunk.getX();
-        int chunkZ = chunk.getZ();
-        long seed = chunk.getWorld().getSeed() + type.name().hashCode() * 7919L;
-
-        int gridX = chunkX / gridDistance;
-        int gridZ = chunkZ / gridDistance;
-
-        for (int dx = -1; dx <= 1; dx++) {
-            for (int dz = -1; dz <= 1; dz++) {
-                if (isChunkInStructurePosition(chunkX, chunkZ, gridX + dx, gridZ + dz, gridDistance, maxOffset, seed)) {
-                    return true;
-                }
-            }
-        }
-        return false;
-    }
-
-    private boolean isChunkInStructurePosition(int chunkX, int chunkZ, int gridX, int gridZ,
-                                               int gridDistance, int maxOffset, long seed) {
-        int baseX = gridX * gridDistance;
-        int baseZ = gridZ * gridDistance;
-
-        // Diamond pattern adjustment
-        if ((gridZ & 1) != 0) baseX += gridDistance / 2;
-
-        long combinedSeed = seed ^ (((long) baseX << 32) ^ (baseZ & 0xFFFFFFFFL));
-        SplittableRandom random = new SplittableRandom(combinedSeed);
-
-        int offsetX = maxOffset > 0 ? random.nextInt(-maxOffset, maxOffset + 1) : 0;
-        int offsetZ = maxOffset > 0 ? random.nextInt(-maxOffset, maxOffset + 1) : 0;
-
-        return chunkX == baseX + offsetX && chunkZ == baseZ + offsetZ;
+        return StructureGrid.get(chunk.getWorld().getSeed(), type, gridDistance, maxOffset)
+                .isAnchor(chunk.getX(), chunk.getZ());
     }
 
     /* ============================ GENERATOR VALIDATION & CACHING ============================ */
@@ -210,10 +181,20 @@ public class NewChunkLoadEvent implements Listener {
         return validEnvs.isEmpty() || validEnvs.contains(env);
     }
 
+    public static void start() {
+        LOADING_CHUNKS.start();
+    }
+
+    public static void shutdown() {
+        LOADING_CHUNKS.shutdown();
+        clearCaches();
+    }
+
     public static void clearCaches() {
         HAS_SCHEMATICS_CACHE.clear();
         WORLD_GENERATORS_CACHE.clear();
         ENVIRONMENT_GENERATORS_CACHE.clear();
         UNRESTRICTED_GENERATORS = null;
+        StructureGrid.clearCaches();
     }
 }
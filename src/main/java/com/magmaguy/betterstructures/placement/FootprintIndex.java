@@ -0,0 +1,106 @@
+package com.magmaguy.betterstructures.placement;
+
+import com.magmaguy.betterstructures.util.ChunkKey;
+import org.bukkit.World;
+
+import java.util.*;
+
+/**
+ * Keeps structures from being pasted into each other, whichever scanner picked them.
+ * <p>
+ * Footprints are bucketed by the 32x32 chunk region of their anchor chunk. Structures that were already pasted come
+ * from the {@link StructureRegistry}, which loads and caches regions lazily, so memory stays bounded by the registry
+ * cache. Structures that are still pasting are held here as reservations until they are registered.
+ * <p>
+ * Main thread only, except for {@link #preload}, which the fitters call so that checks don't read the registry from
+ * disk on the main thread.
+ */
+public class FootprintIndex {
+    //Footprints can reach past the region of their anchor chunk, so neighbouring regions are checked too
+    private static final int REGION_MARGIN = 1;
+    private static final Map<UUID, Map<Long, List<PlacedStructure>>> RESERVATIONS = new HashMap<>();
+
+    private FootprintIndex() {
+    }
+
+    public static void shutdown() {
+        RESERVATIONS.clear();
+    }
+
+    /**
+     * Reserves the footprint of a structure that is about to be pasted.
+     *
+     * @param world           World the structure is pasted in
+     * @param placedStructure Structure about to be pasted
+     * @return False if the footprint intersects a structure that is already pasted or reserved
+     */
+    public static boolean reserve(World world, PlacedStructure placedStructure) {
+        if (intersects(world, placedStructure)) return false;
+        RESERVATIONS.computeIfAbsent(world.getUID(), uuid -> new HashMap<>())
+                .computeIfAbsent(regionKey(placedStructure), key -> new ArrayList<>())
+                .add(placedStructure);
+        return true;
+    }
+
+    /**
+     * Drops a reservation, either because the structure got registered or because the paste was abandoned.
+     */
+    public static void release(World world, PlacedStructure placedStructure) {
+        Map<Long, List<PlacedStructure>> worldReservations = RESERVATIONS.get(world.getUID());
+        if (worldReservations == null) return;
+        long key = regionKey(placedStructure);
+        List<PlacedStructure> reservations = worldReservations.get(key);
+        if (reservations == null) return;
+        reservations.remove(placedStructure);
+        if (reservations.isEmpty()) worldReservations.remove(key);
+    }
+
+    /**
+     * Loads the registry regions that checking and registering the structure read. Safe to call from any thread.
+     *
+     * @param world           World the structure is going to be pasted in
+     * @param placedStructure Structure about to be pasted
+     */
+    public static void preload(World world, PlacedStructure placedStructure) {
+        int anchorRegionX = placedStructure.getAnchorChunkX() >> 5;
+        int anchorRegionZ = placedStructure.getAnchorChunkZ() >> 5;
+        StructureRegistry.preload(world,
+                Math.min(anchorRegionX, (placedStructure.getMinX() >> 9) - REGION_MARGIN),
+                Math.min(anchorRegionZ, (placedStructure.getMinZ() >> 9) - REGION_MARGIN),
+                Math.max(anchorRegionX, (placedStructure.getMaxX() >> 9) + REGION_MARGIN),
+                Math.max(anchorRegionZ, (placedStructure.getMaxZ() >> 9) + REGION_MARGIN));
+    }
+
+    /**
+     * @return True if the footprint intersects a structure that is already pasted or reserved
+     */
+    public static boolean intersects(World world, PlacedStructure placedStructure) {
+        Map<Long, List<PlacedStructure>> worldReservations = RESERVATIONS.get(world.getUID());
+        int minRegionX = (placedStructure.getMinX() >> 9) - REGION_MARGIN;
+        int maxRegionX = (placedStructure.getMaxX() >> 9) + REGION_MARGIN;
+        int minRegionZ = (placedStructure.getMinZ() >> 9) - REGION_MARGIN;
+        int maxRegionZ = (placedStructure.getMaxZ() >> 9) + REGION_MARGIN;
+        for (int regionX = minRegionX; regionX <= maxRegionX; regionX++)
+            for (int regionZ = minRegionZ; regionZ <= maxRegionZ; regionZ++) {
+                if (intersectsAny(StructureRegistry.getRegion(world, regionX, regionZ), placedStructure)) return true;
+                if (worldReservations != null &&
+                        intersectsAny(worldReservations.get(ChunkKey.pack(regionX, regionZ)), placedStructure))
+                    return true;
+            }
+        return false;
+    }
+
+    private static boolean intersectsAny(List<PlacedStructure> placedStructures, PlacedStructure candidate) {
+        if (placedStructures == null) return false;
+        for (PlacedStructure placedStructure : placedStructures)
+            if (placedStructure != candidate && placedStructure.intersects(
+                    candidate.getMinX(), candidate.getMinY(), candidate.getMinZ(),
+                    candidate.getMaxX(), candidate.getMaxY(), candidate.getMaxZ()))
+                return true;
+        return false;
+    }
+
+    private static long regionKey(PlacedStructure placedStructure) {
+        return ChunkKey.pack(placedStructure.getAnchorChunkX() >> 5, placedStructure.getAnchorChunkZ() >> 5);
+    }
+}
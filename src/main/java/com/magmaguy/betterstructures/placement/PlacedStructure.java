@@ -0,0 +1,59 @@
+package com.magmaguy.betterstructures.placement;
+
+import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
+import lombok.Getter;
+
+/**
+ * Structure that was pasted into a world, as stored in the {@link StructureRegistry}.
+ * The bounding box is in block coordinates and inclusive on both ends.
+ */
+public class PlacedStructure {
+    @Getter
+    private final String schematicName;
+    @Getter
+    private final GeneratorConfigFields.StructureType structureType;
+    @Getter
+    private final int anchorChunkX;
+    @Getter
+    private final int anchorChunkZ;
+    @Getter
+    private final int minX;
+    @Getter
+    private final int minY;
+    @Getter
+    private final int minZ;
+    @Getter
+    private final int maxX;
+    @Getter
+    private final int maxY;
+    @Getter
+    private final int maxZ;
+    @Getter
+    private final long timestamp;
+
+    public PlacedStructure(String schematicName, GeneratorConfigFields.StructureType structureType,
+                           int anchorChunkX, int anchorChunkZ,
+                           int minX, int minY, int minZ, int maxX, int maxY, int maxZ, long timestamp) {
+        this.schematicName = schematicName;
+        this.structureType = structureType;
+        this.anchorChunkX = anchorChunkX;
+        this.anchorChunkZ = anchorChunkZ;
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.maxZ = maxZ;
+        this.timestamp = timestamp;
+    }
+
+    public boolean contains(int x, int y, int z) {
+        return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+    }
+
+    public boolean intersects(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        return minX <= this.maxX && maxX >= this.minX
+                && minY <= this.maxY && maxY >= this.minY
+                && minZ <= this.maxZ && maxZ >= this.minZ;
+    }
+}
@@ -0,0 +1,384 @@
+package com.magmaguy.betterstructures.placement;
+
+import com.magmaguy.betterstructures.MetadataHandler;
+import com.magmaguy.betterstructures.buildingfitter.PlacementPipeline;
+import com.magmaguy.betterstructures.config.DefaultConfig;
+import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
+import com.magmaguy.betterstructures.schematics.SchematicContainer;
+import com.magmaguy.betterstructures.util.ChunkKey;
+import com.magmaguy.betterstructures.util.LongHashSet;
+import com.magmaguy.betterstructures.util.distributedload.TickMonitor;
+import com.magmaguy.betterstructures.worldedit.Schematic;
+import com.magmaguy.magmacore.util.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Places structures over a square area ahead of time by walking the {@link StructureGrid} instead of waiting for
+ * chunks to be generated.
+ * <p>
+ * Anchors are processed one at a time, in 32x32 chunk region order. For each anchor only the chunks its footprint can
+ * reach get generated, asynchronously on servers that support it, then the anchor goes through the regular
+ * {@link PlacementPipeline}. Those chunks hold a plugin chunk ticket until the anchor got captured, so that the server
+ * doesn't unload them in the meantime. Progress is checkpointed after every region so that a restart resumes the run.
+ */
+public class Pregenerator {
+    private static final String CHECKPOINT_FILENAME = "pregen_checkpoint.bin";
+    //Same structure types as the ones NewChunkLoadEvent places
+    private static final List<GeneratorConfigFields.StructureType> STRUCTURE_TYPES = List.of(
+            GeneratorConfigFields.StructureType.SURFACE,
+            GeneratorConfigFields.StructureType.UNDERGROUND_SHALLOW,
+            GeneratorConfigFields.StructureType.UNDERGROUND_DEEP);
+    private static final long REPORT_INTERVAL_NANOS = 30_000_000_000L;
+    //Anchors being pregenerated, so the chunk listener doesn't queue them a second time
+    private static final LongHashSet CLAIMED_ANCHORS = new LongHashSet(16);
+    //Paper only, World#getChunkAtAsync(int, int)
+    private static final Method GET_CHUNK_AT_ASYNC = findGetChunkAtAsync();
+    private static Run run = null;
+
+    private Pregenerator() {
+    }
+
+    private static Method findGetChunkAtAsync() {
+        try {
+            return World.class.getMethod("getChunkAtAsync", int.class, int.class);
+        } catch (NoSuchMethodException exception) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts pregenerating structures in a square around the world spawn.
+     *
+     * @param world  World to pregenerate
+     * @param radius Radius of the square, in chunks
+     * @param sender Receives the progress reports, on top of the console
+     * @return False if a pregeneration is already running
+     */
+    public static boolean start(World world, int radius, CommandSender sender) {
+        if (run != null) return false;
+        int centerChunkX = world.getSpawnLocation().getBlockX() >> 4;
+        int centerChunkZ = world.getSpawnLocation().getBlockZ() >> 4;
+        run = new Run(world, centerChunkX, centerChunkZ, radius, 0, 0, sender);
+        run.runTaskTimer(MetadataHandler.PLUGIN, 1, 1);
+        return true;
+    }
+
+    /**
+     * Stops the current pregeneration and forgets its progress.
+     *
+     * @return False if no pregeneration was running
+     */
+    public static boolean stop() {
+        if (run == null) return false;
+        run.cancel();
+        run.releaseTickets();
+        run = null;
+        CLAIMED_ANCHORS.clear();
+        getCheckpointFile().delete();
+        return true;
+    }
+
+    public static boolean isRunning() {
+        return run != null;
+    }
+
+    /**
+     * @return True if the chunk is an anchor that the pregenerator is placing right now
+     */
+    public static boolean isClaimed(World world, int chunkX, int chunkZ) {
+        return !CLAIMED_ANCHORS.isEmpty() && CLAIMED_ANCHORS.contains(ChunkKey.pack(world, chunkX, chunkZ));
+    }
+
+    /**
+     * Resumes the pregeneration that was running when the server stopped, if any.
+     */
+    public static void resume() {
+        if (run != null) return;
+        File file = getCheckpointFile();
+        if (!file.exists()) return;
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            UUID worldUUID = new UUID(inputStream.readLong(), inputStream.readLong());
+            int centerChunkX = inputStream.readInt();
+            int centerChunkZ = inputStream.readInt();
+            int radius = inputStream.readInt();
+            int regionIndex = inputStream.readInt();
+            int anchorIndex = inputStream.readInt();
+            World world = Bukkit.getWorld(worldUUID);
+            if (world == null) {
+                Logger.warn("Could not resume the structure pregeneration because its world is not loaded!");
+                return;
+            }
+            Logger.info("Resuming structure pregeneration of " + world.getName() + ".");
+            run = new Run(world, centerChunkX, centerChunkZ, radius, regionIndex, anchorIndex, null);
+            run.runTaskTimer(MetadataHandler.PLUGIN, 1, 1);
+        } catch (IOException exception) {
+            Logger.warn("Failed to read the structure pregeneration checkpoint!");
+            exception.printStackTrace();
+        }
+    }
+
+    public static void shutdown() {
+        if (run == null) return;
+        run.cancel();
+        run.releaseTickets();
+        run.saveCheckpoint();
+        run = null;
+        CLAIMED_ANCHORS.clear();
+    }
+
+    private static File getCheckpointFile() {
+        return new File(MetadataHandler.PLUGIN.getDataFolder(), CHECKPOINT_FILENAME);
+    }
+
+    private static class Run extends BukkitRunnable {
+        private final World world;
+        private final int centerChunkX;
+        private final int centerChunkZ;
+        private final int radius;
+        private final int minRegionX;
+        private final int minRegionZ;
+        private final int regionsWide;
+        private final int totalRegions;
+        private final CommandSender sender;
+        private final List<GeneratorConfigFields.StructureType> structureTypes = new ArrayList<>();
+        private final ArrayDeque<Long> pendingChunks = new ArrayDeque<>();
+        //Footprint chunks of the current anchor that hold a plugin chunk ticket
+        private final ArrayDeque<Long> ticketedChunks = new ArrayDeque<>();
+        private final long startNanos = System.nanoTime();
+        private int regionIndex;
+        private int anchorIndex;
+        //Anchors of the current region and the structure types each of them gets, as type ordinal bits
+        private long[] regionAnchors = null;
+        private int[] regionTypeMasks = null;
+        private long currentAnchor = 0;
+        private int currentTypeMask = 0;
+        private int chunksInFlight = 0;
+        private int regionsDone = 0;
+        private long anchorsDone = 0;
+        private long chunksLoaded = 0;
+        private long lastReportNanos = System.nanoTime();
+
+        private Run(World world, int centerChunkX, int centerChunkZ, int radius, int regionIndex, int anchorIndex, CommandSender sender) {
+            this.world = world;
+            this.centerChunkX = centerChunkX;
+            this.centerChunkZ = centerChunkZ;
+            this.radius = radius;
+            this.regionIndex = regionIndex;
+            this.anchorIndex = anchorIndex;
+            this.sender = sender;
+            minRegionX = (centerChunkX - radius) >> 5;
+            minRegionZ = (centerChunkZ - radius) >> 5;
+            regionsWide = ((centerChunkX + radius) >> 5) - minRegionX + 1;
+            totalRegions = regionsWide * (((centerChunkZ + radius) >> 5) - minRegionZ + 1);
+            for (GeneratorConfigFields.StructureType structureType : STRUCTURE_TYPES)
+                if (!SchematicContainer.getSchematics().get(structureType).isEmpty())
+                    structureTypes.add(structureType);
+        }
+
+        @Override
+        public void run() {
+            if (TickMonitor.getLastTickMillis() > DefaultConfig.getChunkScanMsptCeiling()) return;
+
+            if (currentTypeMask == 0 && !nextAnchor()) return;
+
+            for (int i = 0; i < DefaultConfig.getPregenChunksPerTick() && !pendingChunks.isEmpty(); i++)
+                load(pendingChunks.poll());
+
+            if (pendingChunks.isEmpty() && chunksInFlight == 0) completeAnchor();
+
+            if (System.nanoTime() - lastReportNanos > REPORT_INTERVAL_NANOS) report();
+        }
+
+        /**
+         * Moves on to the next anchor that still needs structures, as long as the fitting and pasting stages keep up.
+         *
+         * @return True if an anchor is now being processed
+         */
+        private boolean nextAnchor() {
+            if (PlacementPipeline.getPendingFits() + Schematic.getPasteQueueSize() >= DefaultConfig.getPregenMaxPendingPastes())
+                return false;
+            while (regionIndex < totalRegions) {
+                if (regionAnchors == null) loadRegionAnchors();
+                while (anchorIndex < regionAnchors.length) {
+                    long anchor = regionAnchors[anchorIndex];
+                    int typeMask = regionTypeMasks[anchorIndex];
+                    anchorIndex++;
+                    for (GeneratorConfigFields.StructureType structureType : structureTypes)
+                        if ((typeMask & (1 << structureType.ordinal())) != 0 &&
+                                StructureRegistry.get(world, ChunkKey.getX(anchor), ChunkKey.getZ(anchor), structureType) != null)
+                            typeMask &= ~(1 << structureType.ordinal());
+                    if (typeMask == 0) continue;
+                    startAnchor(anchor, typeMask);
+                    return true;
+                }
+                regionIndex++;
+                anchorIndex = 0;
+                regionAnchors = null;
+                regionsDone++;
+                saveCheckpoint();
+            }
+            finish();
+            return false;
+        }
+
+        private void loadRegionAnchors() {
+            int regionX = minRegionX + regionIndex % regionsWide;
+            int regionZ = minRegionZ + regionIndex / regionsWide;
+            int minChunkX = Math.max(centerChunkX - radius, regionX << 5);
+            int minChunkZ = Math.max(centerChunkZ - radius, regionZ << 5);
+            int maxChunkX = Math.min(centerChunkX + radius, (regionX << 5) + 31);
+            int maxChunkZ = Math.min(centerChunkZ + radius, (regionZ << 5) + 31);
+            TreeMap<Long, Integer> anchors = new TreeMap<>();
+            for (GeneratorConfigFields.StructureType structureType : structureTypes) {
+                StructureGrid grid = StructureGrid.get(world, structureType);
+                int bit = 1 << structureType.ordinal();
+                grid.forEachAnchor(minChunkX, minChunkZ, maxChunkX, maxChunkZ, anchor -> anchors.merge(anchor, bit, (a, b) -> a | b));
+            }
+            regionAnchors = new long[anchors.size()];
+            regionTypeMasks = new int[anchors.size()];
+            int i = 0;
+            for (Map.Entry<Long, Integer> entry : anchors.entrySet()) {
+                regionAnchors[i] = entry.getKey();
+                regionTypeMasks[i] = entry.getValue();
+                i++;
+            }
+        }
+
+        private void startAnchor(long anchor, int typeMask) {
+            currentAnchor = anchor;
+            currentTypeMask = typeMask;
+            int anchorX = ChunkKey.getX(anchor);
+            int anchorZ = ChunkKey.getZ(anchor);
+            CLAIMED_ANCHORS.add(ChunkKey.pack(world, anchorX, anchorZ));
+            int captureRadius = 0;
+            for (GeneratorConfigFields.StructureType structureType : structureTypes)
+                if ((typeMask & (1 << structureType.ordinal())) != 0)
+                    captureRadius = Math.max(captureRadius, PlacementPipeline.getCaptureRadius(structureType));
+            //Neighbours first so that the footprint terrain is loaded when the anchor gets captured
+            for (int dx = -captureRadius; dx <= captureRadius; dx++)
+                for (int dz = -captureRadius; dz <= captureRadius; dz++) {
+                    if (dx == 0 && dz == 0) continue;
+                    if (world.isChunkLoaded(anchorX + dx, anchorZ + dz)) addTicket(anchorX + dx, anchorZ + dz);
+                    else pendingChunks.add(ChunkKey.pack(anchorX + dx, anchorZ + dz));
+                }
+            if (world.isChunkLoaded(anchorX, anchorZ)) addTicket(anchorX, anchorZ);
+            else pendingChunks.add(anchor);
+        }
+
+        private void load(long chunkKey) {
+            int chunkX = ChunkKey.getX(chunkKey);
+            int chunkZ = ChunkKey.getZ(chunkKey);
+            chunksLoaded++;
+            if (GET_CHUNK_AT_ASYNC != null) {
+                try {
+                    CompletableFuture<?> future = (CompletableFuture<?>) GET_CHUNK_AT_ASYNC.invoke(world, chunkX, chunkZ);
+                    chunksInFlight++;
+                    future.whenComplete((chunk, throwable) -> {
+                        if (Bukkit.isPrimaryThread()) onLoaded(chunkX, chunkZ, throwable == null);
+                        else Bukkit.getScheduler().runTask(MetadataHandler.PLUGIN, () -> onLoaded(chunkX, chunkZ, throwable == null));
+                    });
+                    return;
+                } catch (ReflectiveOperationException exception) {
+                    //Falls back to the synchronous load
+                }
+            }
+            world.getChunkAt(chunkX, chunkZ);
+            addTicket(chunkX, chunkZ);
+        }
+
+        private void onLoaded(int chunkX, int chunkZ, boolean loaded) {
+            chunksInFlight--;
+            //A stopped run already released its tickets
+            if (!loaded || run != this) return;
+            //The chunk can unload again before this runs
+            if (world.isChunkLoaded(chunkX, chunkZ)) addTicket(chunkX, chunkZ);
+            else pendingChunks.add(ChunkKey.pack(chunkX, chunkZ));
+        }
+
+        /**
+         * Keeps a loaded chunk loaded until the anchor got captured. Adding the ticket loads the chunk synchronously if
+         * it isn't loaded, so it is only added once the chunk is.
+         */
+        private void addTicket(int chunkX, int chunkZ) {
+            if (world.addPluginChunkTicket(chunkX, chunkZ, MetadataHandler.PLUGIN))
+                ticketedChunks.add(ChunkKey.pack(chunkX, chunkZ));
+        }
+
+        private void releaseTickets() {
+            Long chunkKey;
+            while ((chunkKey = ticketedChunks.poll()) != null)
+                world.removePluginChunkTicket(ChunkKey.getX(chunkKey), ChunkKey.getZ(chunkKey), MetadataHandler.PLUGIN);
+        }
+
+        private void completeAnchor() {
+            List<GeneratorConfigFields.StructureType> types = new ArrayList<>(structureTypes.size());
+            for (GeneratorConfigFields.StructureType structureType : structureTypes)
+                if ((currentTypeMask & (1 << structureType.ordinal())) != 0) types.add(structureType);
+            int anchorX = ChunkKey.getX(currentAnchor);
+            int anchorZ = ChunkKey.getZ(currentAnchor);
+            PlacementPipeline.submit(world.getChunkAt(anchorX, anchorZ), types);
+            //The terrain is captured by now
+            releaseTickets();
+            CLAIMED_ANCHORS.remove(ChunkKey.pack(world, anchorX, anchorZ));
+            currentTypeMask = 0;
+            anchorsDone++;
+        }
+
+        private void report() {
+            lastReportNanos = System.nanoTime();
+            double seconds = (lastReportNanos - startNanos) / 1_000_000_000D;
+            double regionsPerSecond = regionsDone / Math.max(1, seconds);
+            int regionsLeft = totalRegions - regionIndex;
+            String eta = regionsDone == 0 ? "unknown" : formatDuration((long) (regionsLeft / regionsPerSecond));
+            String message = String.format(Locale.ROOT,
+                    "Pregeneration of %s: %d/%d regions (%.1f%%), %.2f anchors/s, %.1f chunks/s, ETA %s",
+                    world.getName(), regionIndex, totalRegions, 100D * regionIndex / totalRegions,
+                    anchorsDone / Math.max(1, seconds), chunksLoaded / Math.max(1, seconds), eta);
+            Logger.info(message);
+            if (sender != null && sender != Bukkit.getConsoleSender()) Logger.sendMessage(sender, message);
+        }
+
+        private static String formatDuration(long seconds) {
+            return String.format(Locale.ROOT, "%dh %02dm %02ds", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+        }
+
+        private void finish() {
+            report();
+            cancel();
+            releaseTickets();
+            run = null;
+            getCheckpointFile().delete();
+            String message = "Pregeneration of " + world.getName() + " is done! " + anchorsDone + " anchors were processed.";
+            Logger.info(message);
+            if (sender != null && sender != Bukkit.getConsoleSender()) Logger.sendMessage(sender, message);
+        }
+
+        /**
+         * Saves the position of the run. The anchor in progress is redone on resume, the registry skips it if it got
+         * built in the meantime.
+         */
+        private void saveCheckpoint() {
+            int savedAnchorIndex = currentTypeMask != 0 ? Math.max(0, anchorIndex - 1) : anchorIndex;
+            try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getCheckpointFile())))) {
+                outputStream.writeLong(world.getUID().getMostSignificantBits());
+                outputStream.writeLong(world.getUID().getLeastSignificantBits());
+                outputStream.writeInt(centerChunkX);
+                outputStream.writeInt(centerChunkZ);
+                outputStream.writeInt(radius);
+                outputStream.writeInt(regionIndex);
+                outputStream.writeInt(savedAnchorIndex);
+            } catch (IOException exception) {
+                Logger.warn("Failed to save the structure pregeneration checkpoint!");
+                exception.printStackTrace();
+            }
+        }
+    }
+}
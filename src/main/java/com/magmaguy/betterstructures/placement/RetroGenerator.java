@@ -0,0 +1,306 @@
+package com.magmaguy.betterstructures.placement;
+
+import com.magmaguy.betterstructures.MetadataHandler;
+import com.magmaguy.betterstructures.buildingfitter.FitAnything;
+import com.magmaguy.betterstructures.buildingfitter.PlacementPipeline;
+import com.magmaguy.betterstructures.buildingfitter.util.TerrainSample;
+import com.magmaguy.betterstructures.config.DefaultConfig;
+import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
+import com.magmaguy.betterstructures.placement.anvil.AnvilChunkCache;
+import com.magmaguy.betterstructures.placement.anvil.AnvilTerrain;
+import com.magmaguy.betterstructures.schematics.SchematicContainer;
+import com.magmaguy.betterstructures.util.ChunkKey;
+import com.magmaguy.betterstructures.util.distributedload.TickMonitor;
+import com.magmaguy.betterstructures.worldedit.Schematic;
+import com.magmaguy.magmacore.util.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Places structures in the parts of a world that were generated before BetterStructures was installed.
+ * <p>
+ * Instead of loading chunks, the region files of the world are read straight from disk: every anchor of the
+ * {@link StructureGrid} that falls on a fully generated chunk is scored off the main thread against an
+ * {@link AnvilTerrain}, with the same fitters as the {@link PlacementPipeline}. Only the winning locations come back to
+ * the main thread, where they get pasted within the same tick budget as the pregenerator.
+ * <p>
+ * The server keeps writing region files while this reads them, through autosaves and as chunks unload. Anchors whose
+ * chunks couldn't be read are retried a few times before their region is reported as skipped.
+ */
+public class RetroGenerator {
+    private static final Pattern REGION_FILENAME = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+    //Same structure types as the ones NewChunkLoadEvent places
+    private static final List<GeneratorConfigFields.StructureType> STRUCTURE_TYPES = List.of(
+            GeneratorConfigFields.StructureType.SURFACE,
+            GeneratorConfigFields.StructureType.UNDERGROUND_SHALLOW,
+            GeneratorConfigFields.StructureType.UNDERGROUND_DEEP);
+    //Fits waiting for the main thread, scanning pauses when this fills up
+    private static final int MAX_QUEUED_FITS = 64;
+    private static final long REPORT_INTERVAL_NANOS = 30_000_000_000L;
+    private static final int READ_ATTEMPTS = 3;
+    //Gives the server time to finish writing the region file before it is read again
+    private static final long RETRY_DELAY_MILLIS = 2000;
+    private static Run run = null;
+
+    private RetroGenerator() {
+    }
+
+    /**
+     * Starts retro-generating structures over every region file of the world.
+     *
+     * @param world  World to retro-generate
+     * @param sender Receives the progress reports, on top of the console
+     * @return False if a retro-generation is already running or the world has no region files
+     */
+    public static boolean start(World world, CommandSender sender) {
+        if (run != null) return false;
+        File regionFolder = getRegionFolder(world);
+        File[] files = regionFolder.listFiles((folder, name) -> REGION_FILENAME.matcher(name).matches());
+        if (files == null || files.length == 0) return false;
+        //Gets the chunks that are loaded right now onto the disk before reading it
+        world.save();
+        run = new Run(world, regionFolder, files, sender);
+        run.runTaskTimer(MetadataHandler.PLUGIN, 1, 1);
+        return true;
+    }
+
+    /**
+     * Stops the current retro-generation. Structures that were already pasted stay, running it again skips them.
+     *
+     * @return False if no retro-generation was running
+     */
+    public static boolean stop() {
+        if (run == null) return false;
+        run.stopRun();
+        run = null;
+        return true;
+    }
+
+    public static boolean isRunning() {
+        return run != null;
+    }
+
+    public static void shutdown() {
+        stop();
+    }
+
+    private static File getRegionFolder(World world) {
+        File worldFolder = world.getWorldFolder();
+        File dimensionFolder = switch (world.getEnvironment()) {
+            case NETHER -> new File(worldFolder, "DIM-1");
+            case THE_END -> new File(worldFolder, "DIM1");
+            default -> worldFolder;
+        };
+        File regionFolder = new File(dimensionFolder, "region");
+        return regionFolder.isDirectory() ? regionFolder : new File(worldFolder, "region");
+    }
+
+    private static class Run extends BukkitRunnable {
+        private final World world;
+        private final World.Environment environment;
+        private final int minHeight;
+        private final int maxHeight;
+        private final File regionFolder;
+        private final CommandSender sender;
+        private final Map<GeneratorConfigFields.StructureType, StructureGrid> grids = new EnumMap<>(GeneratorConfigFields.StructureType.class);
+        private final Map<GeneratorConfigFields.StructureType, Integer> captureRadii = new EnumMap<>(GeneratorConfigFields.StructureType.class);
+        private final BlockingQueue<FitAnything> fits = new ArrayBlockingQueue<>(MAX_QUEUED_FITS);
+        private final ExecutorService executor;
+        private final int totalRegions;
+        private final AtomicInteger regionsDone = new AtomicInteger();
+        private final AtomicLong anchorsScanned = new AtomicLong();
+        //Regions with anchors that still couldn't be read after every attempt
+        private final Queue<String> skippedRegions = new ConcurrentLinkedQueue<>();
+        private final long startNanos = System.nanoTime();
+        private volatile boolean stopped = false;
+        private long structuresPasted = 0;
+        private long lastReportNanos = System.nanoTime();
+
+        private Run(World world, File regionFolder, File[] files, CommandSender sender) {
+            this.world = world;
+            this.environment = world.getEnvironment();
+            this.minHeight = world.getMinHeight();
+            this.maxHeight = world.getMaxHeight();
+            this.regionFolder = regionFolder;
+            this.sender = sender;
+            //Grids and radii read the configs and the schematics, so they are resolved on the main thread
+            for (GeneratorConfigFields.StructureType structureType : STRUCTURE_TYPES) {
+                if (SchematicContainer.getSchematics().get(structureType).isEmpty()) continue;
+                grids.put(structureType, StructureGrid.get(world, structureType));
+                captureRadii.put(structureType, PlacementPipeline.getCaptureRadius(structureType));
+            }
+
+            int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            AtomicInteger threadCounter = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "BetterStructures-RetroGen-" + threadCounter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            Arrays.sort(files, Comparator.comparing(File::getName));
+            totalRegions = files.length;
+            for (File file : files) {
+                Matcher matcher = REGION_FILENAME.matcher(file.getName());
+                if (!matcher.matches()) continue;
+                int regionX = Integer.parseInt(matcher.group(1));
+                int regionZ = Integer.parseInt(matcher.group(2));
+                executor.execute(() -> {
+                    try {
+                        scanRegion(regionX, regionZ);
+                    } catch (InterruptedException exception) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception exception) {
+                        Logger.warn("Failed to retro-generate region " + regionX + ", " + regionZ + " of " + world.getName() + "!");
+                        exception.printStackTrace();
+                        skippedRegions.add(regionX + ", " + regionZ);
+                    } finally {
+                        regionsDone.incrementAndGet();
+                    }
+                });
+            }
+        }
+
+        /**
+         * Scores every anchor of the region against the terrain on disk. Anchors whose chunks couldn't be read are
+         * retried with freshly read files. Runs on the worker threads.
+         */
+        private void scanRegion(int regionX, int regionZ) throws InterruptedException {
+            TreeMap<Long, Integer> anchors = new TreeMap<>();
+            for (Map.Entry<GeneratorConfigFields.StructureType, StructureGrid> entry : grids.entrySet()) {
+                int bit = 1 << entry.getKey().ordinal();
+                entry.getValue().forEachAnchor(regionX << 5, regionZ << 5, (regionX << 5) + 31, (regionZ << 5) + 31,
+                        anchor -> anchors.merge(anchor, bit, (a, b) -> a | b));
+            }
+
+            for (int attempt = 1; !anchors.isEmpty(); attempt++) {
+                if (attempt > 1) Thread.sleep(RETRY_DELAY_MILLIS);
+                scanAnchors(anchors);
+                if (stopped || anchors.isEmpty()) return;
+                if (attempt == READ_ATTEMPTS) {
+                    Logger.warn("Skipped " + anchors.size() + " anchors of region " + regionX + ", " + regionZ + " of " +
+                            world.getName() + " because their chunks couldn't be read!");
+                    skippedRegions.add(regionX + ", " + regionZ);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Scores the anchors and removes the ones that are done from the map, leaving the ones whose chunks couldn't be
+         * read. Their fits are dropped since they may have been scored against missing terrain.
+         */
+        private void scanAnchors(TreeMap<Long, Integer> anchors) throws InterruptedException {
+            try (AnvilChunkCache chunkCache = new AnvilChunkCache(regionFolder, minHeight, maxHeight)) {
+                Iterator<Map.Entry<Long, Integer>> iterator = anchors.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    if (stopped) return;
+                    Map.Entry<Long, Integer> entry = iterator.next();
+                    int anchorX = ChunkKey.getX(entry.getKey());
+                    int anchorZ = ChunkKey.getZ(entry.getKey());
+                    int readFailures = chunkCache.getReadFailures();
+                    //Anchors on chunks that were never fully generated are left to NewChunkLoadEvent
+                    if (!chunkCache.hasChunk(anchorX, anchorZ) || chunkCache.getChunk(anchorX, anchorZ) == null) {
+                        if (chunkCache.getReadFailures() == readFailures) iterator.remove();
+                        continue;
+                    }
+                    int typeMask = entry.getValue();
+                    int captureRadius = 0;
+                    for (GeneratorConfigFields.StructureType structureType : grids.keySet())
+                        if ((typeMask & (1 << structureType.ordinal())) != 0)
+                            captureRadius = Math.max(captureRadius, captureRadii.get(structureType));
+                    TerrainSample terrain = new TerrainSample(new AnvilTerrain(world, environment, minHeight, maxHeight,
+                            anchorX, anchorZ, captureRadius, chunkCache));
+                    List<FitAnything> anchorFits = new ArrayList<>();
+                    for (GeneratorConfigFields.StructureType structureType : grids.keySet()) {
+                        if ((typeMask & (1 << structureType.ordinal())) == 0) continue;
+                        FitAnything fitAnything;
+                        try {
+                            fitAnything = PlacementPipeline.fit(terrain, structureType);
+                        } catch (Exception exception) {
+                            Logger.warn("Failed to fit " + structureType + " structure at chunk " + anchorX + ", " + anchorZ + "!");
+                            exception.printStackTrace();
+                            continue;
+                        }
+                        if (fitAnything != null && fitAnything.getLocation() != null) anchorFits.add(fitAnything);
+                    }
+                    if (chunkCache.getReadFailures() != readFailures) continue;
+                    for (FitAnything fitAnything : anchorFits) {
+                        //Reads the registry here rather than when the paste checks it on the main thread
+                        FootprintIndex.preload(world, fitAnything.toPlacedStructure());
+                        fits.put(fitAnything);
+                    }
+                    iterator.remove();
+                    anchorsScanned.incrementAndGet();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            if (TickMonitor.getLastTickMillis() <= DefaultConfig.getChunkScanMsptCeiling()) {
+                int budget = DefaultConfig.getPregenMaxPendingPastes() - Schematic.getPasteQueueSize();
+                for (int i = 0; i < budget; i++) {
+                    FitAnything fitAnything = fits.poll();
+                    if (fitAnything == null) break;
+                    PlacedStructure placedStructure = fitAnything.toPlacedStructure();
+                    //Left over by an earlier run
+                    if (StructureRegistry.get(world, placedStructure.getAnchorChunkX(), placedStructure.getAnchorChunkZ(), placedStructure.getStructureType()) != null)
+                        continue;
+                    fitAnything.pasteBestFit();
+                    structuresPasted++;
+                }
+            }
+
+            if (System.nanoTime() - lastReportNanos > REPORT_INTERVAL_NANOS) report();
+
+            if (regionsDone.get() >= totalRegions && fits.isEmpty()) finish();
+        }
+
+        private void report() {
+            lastReportNanos = System.nanoTime();
+            double seconds = (lastReportNanos - startNanos) / 1_000_000_000D;
+            int done = regionsDone.get();
+            String eta = done == 0 ? "unknown" : formatDuration((long) ((totalRegions - done) / (done / Math.max(1, seconds))));
+            String message = String.format(Locale.ROOT,
+                    "Retro-generation of %s: %d/%d regions (%.1f%%), %.1f anchors/s, %d structures pasted, ETA %s",
+                    world.getName(), done, totalRegions, 100D * done / totalRegions,
+                    anchorsScanned.get() / Math.max(1, seconds), structuresPasted, eta);
+            Logger.info(message);
+            if (sender != null && sender != Bukkit.getConsoleSender()) Logger.sendMessage(sender, message);
+        }
+
+        private static String formatDuration(long seconds) {
+            return String.format(Locale.ROOT, "%dh %02dm %02ds", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+        }
+
+        private void finish() {
+            report();
+            stopRun();
+            run = null;
+            String message = "Retro-generation of " + world.getName() + " is done! " + structuresPasted + " structures were pasted.";
+            if (!skippedRegions.isEmpty())
+                message += " " + skippedRegions.size() + " regions were skipped in part or entirely because they couldn't be read, running it again retries them: " +
+                        String.join("; ", skippedRegions);
+            Logger.info(message);
+            if (sender != null && sender != Bukkit.getConsoleSender()) Logger.sendMessage(sender, message);
+        }
+
+        private void stopRun() {
+            stopped = true;
+            cancel();
+            executor.shutdownNow();
+            fits.clear();
+        }
+    }
+}
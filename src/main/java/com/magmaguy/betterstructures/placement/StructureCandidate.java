@@ -0,0 +1,52 @@
+package com.magmaguy.betterstructures.placement;
+
+import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
+import lombok.Getter;
+import org.bukkit.World;
+
+/**
+ * Anchor chunk of the structure grid returned by the {@link StructureLocator}.
+ */
+public class StructureCandidate {
+    @Getter
+    private final World world;
+    @Getter
+    private final GeneratorConfigFields.StructureType structureType;
+    @Getter
+    private final int chunkX;
+    @Getter
+    private final int chunkZ;
+    @Getter
+    private final Status status;
+
+    public StructureCandidate(World world, GeneratorConfigFields.StructureType structureType, int chunkX, int chunkZ, Status status) {
+        this.world = world;
+        this.structureType = structureType;
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.status = status;
+    }
+
+    /**
+     * @return Block X at the middle of the anchor chunk, which is where the fitters start searching
+     */
+    public int getBlockX() {
+        return (chunkX << 4) + 8;
+    }
+
+    /**
+     * @return Block Z at the middle of the anchor chunk, which is where the fitters start searching
+     */
+    public int getBlockZ() {
+        return (chunkZ << 4) + 8;
+    }
+
+    public enum Status {
+        //The chunk hasn't been generated yet, the structure will be attempted once it is
+        UNGENERATED,
+        //The chunk has been generated but no structure was registered for it, the fit failed or predates the registry
+        GENERATED,
+        //The structure was pasted and is in the StructureRegistry
+        BUILT
+    }
+}
@@ -0,0 +1,188 @@
+package com.magmaguy.betterstructures.placement;
+
+import com.magmaguy.betterstructures.config.DefaultConfig;
+import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
+import com.magmaguy.betterstructures.util.ChunkKey;
+import lombok.Getter;
+import org.bukkit.World;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
+
+/**
+ * Deterministic placement grid of a structure type.
+ * <p>
+ * The world is divided into grid cells of distance x distance chunks, with every other row shifted by half a cell to
+ * form a diamond pattern. Each cell picks one anchor chunk from the world seed, up to maxOffset chunks away from the
+ * cell corner. A chunk is a structure position if it is the anchor of its own grid cell or of one of the 8 cells
+ * around it.
+ * <p>
+ * Since the anchors only depend on the seed, the type and the grid settings, they are computed once per 32x32 chunk
+ * region and kept as a bitmap, which turns the chunk check into a single bit lookup and lets anchors be listed
+ * without loading any chunks.
+ */
+public class StructureGrid {
+    private static final Map<GridKey, StructureGrid> GRIDS = new ConcurrentHashMap<>();
+    //1024 bits per region, 128 bytes each, so the cache stays around half a megabyte per grid
+    private static final int MAX_CACHED_REGIONS = 4096;
+    private static final int REGION_SHIFT = 5;
+    private static final int REGION_SIZE = 1 << REGION_SHIFT;
+    @Getter
+    private final GeneratorConfigFields.StructureType structureType;
+    @Getter
+    private final int distance;
+    @Getter
+    private final int maxOffset;
+    private final long seed;
+    private final LinkedHashMap<Long, long[]> regions = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, long[]> eldest) {
+            return size() > MAX_CACHED_REGIONS;
+        }
+    };
+
+    private StructureGrid(long worldSeed, GeneratorConfigFields.StructureType structureType, int distance, int maxOffset) {
+        this.structureType = structureType;
+        this.distance = distance;
+        this.maxOffset = maxOffset;
+        this.seed = worldSeed + structureType.name().hashCode() * 7919L;
+    }
+
+    /**
+     * Gets the grid of a structure type in a world, using the distance and offset from the default config.
+     *
+     * @param world         World
+     * @param structureType Structure type
+     * @return The grid, or null if the structure type is not placed on a grid
+     */
+    public static StructureGrid get(World world, GeneratorConfigFields.StructureType structureType) {
+        return switch (structureType) {
+            case SURFACE ->
+                    get(world.getSeed(), structureType, DefaultConfig.getDistanceSurface(), DefaultConfig.getMaxOffsetSurface());
+            case UNDERGROUND_SHALLOW ->
+                    get(world.getSeed(), structureType, DefaultConfig.getDistanceShallow(), DefaultConfig.getMaxOffsetShallow());
+            case UNDERGROUND_DEEP ->
+                    get(world.getSeed(), structureType, DefaultConfig.getDistanceDeep(), DefaultConfig.getMaxOffsetDeep());
+            case SKY ->
+                    get(world.getSeed(), structureType, DefaultConfig.getDistanceSky(), DefaultConfig.getMaxOffsetSky());
+            case LIQUID_SURFACE ->
+                    get(world.getSeed(), structureType, DefaultConfig.getDistanceLiquid(), DefaultConfig.getMaxOffsetLiquid());
+            case DUNGEON ->
+                    get(world.getSeed(), structureType, DefaultConfig.getDistanceDungeon(), DefaultConfig.getMaxOffsetDungeon());
+            default -> null;
+        };
+    }
+
+    public static StructureGrid get(long worldSeed, GeneratorConfigFields.StructureType structureType, int distance, int maxOffset) {
+        return GRIDS.computeIfAbsent(new GridKey(worldSeed, structureType, distance, maxOffset),
+                key -> new StructureGrid(worldSeed, structureType, distance, maxOffset));
+    }
+
+    public static void clearCaches() {
+        GRIDS.clear();
+    }
+
+    /**
+     * @return True if a structure of this type is anchored to the chunk
+     */
+    public boolean isAnchor(int chunkX, int chunkZ) {
+        long[] bitmap = getRegion(chunkX >> REGION_SHIFT, chunkZ >> REGION_SHIFT);
+        int bit = bitIndex(chunkX, chunkZ);
+        return (bitmap[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * Lists every anchor chunk inside of the chunk rectangle, without loading any chunks.
+     *
+     * @param minChunkX Minimum chunk X, inclusive
+     * @param minChunkZ Minimum chunk Z, inclusive
+     * @param maxChunkX Maximum chunk X, inclusive
+     * @param maxChunkZ Maximum chunk Z, inclusive
+     * @param consumer  Receives each anchor as a {@link ChunkKey#pack(int, int)} key
+     */
+    public void forEachAnchor(int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ, LongConsumer consumer) {
+        if (minChunkX > maxChunkX || minChunkZ > maxChunkZ) return;
+        for (int regionX = minChunkX >> REGION_SHIFT; regionX <= maxChunkX >> REGION_SHIFT; regionX++)
+            for (int regionZ = minChunkZ >> REGION_SHIFT; regionZ <= maxChunkZ >> REGION_SHIFT; regionZ++) {
+                long[] bitmap = getRegion(regionX, regionZ);
+                for (int word = 0; word < bitmap.length; word++) {
+                    long bits = bitmap[word];
+                    while (bits != 0) {
+                        int bit = (word << 6) + Long.numberOfTrailingZeros(bits);
+                        bits &= bits - 1;
+                        int chunkX = (regionX << REGION_SHIFT) + (bit & (REGION_SIZE - 1));
+                        int chunkZ = (regionZ << REGION_SHIFT) + (bit >>> REGION_SHIFT);
+                        if (chunkX < minChunkX || chunkX > maxChunkX || chunkZ < minChunkZ || chunkZ > maxChunkZ)
+                            continue;
+                        consumer.accept(ChunkKey.pack(chunkX, chunkZ));
+                    }
+                }
+            }
+    }
+
+    /**
+     * Gets the chunk picked by a grid cell. The chunk is only a structure position if it also lies within one cell of
+     * this one, see {@link #isAnchor(int, int)}.
+     *
+     * @param gridX Grid cell X
+     * @param gridZ Grid cell Z
+     * @return The chunk as a {@link ChunkKey#pack(int, int)} key
+     */
+    public long getCellAnchor(int gridX, int gridZ) {
+        int baseX = gridX * distance;
+        int baseZ = gridZ * distance;
+
+        // Diamond pattern adjustment
+        if ((gridZ & 1) != 0) baseX += distance / 2;
+
+        long combinedSeed = seed ^ (((long) baseX << 32) ^ (baseZ & 0xFFFFFFFFL));
+        SplittableRandom random = new SplittableRandom(combinedSeed);
+
+        int offsetX = maxOffset > 0 ? random.nextInt(-maxOffset, maxOffset + 1) : 0;
+        int offsetZ = maxOffset > 0 ? random.nextInt(-maxOffset, maxOffset + 1) : 0;
+
+        return ChunkKey.pack(baseX + offsetX, baseZ + offsetZ);
+    }
+
+    private static int bitIndex(int chunkX, int chunkZ) {
+        return ((chunkZ & (REGION_SIZE - 1)) << REGION_SHIFT) | (chunkX & (REGION_SIZE - 1));
+    }
+
+    private synchronized long[] getRegion(int regionX, int regionZ) {
+        long key = ChunkKey.pack(regionX, regionZ);
+        long[] bitmap = regions.get(key);
+        if (bitmap == null) {
+            bitmap = computeRegion(regionX, regionZ);
+            regions.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    private long[] computeRegion(int regionX, int regionZ) {
+        long[] bitmap = new long[REGION_SIZE * REGION_SIZE / 64];
+        int minChunkX = regionX << REGION_SHIFT;
+        int minChunkZ = regionZ << REGION_SHIFT;
+        int maxChunkX = minChunkX + REGION_SIZE - 1;
+        int maxChunkZ = minChunkZ + REGION_SIZE - 1;
+        //Grid coordinates truncate towards zero, which is monotonic, so these are all the cells the region can see
+        for (int gridX = minChunkX / distance - 1; gridX <= maxChunkX / distance + 1; gridX++)
+            for (int gridZ = minChunkZ / distance - 1; gridZ <= maxChunkZ / distance + 1; gridZ++) {
+                long anchor = getCellAnchor(gridX, gridZ);
+                int chunkX = ChunkKey.getX(anchor);
+                int chunkZ = ChunkKey.getZ(anchor);
+                if (chunkX < minChunkX || chunkX > maxChunkX || chunkZ < minChunkZ || chunkZ > maxChunkZ) continue;
+                //The anchor only counts when the chunk itself looks at this cell
+                if (Math.abs(chunkX / distance - gridX) > 1 || Math.abs(chunkZ / distance - gridZ) > 1) continue;
+                int bit = bitIndex(chunkX, chunkZ);
+                bitmap[bit >>> 6] |= 1L << bit;
+            }
+        return bitmap;
+    }
+
+    private record GridKey(long worldSeed, GeneratorConfigFields.StructureType structureType, int distance,
+                           int maxOffset) {
+    }
+}
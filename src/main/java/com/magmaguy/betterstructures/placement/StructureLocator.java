@@ -0,0 +1,103 @@
+package com.magmaguy.betterstructures.placement;
+
+import com.magmaguy.betterstructures.config.ValidWorldsConfig;
+import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
+import com.magmaguy.betterstructures.schematics.SchematicContainer;
+import com.magmaguy.betterstructures.util.ChunkKey;
+import org.bukkit.World;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Finds structure positions through the {@link StructureGrid}, without loading or generating any chunks.
+ * Whether a position was actually built comes from the {@link StructureRegistry}.
+ */
+public class StructureLocator {
+    private StructureLocator() {
+    }
+
+    /**
+     * Searches outwards from the origin, one ring of grid cells at a time, until enough anchors are found.
+     * The status of the candidates checks the world files, so this should be called from the main thread.
+     *
+     * @param world         World to search
+     * @param structureType Structure type to search for
+     * @param originChunkX  Chunk X to search from
+     * @param originChunkZ  Chunk Z to search from
+     * @param radiusChunks  Maximum distance, in chunks, of the candidates
+     * @param maxResults    Maximum amount of candidates
+     * @return The candidates, nearest first. Empty if the structure type can't spawn in this world.
+     */
+    public static List<StructureCandidate> locate(World world, GeneratorConfigFields.StructureType structureType,
+                                                  int originChunkX, int originChunkZ, int radiusChunks, int maxResults) {
+        List<StructureCandidate> candidates = new ArrayList<>();
+        if (maxResults <= 0 || radiusChunks < 0) return candidates;
+        if (!ValidWorldsConfig.isValidWorld(world)) return candidates;
+        if (SchematicContainer.getSchematics().get(structureType).isEmpty()) return candidates;
+        StructureGrid grid = StructureGrid.get(world, structureType);
+        if (grid == null) return candidates;
+
+        List<Long> anchors = new ArrayList<>();
+        long maxDistanceSquared = (long) radiusChunks * radiusChunks;
+        int step = Math.max(1, grid.getDistance());
+        int previousHalfSize = -1;
+        while (previousHalfSize < radiusChunks) {
+            int halfSize = Math.min(radiusChunks, previousHalfSize + step);
+            forEachAnchorInRing(grid, originChunkX, originChunkZ, previousHalfSize, halfSize, anchor -> {
+                if (distanceSquared(anchor, originChunkX, originChunkZ) <= maxDistanceSquared) anchors.add(anchor);
+            });
+            previousHalfSize = halfSize;
+            //Anything outside of the searched square is further away than halfSize
+            if (anchors.size() >= maxResults) {
+                anchors.sort(Comparator.comparingLong(anchor -> distanceSquared(anchor, originChunkX, originChunkZ)));
+                if (distanceSquared(anchors.get(maxResults - 1), originChunkX, originChunkZ) <= (long) halfSize * halfSize)
+                    break;
+            }
+        }
+
+        anchors.sort(Comparator.comparingLong(anchor -> distanceSquared(anchor, originChunkX, originChunkZ)));
+        for (int i = 0; i < Math.min(maxResults, anchors.size()); i++) {
+            int chunkX = ChunkKey.getX(anchors.get(i));
+            int chunkZ = ChunkKey.getZ(anchors.get(i));
+            candidates.add(new StructureCandidate(world, structureType, chunkX, chunkZ, getStatus(world, structureType, chunkX, chunkZ)));
+        }
+        return candidates;
+    }
+
+    private static StructureCandidate.Status getStatus(World world, GeneratorConfigFields.StructureType structureType, int chunkX, int chunkZ) {
+        if (!world.isChunkGenerated(chunkX, chunkZ)) return StructureCandidate.Status.UNGENERATED;
+        if (StructureRegistry.get(world, chunkX, chunkZ, structureType) != null) return StructureCandidate.Status.BUILT;
+        return StructureCandidate.Status.GENERATED;
+    }
+
+    /**
+     * Visits the anchors inside of the square of the outer half size that are not inside of the square of the inner one.
+     */
+    private static void forEachAnchorInRing(StructureGrid grid, int originChunkX, int originChunkZ, int innerHalfSize,
+                                            int outerHalfSize, LongConsumer consumer) {
+        int minX = originChunkX - outerHalfSize;
+        int maxX = originChunkX + outerHalfSize;
+        int minZ = originChunkZ - outerHalfSize;
+        int maxZ = originChunkZ + outerHalfSize;
+        if (innerHalfSize < 0) {
+            grid.forEachAnchor(minX, minZ, maxX, maxZ, consumer);
+            return;
+        }
+        int innerMinZ = originChunkZ - innerHalfSize;
+        int innerMaxZ = originChunkZ + innerHalfSize;
+        //Full width strips along Z, then the two sides between them
+        grid.forEachAnchor(minX, minZ, maxX, innerMinZ - 1, consumer);
+        grid.forEachAnchor(minX, innerMaxZ + 1, maxX, maxZ, consumer);
+        grid.forEachAnchor(minX, innerMinZ, originChunkX - innerHalfSize - 1, innerMaxZ, consumer);
+        grid.forEachAnchor(originChunkX + innerHalfSize + 1, innerMinZ, maxX, innerMaxZ, consumer);
+    }
+
+    private static long distanceSquared(long anchor, int originChunkX, int originChunkZ) {
+        long dx = ChunkKey.getX(anchor) - originChunkX;
+        long dz = ChunkKey.getZ(anchor) - originChunkZ;
+        return dx * dx + dz * dz;
+    }
+}
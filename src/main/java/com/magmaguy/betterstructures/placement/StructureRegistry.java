@@ -0,0 +1,364 @@
+package com.magmaguy.betterstructures.placement;
+
+import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
+import com.magmaguy.betterstructures.util.ChunkKey;
+import com.magmaguy.magmacore.util.Logger;
+import org.bukkit.World;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable record of every structure BetterStructures pasted.
+ * <p>
+ * Like Anvil, each world gets one file per 32x32 chunk region, stored in the betterstructures folder of the world.
+ * Structures are filed under the region of their anchor chunk as fixed size records, so registering a structure is a
+ * single append. Regions are read whole, kept sorted by anchor chunk for binary searches and cached in a small LRU.
+ * Schematic names are stored once per world in a palette file and referenced by index.
+ * <p>
+ * None of the file access has to happen on the main thread: registering a structure updates the cache right away and
+ * leaves the append to a single writer thread, and the fitters {@link #preload preload} the regions a paste is going
+ * to check. Records that are still waiting for the writer are merged into regions loaded in the meantime. Queries are
+ * main thread only and only read a region from disk if it wasn't preloaded.
+ */
+public class StructureRegistry {
+    private static final String FOLDER_NAME = "betterstructures";
+    private static final String PALETTE_FILENAME = "schematics.txt";
+    //"BSR" followed by the format version
+    private static final int MAGIC = 0x42535201;
+    private static final int HEADER_BYTES = 4;
+    private static final int RECORD_BYTES = 48;
+    private static final int MAX_CACHED_REGIONS = 256;
+    private static final Map<UUID, WorldRegistry> WORLDS = new ConcurrentHashMap<>();
+    private static ExecutorService writer = null;
+
+    private StructureRegistry() {
+    }
+
+    private static synchronized ExecutorService getWriter() {
+        if (writer == null || writer.isShutdown()) {
+            writer = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "BetterStructures-Registry");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return writer;
+    }
+
+    /**
+     * Waits for the queued appends to be written before dropping the caches.
+     */
+    public static void shutdown() {
+        ExecutorService executorService;
+        synchronized (StructureRegistry.class) {
+            executorService = writer;
+            writer = null;
+        }
+        if (executorService != null) {
+            executorService.shutdown();
+            try {
+                if (!executorService.awaitTermination(30, TimeUnit.SECONDS))
+                    Logger.warn("Timed out while saving the structure registry, the latest structures may not be saved!");
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        WORLDS.clear();
+    }
+
+    /**
+     * Registers a structure that was just pasted. The structure is visible to queries right away, the file gets
+     * written in the background. Main thread only.
+     *
+     * @param world           World the structure was pasted in
+     * @param placedStructure The structure
+     */
+    public static void record(World world, PlacedStructure placedStructure) {
+        WorldRegistry worldRegistry = getWorldRegistry(world);
+        worldRegistry.addPending(placedStructure);
+        String worldName = world.getName();
+        getWriter().execute(() -> {
+            try {
+                worldRegistry.append(placedStructure);
+            } catch (IOException exception) {
+                Logger.warn("Failed to save structure " + placedStructure.getSchematicName() + " to the structure registry of " + worldName + "!");
+                exception.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Loads the regions of an area into the cache so that the main thread doesn't have to. Safe to call from any thread.
+     */
+    public static void preload(World world, int minRegionX, int minRegionZ, int maxRegionX, int maxRegionZ) {
+        WorldRegistry worldRegistry = getWorldRegistry(world);
+        for (int regionX = minRegionX; regionX <= maxRegionX; regionX++)
+            for (int regionZ = minRegionZ; regionZ <= maxRegionZ; regionZ++)
+                worldRegistry.getRegion(regionX, regionZ);
+    }
+
+    /**
+     * Gets the structure of a type anchored to a chunk.
+     *
+     * @return The structure, or null if none was registered
+     */
+    public static PlacedStructure get(World world, int anchorChunkX, int anchorChunkZ, GeneratorConfigFields.StructureType structureType) {
+        Region region = getWorldRegistry(world).getRegion(anchorChunkX >> 5, anchorChunkZ >> 5);
+        long key = ChunkKey.pack(anchorChunkX, anchorChunkZ);
+        for (int i = region.firstIndexOf(key); i < region.structures.size() && region.keys[i] == key; i++)
+            if (region.structures.get(i).getStructureType() == structureType) return region.structures.get(i);
+        return null;
+    }
+
+    /**
+     * Gets every structure anchored inside of a 32x32 chunk region.
+     *
+     * @return Unmodifiable list of structures, sorted by anchor chunk
+     */
+    public static List<PlacedStructure> getRegion(World world, int regionX, int regionZ) {
+        return Collections.unmodifiableList(getWorldRegistry(world).getRegion(regionX, regionZ).structures);
+    }
+
+    private static WorldRegistry getWorldRegistry(World world) {
+        return WORLDS.computeIfAbsent(world.getUID(), uuid -> new WorldRegistry(new File(world.getWorldFolder(), FOLDER_NAME)));
+    }
+
+    private static long regionKey(PlacedStructure placedStructure) {
+        return ChunkKey.pack(placedStructure.getAnchorChunkX() >> 5, placedStructure.getAnchorChunkZ() >> 5);
+    }
+
+    /**
+     * The region cache and the pending records are guarded by the registry itself. The files and the palette are
+     * guarded by fileLock, which a load holds from reading the file until it took the pending records, and the writer
+     * from writing a record until it is no longer pending, so that a loaded region never misses or doubles a record.
+     */
+    private static class WorldRegistry {
+        private final File folder;
+        private final Object fileLock = new Object();
+        private final List<String> schematicNames = new ArrayList<>();
+        private final Map<String, Integer> schematicIds = new HashMap<>();
+        //Registered structures the writer didn't write yet, by region
+        private final Map<Long, List<PlacedStructure>> pendingRecords = new HashMap<>();
+        private final LinkedHashMap<Long, Region> regions = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Region> eldest) {
+                return size() > MAX_CACHED_REGIONS;
+            }
+        };
+
+        private WorldRegistry(File folder) {
+            this.folder = folder;
+            File paletteFile = new File(folder, PALETTE_FILENAME);
+            if (!paletteFile.exists()) return;
+            try {
+                for (String name : Files.readAllLines(paletteFile.toPath(), StandardCharsets.UTF_8)) {
+                    schematicIds.putIfAbsent(name, schematicNames.size());
+                    schematicNames.add(name);
+                }
+            } catch (IOException exception) {
+                Logger.warn("Failed to read the structure registry schematic list in " + folder.getPath() + "!");
+                exception.printStackTrace();
+            }
+        }
+
+        private File getRegionFile(int regionX, int regionZ) {
+            return new File(folder, "r." + regionX + "." + regionZ + ".bsr");
+        }
+
+        private synchronized void addPending(PlacedStructure placedStructure) {
+            long key = regionKey(placedStructure);
+            pendingRecords.computeIfAbsent(key, k -> new ArrayList<>()).add(placedStructure);
+            Region region = regions.get(key);
+            if (region != null) region.insert(placedStructure);
+        }
+
+        private synchronized void removePending(PlacedStructure placedStructure) {
+            long key = regionKey(placedStructure);
+            List<PlacedStructure> pending = pendingRecords.get(key);
+            if (pending == null) return;
+            pending.remove(placedStructure);
+            if (pending.isEmpty()) pendingRecords.remove(key);
+        }
+
+        private Region getRegion(int regionX, int regionZ) {
+            long key = ChunkKey.pack(regionX, regionZ);
+            synchronized (this) {
+                Region region = regions.get(key);
+                if (region != null) return region;
+            }
+            synchronized (fileLock) {
+                List<PlacedStructure> structures = load(regionX, regionZ);
+                synchronized (this) {
+                    //Loaded by another thread in the meantime
+                    Region region = regions.get(key);
+                    if (region != null) return region;
+                    List<PlacedStructure> pending = pendingRecords.get(key);
+                    if (pending != null) structures.addAll(pending);
+                    region = new Region();
+                    region.addAll(structures);
+                    regions.put(key, region);
+                    return region;
+                }
+            }
+        }
+
+        /**
+         * Reads the records of a region file. Must hold fileLock.
+         */
+        private List<PlacedStructure> load(int regionX, int regionZ) {
+            List<PlacedStructure> structures = new ArrayList<>();
+            File file = getRegionFile(regionX, regionZ);
+            if (!file.exists()) return structures;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+                if (buffer.remaining() < HEADER_BYTES) return structures;
+                if (buffer.getInt() != MAGIC) {
+                    Logger.warn("Structure registry file " + file.getName() + " has an unknown format and will be ignored!");
+                    return structures;
+                }
+                //A partially written record at the end of the file is skipped
+                int records = buffer.remaining() / RECORD_BYTES;
+                for (int i = 0; i < records; i++) structures.add(read(buffer));
+            } catch (IOException exception) {
+                Logger.warn("Failed to read structure registry file " + file.getName() + "!");
+                exception.printStackTrace();
+            }
+            return structures;
+        }
+
+        private PlacedStructure read(ByteBuffer buffer) {
+            int anchorChunkX = buffer.getInt();
+            int anchorChunkZ = buffer.getInt();
+            int minX = buffer.getInt();
+            int minY = buffer.getInt();
+            int minZ = buffer.getInt();
+            int maxX = buffer.getInt();
+            int maxY = buffer.getInt();
+            int maxZ = buffer.getInt();
+            int schematicId = buffer.getInt();
+            int typeOrdinal = buffer.getInt();
+            long timestamp = buffer.getLong();
+            GeneratorConfigFields.StructureType[] types = GeneratorConfigFields.StructureType.values();
+            return new PlacedStructure(
+                    schematicId >= 0 && schematicId < schematicNames.size() ? schematicNames.get(schematicId) : "unknown",
+                    typeOrdinal >= 0 && typeOrdinal < types.length ? types[typeOrdinal] : GeneratorConfigFields.StructureType.UNDEFINED,
+                    anchorChunkX, anchorChunkZ, minX, minY, minZ, maxX, maxY, maxZ, timestamp);
+        }
+
+        private int getSchematicId(String schematicName) throws IOException {
+            Integer id = schematicIds.get(schematicName);
+            if (id != null) return id;
+            if (!folder.exists()) folder.mkdirs();
+            Files.writeString(new File(folder, PALETTE_FILENAME).toPath(), schematicName + "\n", StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            id = schematicNames.size();
+            schematicNames.add(schematicName);
+            schematicIds.put(schematicName, id);
+            return id;
+        }
+
+        /**
+         * Appends a record to its region file and drops it from the pending records. Runs on the writer thread.
+         */
+        private void append(PlacedStructure placedStructure) throws IOException {
+            synchronized (fileLock) {
+                try {
+                    write(placedStructure);
+                } finally {
+                    //Still under fileLock, so a load sees the record either in the file or pending
+                    removePending(placedStructure);
+                }
+            }
+        }
+
+        private void write(PlacedStructure placedStructure) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + RECORD_BYTES);
+            buffer.putInt(placedStructure.getAnchorChunkX());
+            buffer.putInt(placedStructure.getAnchorChunkZ());
+            buffer.putInt(placedStructure.getMinX());
+            buffer.putInt(placedStructure.getMinY());
+            buffer.putInt(placedStructure.getMinZ());
+            buffer.putInt(placedStructure.getMaxX());
+            buffer.putInt(placedStructure.getMaxY());
+            buffer.putInt(placedStructure.getMaxZ());
+            buffer.putInt(getSchematicId(placedStructure.getSchematicName()));
+            buffer.putInt(placedStructure.getStructureType().ordinal());
+            buffer.putLong(placedStructure.getTimestamp());
+            buffer.flip();
+
+            if (!folder.exists()) folder.mkdirs();
+            File file = getRegionFile(placedStructure.getAnchorChunkX() >> 5, placedStructure.getAnchorChunkZ() >> 5);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long size = channel.size();
+                ByteBuffer output;
+                if (size < HEADER_BYTES) {
+                    output = ByteBuffer.allocate(HEADER_BYTES + RECORD_BYTES);
+                    output.putInt(MAGIC);
+                    output.put(buffer);
+                    output.flip();
+                    size = 0;
+                } else {
+                    output = buffer;
+                    //Drops a partially written record left over by a crash
+                    size -= (size - HEADER_BYTES) % RECORD_BYTES;
+                }
+                channel.write(output, size);
+            }
+        }
+    }
+
+    /**
+     * Structures anchored in one 32x32 chunk region, sorted by {@link ChunkKey#pack(int, int)} of the anchor chunk.
+     * The keys array has spare room at the end so that inserts only shift it.
+     */
+    private static class Region {
+        private final List<PlacedStructure> structures = new ArrayList<>();
+        private long[] keys = new long[0];
+
+        private static long keyOf(PlacedStructure placedStructure) {
+            return ChunkKey.pack(placedStructure.getAnchorChunkX(), placedStructure.getAnchorChunkZ());
+        }
+
+        private void addAll(List<PlacedStructure> loaded) {
+            loaded.sort(Comparator.comparingLong(Region::keyOf));
+            structures.addAll(loaded);
+            keys = new long[Math.max(16, structures.size() + (structures.size() >> 1))];
+            for (int i = 0; i < structures.size(); i++) keys[i] = keyOf(structures.get(i));
+        }
+
+        private void insert(PlacedStructure placedStructure) {
+            long key = keyOf(placedStructure);
+            int index = firstIndexOf(key);
+            while (index < structures.size() && keys[index] == key) index++;
+            if (structures.size() == keys.length) keys = Arrays.copyOf(keys, Math.max(16, keys.length << 1));
+            System.arraycopy(keys, index, keys, index + 1, structures.size() - index);
+            keys[index] = key;
+            structures.add(index, placedStructure);
+        }
+
+        /**
+         * @return Index of the first structure with this key, or of the first one after it if there is none
+         */
+        private int firstIndexOf(long key) {
+            int low = 0;
+            int high = structures.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (keys[middle] < key) low = middle + 1;
+                else high = middle;
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.magmaguy.betterstructures.placement.anvil;
+
+import org.bukkit.Material;
+import org.bukkit.NamespacedKey;
+import org.bukkit.Registry;
+import org.bukkit.block.Biome;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Blocks, biomes and surface heightmap of a chunk decoded from its Anvil NBT.
+ * Only fully generated chunks saved by 1.18 or newer are supported, since older versions use a different layout.
+ */
+public class AnvilChunk {
+    //1.18, the first version that stores sections with block_states and biomes palettes
+    private static final int MIN_DATA_VERSION = 2860;
+    private static final Map<String, Material> MATERIALS = new ConcurrentHashMap<>();
+    private static final Map<String, Optional<Biome>> BIOMES = new ConcurrentHashMap<>();
+    private final int minHeight;
+    private final int maxHeight;
+    private final Material[][] blockPalettes;
+    private final long[][] blockData;
+    private final int[] blockBits;
+    private final Biome[][] biomePalettes;
+    private final long[][] biomeData;
+    private final int[] biomeBits;
+    private final int[] heightmap = new int[256];
+
+    private AnvilChunk(int minHeight, int maxHeight) {
+        this.minHeight = minHeight;
+        this.maxHeight = maxHeight;
+        int sections = (maxHeight - minHeight + 15) >> 4;
+        blockPalettes = new Material[sections][];
+        blockData = new long[sections][];
+        blockBits = new int[sections];
+        biomePalettes = new Biome[sections][];
+        biomeData = new long[sections][];
+        biomeBits = new int[sections];
+    }
+
+    /**
+     * Decodes a chunk.
+     *
+     * @param root      Root compound of the chunk
+     * @param minHeight Minimum height of the world
+     * @param maxHeight Maximum height of the world
+     * @return The chunk, or null if it is not fully generated or was saved by an unsupported version
+     */
+    @SuppressWarnings("unchecked")
+    public static AnvilChunk parse(Map<String, Object> root, int minHeight, int maxHeight) {
+        if (!(root.get("DataVersion") instanceof Integer dataVersion) || dataVersion < MIN_DATA_VERSION) return null;
+        if (!(root.get("Status") instanceof String status) || !status.endsWith("full")) return null;
+        if (!(root.get("sections") instanceof List<?> sections)) return null;
+
+        AnvilChunk chunk = new AnvilChunk(minHeight, maxHeight);
+        int minSection = minHeight >> 4;
+        for (Object sectionObject : sections) {
+            if (!(sectionObject instanceof Map<?, ?>)) continue;
+            Map<String, Object> section = (Map<String, Object>) sectionObject;
+            if (!(section.get("Y") instanceof Byte sectionY)) continue;
+            int index = sectionY - minSection;
+            if (index < 0 || index >= chunk.blockPalettes.length) continue;
+
+            if (section.get("block_states") instanceof Map<?, ?> blockStates) {
+                List<?> palette = (List<?>) blockStates.get("palette");
+                if (palette != null && !palette.isEmpty()) {
+                    Material[] materials = new Material[palette.size()];
+                    for (int i = 0; i < materials.length; i++)
+                        materials[i] = getMaterial((String) ((Map<String, Object>) palette.get(i)).get("Name"));
+                    chunk.blockPalettes[index] = materials;
+                    chunk.blockData[index] = (long[]) blockStates.get("data");
+                    chunk.blockBits[index] = Math.max(4, bitsFor(materials.length));
+                }
+            }
+
+            if (section.get("biomes") instanceof Map<?, ?> biomes) {
+                List<?> palette = (List<?>) biomes.get("palette");
+                if (palette != null && !palette.isEmpty()) {
+                    Biome[] biomePalette = new Biome[palette.size()];
+                    for (int i = 0; i < biomePalette.length; i++)
+                        biomePalette[i] = getBiome((String) palette.get(i));
+                    chunk.biomePalettes[index] = biomePalette;
+                    chunk.biomeData[index] = (long[]) biomes.get("data");
+                    chunk.biomeBits[index] = bitsFor(biomePalette.length);
+                }
+            }
+        }
+
+        long[] surface = null;
+        if (root.get("Heightmaps") instanceof Map<?, ?> heightmaps && heightmaps.get("WORLD_SURFACE") instanceof long[] data)
+            surface = data;
+        int heightBits = bitsFor(maxHeight - minHeight + 1);
+        for (int i = 0; i < 256; i++)
+            chunk.heightmap[i] = surface != null ? unpack(surface, heightBits, i) + minHeight - 1 : chunk.scanHighestBlockY(i & 15, i >> 4);
+        return chunk;
+    }
+
+    private static Material getMaterial(String name) {
+        if (name == null) return Material.AIR;
+        return MATERIALS.computeIfAbsent(name, key -> {
+            Material material = Material.matchMaterial(key);
+            return material != null ? material : Material.AIR;
+        });
+    }
+
+    private static Biome getBiome(String name) {
+        if (name == null) return null;
+        return BIOMES.computeIfAbsent(name, key -> {
+            NamespacedKey namespacedKey = NamespacedKey.fromString(key);
+            return Optional.ofNullable(namespacedKey != null ? Registry.BIOME.get(namespacedKey) : null);
+        }).orElse(null);
+    }
+
+    private static int bitsFor(int values) {
+        return values <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(values - 1);
+    }
+
+    /**
+     * Entries are packed from the lowest bits up and never span two longs.
+     */
+    private static int unpack(long[] data, int bits, int index) {
+        if (bits == 0 || data == null) return 0;
+        int valuesPerLong = 64 / bits;
+        int longIndex = index / valuesPerLong;
+        if (longIndex >= data.length) return 0;
+        int offset = (index % valuesPerLong) * bits;
+        return (int) ((data[longIndex] >>> offset) & ((1L << bits) - 1));
+    }
+
+    private int scanHighestBlockY(int localX, int localZ) {
+        for (int y = maxHeight - 1; y >= minHeight; y--)
+            if (!getType(localX, y, localZ).isAir()) return y;
+        return minHeight - 1;
+    }
+
+    public Material getType(int localX, int blockY, int localZ) {
+        if (blockY < minHeight || blockY >= maxHeight) return Material.VOID_AIR;
+        int section = (blockY >> 4) - (minHeight >> 4);
+        Material[] palette = blockPalettes[section];
+        if (palette == null) return Material.AIR;
+        if (palette.length == 1) return palette[0];
+        int value = unpack(blockData[section], blockBits[section], ((blockY & 15) << 8) | ((localZ & 15) << 4) | (localX & 15));
+        return value < palette.length ? palette[value] : Material.AIR;
+    }
+
+    public int getHighestBlockYAt(int localX, int localZ) {
+        return heightmap[((localZ & 15) << 4) | (localX & 15)];
+    }
+
+    public Biome getBiome(int localX, int blockY, int localZ) {
+        blockY = Math.max(minHeight, Math.min(maxHeight - 1, blockY));
+        int section = (blockY >> 4) - (minHeight >> 4);
+        Biome[] palette = biomePalettes[section];
+        if (palette == null) return null;
+        if (palette.length == 1) return palette[0];
+        int value = unpack(biomeData[section], biomeBits[section], (((blockY & 15) >> 2) << 4) | (((localZ & 15) >> 2) << 2) | ((localX & 15) >> 2));
+        return value < palette.length ? palette[value] : palette[0];
+    }
+}
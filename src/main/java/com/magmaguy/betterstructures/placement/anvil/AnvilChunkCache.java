@@ -0,0 +1,129 @@
+package com.magmaguy.betterstructures.placement.anvil;
+
+import com.magmaguy.betterstructures.util.ChunkKey;
+import com.magmaguy.betterstructures.util.LongHashSet;
+import com.magmaguy.magmacore.util.Logger;
+import lombok.Getter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Open region files and decoded chunks of one dimension, so that neighbouring anchors share the chunks they both
+ * reach. Meant to be owned by a single worker thread, not thread safe.
+ */
+public class AnvilChunkCache implements AutoCloseable {
+    private static final int MAX_OPEN_REGIONS = 4;
+    //Covers the 9x9 chunk capture of every anchor of a region row with room to spare
+    private static final int MAX_CACHED_CHUNKS = 2048;
+    private final File regionFolder;
+    private final int minHeight;
+    private final int maxHeight;
+    //Region files and chunks that couldn't be read, the server may have been writing them at the time
+    private final LongHashSet unreadableRegions = new LongHashSet(4);
+    private final LongHashSet unreadableChunks = new LongHashSet(16);
+    //Counts every lookup that hit an unreadable region file or chunk, so callers can tell the terrain they got is incomplete
+    @Getter
+    private int readFailures = 0;
+    private final LinkedHashMap<Long, AnvilRegionFile> regionFiles = new LinkedHashMap<>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, AnvilRegionFile> eldest) {
+            if (size() <= MAX_OPEN_REGIONS) return false;
+            closeQuietly(eldest.getValue());
+            return true;
+        }
+    };
+    //Null values mark chunks that are missing or unreadable, so they are not read twice
+    private final LinkedHashMap<Long, AnvilChunk> chunks = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, AnvilChunk> eldest) {
+            return size() > MAX_CACHED_CHUNKS;
+        }
+    };
+
+    public AnvilChunkCache(File regionFolder, int minHeight, int maxHeight) {
+        this.regionFolder = regionFolder;
+        this.minHeight = minHeight;
+        this.maxHeight = maxHeight;
+    }
+
+    private static void closeQuietly(AnvilRegionFile regionFile) {
+        if (regionFile == null) return;
+        try {
+            regionFile.close();
+        } catch (IOException exception) {
+            //Read-only, nothing to lose
+        }
+    }
+
+    /**
+     * @return True if the region file holding the chunk has data for it, without decoding it
+     */
+    public boolean hasChunk(int chunkX, int chunkZ) {
+        AnvilRegionFile regionFile = getRegionFile(chunkX >> 5, chunkZ >> 5);
+        return regionFile != null && regionFile.hasChunk(chunkX & 31, chunkZ & 31);
+    }
+
+    /**
+     * @return The decoded chunk, or null if it was never generated, is not fully generated or can't be read
+     */
+    public AnvilChunk getChunk(int chunkX, int chunkZ) {
+        long key = ChunkKey.pack(chunkX, chunkZ);
+        if (chunks.containsKey(key)) {
+            AnvilChunk chunk = chunks.get(key);
+            if (chunk == null && unreadableChunks.contains(key)) readFailures++;
+            return chunk;
+        }
+        AnvilChunk chunk = null;
+        AnvilRegionFile regionFile = getRegionFile(chunkX >> 5, chunkZ >> 5);
+        if (regionFile != null && regionFile.hasChunk(chunkX & 31, chunkZ & 31)) {
+            try {
+                Map<String, Object> root = regionFile.readChunk(chunkX, chunkZ);
+                if (root != null) chunk = AnvilChunk.parse(root, minHeight, maxHeight);
+            } catch (IOException | RuntimeException exception) {
+                Logger.warn("Failed to read chunk " + chunkX + ", " + chunkZ + " from " + regionFolder.getPath() + "!");
+                unreadableChunks.add(key);
+                readFailures++;
+            }
+        }
+        chunks.put(key, chunk);
+        return chunk;
+    }
+
+    private AnvilRegionFile getRegionFile(int regionX, int regionZ) {
+        long key = ChunkKey.pack(regionX, regionZ);
+        if (regionFiles.containsKey(key)) {
+            AnvilRegionFile regionFile = regionFiles.get(key);
+            if (regionFile == null && unreadableRegions.contains(key)) readFailures++;
+            return regionFile;
+        }
+        if (unreadableRegions.contains(key)) {
+            readFailures++;
+            return null;
+        }
+        AnvilRegionFile regionFile = null;
+        File file = new File(regionFolder, "r." + regionX + "." + regionZ + ".mca");
+        if (file.exists()) {
+            try {
+                regionFile = new AnvilRegionFile(file);
+            } catch (IOException exception) {
+                Logger.warn("Failed to open region file " + file.getPath() + "!");
+                unreadableRegions.add(key);
+                readFailures++;
+            }
+        }
+        regionFiles.put(key, regionFile);
+        return regionFile;
+    }
+
+    @Override
+    public void close() {
+        regionFiles.values().forEach(AnvilChunkCache::closeQuietly);
+        regionFiles.clear();
+        chunks.clear();
+        unreadableRegions.clear();
+        unreadableChunks.clear();
+    }
+}
@@ -0,0 +1,106 @@
+package com.magmaguy.betterstructures.placement.anvil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Read-only access to a Minecraft .mca region file, which stores the 32x32 chunks of one region.
+ * Reads go through positional {@link FileChannel} reads, so the file is never locked and nothing is loaded into the
+ * server.
+ */
+public class AnvilRegionFile implements Closeable {
+    private static final int SECTOR_BYTES = 4096;
+    private static final int COMPRESSION_GZIP = 1;
+    private static final int COMPRESSION_ZLIB = 2;
+    private static final int COMPRESSION_NONE = 3;
+    //Set on the compression byte when the chunk is too large and lives in its own .mcc file
+    private static final int EXTERNAL_FLAG = 128;
+    private final File file;
+    private final FileChannel channel;
+    private final int[] locations = new int[1024];
+
+    public AnvilRegionFile(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        if (channel.size() < SECTOR_BYTES) return;
+        ByteBuffer header = ByteBuffer.allocate(SECTOR_BYTES);
+        readFully(header, 0);
+        header.flip();
+        for (int i = 0; i < locations.length; i++) locations[i] = header.getInt();
+    }
+
+    /**
+     * @param localX Chunk X inside of the region, 0 to 31
+     * @param localZ Chunk Z inside of the region, 0 to 31
+     * @return True if the region file has data for the chunk
+     */
+    public boolean hasChunk(int localX, int localZ) {
+        return locations[(localX & 31) + (localZ & 31) * 32] != 0;
+    }
+
+    /**
+     * Reads and decompresses the NBT of a chunk.
+     *
+     * @param chunkX Absolute chunk X
+     * @param chunkZ Absolute chunk Z
+     * @return The root compound of the chunk, or null if it is missing or uses an unsupported compression
+     */
+    public Map<String, Object> readChunk(int chunkX, int chunkZ) throws IOException {
+        int location = locations[(chunkX & 31) + (chunkZ & 31) * 32];
+        if (location == 0) return null;
+        long offset = (long) (location >>> 8) * SECTOR_BYTES;
+        int sectors = location & 0xFF;
+        if (offset + 5 > channel.size()) return null;
+
+        ByteBuffer header = ByteBuffer.allocate(5);
+        readFully(header, offset);
+        header.flip();
+        int length = header.getInt();
+        int compression = header.get() & 0xFF;
+
+        InputStream rawInput;
+        if ((compression & EXTERNAL_FLAG) != 0) {
+            File external = new File(file.getParentFile(), "c." + chunkX + "." + chunkZ + ".mcc");
+            if (!external.exists()) return null;
+            rawInput = new BufferedInputStream(new FileInputStream(external));
+            compression &= ~EXTERNAL_FLAG;
+        } else {
+            if (length <= 1 || length > sectors * SECTOR_BYTES) return null;
+            ByteBuffer data = ByteBuffer.allocate(length - 1);
+            readFully(data, offset + 5);
+            rawInput = new ByteArrayInputStream(data.array());
+        }
+
+        InputStream input = switch (compression) {
+            case COMPRESSION_GZIP -> new GZIPInputStream(rawInput);
+            case COMPRESSION_ZLIB -> new InflaterInputStream(rawInput);
+            case COMPRESSION_NONE -> rawInput;
+            //LZ4 and custom compressions need libraries the server doesn't ship with
+            default -> null;
+        };
+        if (input == null) {
+            rawInput.close();
+            return null;
+        }
+        try (DataInputStream dataInput = new DataInputStream(new BufferedInputStream(input))) {
+            return NbtReader.readRoot(dataInput);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new EOFException("Truncated region file " + file.getName());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
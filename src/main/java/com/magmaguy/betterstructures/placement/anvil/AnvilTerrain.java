@@ -0,0 +1,87 @@
+package com.magmaguy.betterstructures.placement.anvil;
+
+import com.magmaguy.betterstructures.buildingfitter.util.TerrainSource;
+import lombok.Getter;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Biome;
+
+/**
+ * {@link TerrainSource} backed by the region files on disk instead of loaded chunks.
+ * Chunks are decoded on first access through an {@link AnvilChunkCache}; chunks that were never fully generated read
+ * as not captured, exactly like the chunks a {@link com.magmaguy.betterstructures.buildingfitter.util.ChunkSnapshotRegion} leaves out.
+ */
+public class AnvilTerrain implements TerrainSource {
+    @Getter
+    private final World world;
+    @Getter
+    private final World.Environment environment;
+    @Getter
+    private final int minHeight;
+    @Getter
+    private final int maxHeight;
+    @Getter
+    private final int centerChunkX;
+    @Getter
+    private final int centerChunkZ;
+    @Getter
+    private final int radius;
+    private final int diameter;
+    private final AnvilChunkCache chunkCache;
+    private final AnvilChunk[] chunks;
+    private final boolean[] fetched;
+
+    public AnvilTerrain(World world, World.Environment environment, int minHeight, int maxHeight,
+                        int centerChunkX, int centerChunkZ, int radius, AnvilChunkCache chunkCache) {
+        this.world = world;
+        this.environment = environment;
+        this.minHeight = minHeight;
+        this.maxHeight = maxHeight;
+        this.centerChunkX = centerChunkX;
+        this.centerChunkZ = centerChunkZ;
+        this.radius = radius;
+        this.diameter = radius * 2 + 1;
+        this.chunkCache = chunkCache;
+        this.chunks = new AnvilChunk[diameter * diameter];
+        this.fetched = new boolean[diameter * diameter];
+    }
+
+    private AnvilChunk chunkAt(int blockX, int blockZ) {
+        int dx = (blockX >> 4) - centerChunkX;
+        int dz = (blockZ >> 4) - centerChunkZ;
+        if (dx < -radius || dx > radius || dz < -radius || dz > radius) return null;
+        int index = (dx + radius) * diameter + (dz + radius);
+        if (!fetched[index]) {
+            chunks[index] = chunkCache.getChunk(blockX >> 4, blockZ >> 4);
+            fetched[index] = true;
+        }
+        return chunks[index];
+    }
+
+    @Override
+    public boolean isCaptured(int blockX, int blockZ) {
+        return chunkAt(blockX, blockZ) != null;
+    }
+
+    @Override
+    public Material getType(int blockX, int blockY, int blockZ) {
+        if (blockY < minHeight || blockY >= maxHeight) return Material.VOID_AIR;
+        AnvilChunk chunk = chunkAt(blockX, blockZ);
+        if (chunk == null) return Material.VOID_AIR;
+        return chunk.getType(blockX & 15, blockY, blockZ & 15);
+    }
+
+    @Override
+    public int getHighestBlockYAt(int blockX, int blockZ) {
+        AnvilChunk chunk = chunkAt(blockX, blockZ);
+        if (chunk == null) return Integer.MIN_VALUE;
+        return chunk.getHighestBlockYAt(blockX & 15, blockZ & 15);
+    }
+
+    @Override
+    public Biome getBiome(int blockX, int blockY, int blockZ) {
+        AnvilChunk chunk = chunkAt(blockX, blockZ);
+        if (chunk == null) return null;
+        return chunk.getBiome(blockX & 15, blockY, blockZ & 15);
+    }
+}
@@ -0,0 +1,105 @@
+package com.magmaguy.betterstructures.placement.anvil;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal reader for the uncompressed named binary tag format used by Anvil chunks.
+ * Compounds become maps, lists become lists, arrays and primitives keep their Java types.
+ */
+public class NbtReader {
+    private static final int TAG_END = 0;
+    private static final int TAG_BYTE = 1;
+    private static final int TAG_SHORT = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_FLOAT = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_BYTE_ARRAY = 7;
+    private static final int TAG_STRING = 8;
+    private static final int TAG_LIST = 9;
+    private static final int TAG_COMPOUND = 10;
+    private static final int TAG_INT_ARRAY = 11;
+    private static final int TAG_LONG_ARRAY = 12;
+    //Chunks never nest anywhere near this deep, anything past it is a corrupted file
+    private static final int MAX_DEPTH = 512;
+
+    private NbtReader() {
+    }
+
+    /**
+     * Reads the root compound of a chunk.
+     *
+     * @return The root compound, or null if the data does not start with a compound
+     */
+    public static Map<String, Object> readRoot(DataInput input) throws IOException {
+        if (input.readByte() != TAG_COMPOUND) return null;
+        input.readUTF();
+        return readCompound(input, 0);
+    }
+
+    private static Map<String, Object> readCompound(DataInput input, int depth) throws IOException {
+        Map<String, Object> compound = new HashMap<>();
+        while (true) {
+            int type = input.readByte();
+            if (type == TAG_END) return compound;
+            String name = input.readUTF();
+            compound.put(name, readPayload(input, type, depth + 1));
+        }
+    }
+
+    private static Object readPayload(DataInput input, int type, int depth) throws IOException {
+        if (depth > MAX_DEPTH) throw new IOException("NBT nested too deep");
+        switch (type) {
+            case TAG_BYTE:
+                return input.readByte();
+            case TAG_SHORT:
+                return input.readShort();
+            case TAG_INT:
+                return input.readInt();
+            case TAG_LONG:
+                return input.readLong();
+            case TAG_FLOAT:
+                return input.readFloat();
+            case TAG_DOUBLE:
+                return input.readDouble();
+            case TAG_BYTE_ARRAY: {
+                byte[] array = new byte[checkLength(input.readInt())];
+                input.readFully(array);
+                return array;
+            }
+            case TAG_STRING:
+                return input.readUTF();
+            case TAG_LIST: {
+                int elementType = input.readByte();
+                int length = checkLength(input.readInt());
+                List<Object> list = new ArrayList<>(length);
+                for (int i = 0; i < length; i++) list.add(readPayload(input, elementType, depth + 1));
+                return list;
+            }
+            case TAG_COMPOUND:
+                return readCompound(input, depth);
+            case TAG_INT_ARRAY: {
+                int[] array = new int[checkLength(input.readInt())];
+                for (int i = 0; i < array.length; i++) array[i] = input.readInt();
+                return array;
+            }
+            case TAG_LONG_ARRAY: {
+                long[] array = new long[checkLength(input.readInt())];
+                for (int i = 0; i < array.length; i++) array[i] = input.readLong();
+                return array;
+            }
+            default:
+                throw new IOException("Unknown NBT tag type " + type);
+        }
+    }
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > 1 << 24) throw new IOException("Invalid NBT length " + length);
+        return length;
+    }
+}
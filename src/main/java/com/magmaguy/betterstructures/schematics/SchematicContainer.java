@@ -1,16 +1,20 @@
 package com.magmaguy.betterstructures.schematics;
 
 import com.google.common.collect.ArrayListMultimap;
+import com.magmaguy.betterstructures.buildingfitter.util.FitProfile;
 import com.magmaguy.betterstructures.chests.ChestContents;
 import com.magmaguy.betterstructures.config.generators.GeneratorConfigFields;
 import com.magmaguy.betterstructures.config.schematics.SchematicConfigField;
 import com.magmaguy.betterstructures.config.treasures.TreasureConfig;
 import com.magmaguy.betterstructures.config.treasures.TreasureConfigFields;
 import com.magmaguy.betterstructures.util.WorldEditUtils;
+import com.magmaguy.betterstructures.worldedit.CompiledSchematic;
 import com.magmaguy.magmacore.util.Logger;
+import com.sk89q.worldedit.WorldEditException;
 import com.sk89q.worldedit.bukkit.BukkitAdapter;
 import com.sk89q.worldedit.extent.clipboard.Clipboard;
 import com.sk89q.worldedit.math.BlockVector3;
+import com.sk89q.worldedit.math.transform.AffineTransform;
 import com.sk89q.worldedit.world.block.BaseBlock;
 import com.sk89q.worldedit.world.block.BlockState;
 import lombok.Getter;
@@ -24,10 +28,14 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SchematicContainer {
     @Getter
     private static final ArrayListMultimap<GeneratorConfigFields.StructureType, SchematicContainer> schematics = ArrayListMultimap.create();
+    //Biome identifiers only depend on the biome, so the reflection runs once per biome
+    private static final Map<Object, String> BIOME_IDENTIFIERS = new ConcurrentHashMap<>();
     @Getter
     private final Clipboard clipboard;
     @Getter
@@ -52,6 +60,8 @@ public class SchematicContainer {
     private ChestContents chestContents = null;
     @Getter
     private boolean valid = true;
+    private final Map<Integer, FitProfile> fitProfiles = new ConcurrentHashMap<>();
+    private final CompiledSchematic[] compiledSchematics = new CompiledSchematic[FitProfile.ROTATIONS];
 
     public SchematicContainer(Clipboard clipboard, String clipboardFilename, SchematicConfigField schematicConfigField, String configFilename) {
         this.clipboard = clipboard;
@@ -143,12 +153,95 @@ public class SchematicContainer {
             }
             chestContents = schematicConfigField.getChestContents();
         }
-        if (valid)
+        if (valid) {
+            getFitProfile(FitProfile.DEFAULT_SCAN_STEP);
             generatorConfigFields.getStructureTypes().forEach(structureType -> schematics.put(structureType, this));
+        }
     }
 
     public static void shutdown() {
         schematics.clear();
+        BIOME_IDENTIFIERS.clear();
+    }
+
+    /**
+     * Gets the sample points that terrain adequacy scans score this schematic at.
+     *
+     * @param scanStep Distance between samples
+     * @return The profile, compiled on first use for steps other than {@link FitProfile#DEFAULT_SCAN_STEP}
+     */
+    public FitProfile getFitProfile(int scanStep) {
+        return fitProfiles.computeIfAbsent(scanStep * FitProfile.ROTATIONS, key -> FitProfile.compile(clipboard, scanStep));
+    }
+
+    /**
+     * Gets the sample points of the schematic turned around the Y axis.
+     *
+     * @param scanStep     Distance between samples
+     * @param quarterTurns Quarter turns, from 0 to 3
+     * @return The profile, rotated from the unrotated one on first use
+     */
+    public FitProfile getFitProfile(int scanStep, int quarterTurns) {
+        if (quarterTurns == 0) return getFitProfile(scanStep);
+        FitProfile unrotated = getFitProfile(scanStep);
+        return fitProfiles.computeIfAbsent(scanStep * FitProfile.ROTATIONS + quarterTurns,
+                key -> FitProfile.rotate(unrotated, quarterTurns));
+    }
+
+    /**
+     * @return Offset from the schematic origin to the lowest corner once the schematic is turned around the Y axis,
+     * without having to rotate the clipboard
+     */
+    public Vector getSchematicOffset(int quarterTurns) {
+        BlockVector3 min = clipboard.getMinimumPoint().subtract(clipboard.getOrigin());
+        BlockVector3 max = clipboard.getMaximumPoint().subtract(clipboard.getOrigin());
+        return switch (quarterTurns & 3) {
+            case 1 -> new Vector(-max.z(), min.y(), min.x());
+            case 2 -> new Vector(-max.x(), min.y(), -max.z());
+            case 3 -> new Vector(min.z(), min.y(), -max.x());
+            default -> new Vector(min.x(), min.y(), min.z());
+        };
+    }
+
+    /**
+     * Rotates the clipboard around its origin, clockwise seen from above like modules are, which is the direction
+     * {@link FitProfile#rotateX} and {@link #getSchematicOffset(int)} turn. Rotated clipboards are not cached, this is
+     * only meant for the schematic that won a fit.
+     *
+     * @param quarterTurns Quarter turns, from 0 to 3
+     * @return The rotated clipboard
+     */
+    public Clipboard getRotatedClipboard(int quarterTurns) throws WorldEditException {
+        if (quarterTurns == 0) return clipboard;
+        return clipboard.transform(new AffineTransform().rotateY(-90 * quarterTurns));
+    }
+
+    /**
+     * Gets the schematic compiled for pasting at a rotation, compiling it from the clipboard the first time that
+     * rotation gets pasted.
+     *
+     * @param quarterTurns     Quarter turns, from 0 to 3
+     * @param rotatedClipboard The clipboard at that rotation, see {@link #getRotatedClipboard(int)}
+     * @return The compiled schematic
+     */
+    public synchronized CompiledSchematic getCompiledSchematic(int quarterTurns, Clipboard rotatedClipboard) {
+        if (compiledSchematics[quarterTurns] == null)
+            compiledSchematics[quarterTurns] = CompiledSchematic.compile(rotatedClipboard);
+        return compiledSchematics[quarterTurns];
+    }
+
+    /**
+     * Moves a position given from the lowest corner of the schematic, like the chest and spawn positions, to where it
+     * ends up once the schematic is turned around the Y axis.
+     */
+    public Vector rotatePosition(Vector position, int quarterTurns) {
+        if (quarterTurns == 0) return position;
+        int width = clipboard.getDimensions().x();
+        int depth = clipboard.getDimensions().z();
+        return new Vector(
+                FitProfile.rotateX(position.getBlockX(), position.getBlockZ(), width, depth, quarterTurns),
+                position.getY(),
+                FitProfile.rotateZ(position.getBlockX(), position.getBlockZ(), width, depth, quarterTurns));
     }
 
     public boolean isValidEnvironment(World.Environment environment) {
@@ -169,7 +262,7 @@ public class SchematicContainer {
         if (generatorConfigFields.getValidBiomesNamespaces().isEmpty()) return true;
 
         // Extract biome identifier based on version
-        String biomeString = getBiomeIdentifier(biomeObj);
+        String biomeString = BIOME_IDENTIFIERS.computeIfAbsent(biomeObj, SchematicContainer::getBiomeIdentifier);
 
         for (String validBiome : generatorConfigFields.getValidBiomesNamespaces()) {
             if (biomeString.equals(validBiome)) {
@@ -187,7 +280,7 @@ public class SchematicContainer {
      * @param biomeObj The biome to get an identifier for (passed as Object to avoid class casting issues)
      * @return A string identifier for the biome
      */
-    private String getBiomeIdentifier(Object biomeObj) {
+    private static String getBiomeIdentifier(Object biomeObj) {
         // First, try to use reflection to safely handle both class and interface versions
         try {
             // Try to get the getKey method (newer versions)
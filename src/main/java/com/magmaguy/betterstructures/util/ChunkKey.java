@@ -0,0 +1,47 @@
+package com.magmaguy.betterstructures.util;
+
+import org.bukkit.World;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Packs chunk coordinates into a single long so they can be used as map keys without allocating.
+ */
+public class ChunkKey {
+    //Worlds get a small index so that the world can be packed alongside the coordinates
+    private static final Map<UUID, Integer> WORLD_INDICES = new ConcurrentHashMap<>();
+    private static final int WORLD_BITS = 12;
+    private static final int COORDINATE_BITS = 26;
+    private static final long COORDINATE_MASK = (1L << COORDINATE_BITS) - 1;
+
+    private ChunkKey() {
+    }
+
+    public static long pack(int chunkX, int chunkZ) {
+        return (chunkX & 0xFFFFFFFFL) | ((chunkZ & 0xFFFFFFFFL) << 32);
+    }
+
+    public static int getX(long key) {
+        return (int) key;
+    }
+
+    public static int getZ(long key) {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * Packs the world alongside the chunk coordinates. 26 bits per coordinate cover the 30 million block world border
+     * several times over, and 12 bits leave room for 4096 worlds per server run.
+     *
+     * @param world  World of the chunk
+     * @param chunkX Chunk X coordinate
+     * @param chunkZ Chunk Z coordinate
+     * @return Key unique to this chunk of this world
+     */
+    public static long pack(World world, int chunkX, int chunkZ) {
+        long worldIndex = WORLD_INDICES.computeIfAbsent(world.getUID(), uuid -> WORLD_INDICES.size()) & ((1L << WORLD_BITS) - 1);
+        return (worldIndex << (COORDINATE_BITS * 2)) | ((chunkZ & COORDINATE_MASK) << COORDINATE_BITS) | (chunkX & COORDINATE_MASK);
+    }
+}
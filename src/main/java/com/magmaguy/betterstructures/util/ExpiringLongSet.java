@@ -0,0 +1,92 @@
+package com.magmaguy.betterstructures.util;
+
+import com.magmaguy.betterstructures.MetadataHandler;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Arrays;
+
+/**
+ * Set of primitive longs whose entries expire a fixed number of ticks after they are added.
+ * <p>
+ * Expiry runs on a time wheel: every slot holds the keys added during one tick, and a single repeating task clears
+ * the slot that is due. The slot arrays are reused, so a steady stream of keys does not allocate anything.
+ * Main thread only.
+ */
+public class ExpiringLongSet {
+    private final LongHashSet keys = new LongHashSet(256);
+    private final int ttlTicks;
+    private final long[][] wheel;
+    private final int[] slotSizes;
+    private final int wheelMask;
+    private long currentTick = 0;
+    private BukkitTask task = null;
+
+    /**
+     * @param ttlTicks Ticks after which an added key is removed again
+     */
+    public ExpiringLongSet(int ttlTicks) {
+        this.ttlTicks = Math.max(1, ttlTicks);
+        int slots = Integer.highestOneBit(this.ttlTicks) << 1;
+        wheel = new long[slots][16];
+        slotSizes = new int[slots];
+        wheelMask = slots - 1;
+    }
+
+    public void start() {
+        if (task != null) return;
+        task = new BukkitRunnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }.runTaskTimer(MetadataHandler.PLUGIN, 1, 1);
+    }
+
+    public void shutdown() {
+        if (task != null) task.cancel();
+        task = null;
+        clear();
+    }
+
+    /**
+     * @return True if the key was not in the set yet, in which case it expires after the configured ticks
+     */
+    public boolean add(long key) {
+        if (!keys.add(key)) return false;
+        int slot = (int) ((currentTick + ttlTicks) & wheelMask);
+        int size = slotSizes[slot];
+        if (size == wheel[slot].length) {
+            long[] grown = new long[size << 1];
+            System.arraycopy(wheel[slot], 0, grown, 0, size);
+            wheel[slot] = grown;
+        }
+        wheel[slot][size] = key;
+        slotSizes[slot] = size + 1;
+        return true;
+    }
+
+    public boolean contains(long key) {
+        return keys.contains(key);
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * Advances the wheel by one tick and drops the keys that are due.
+     */
+    public void tick() {
+        currentTick++;
+        int slot = (int) (currentTick & wheelMask);
+        long[] expired = wheel[slot];
+        for (int i = 0; i < slotSizes[slot]; i++) keys.remove(expired[i]);
+        slotSizes[slot] = 0;
+    }
+
+    public void clear() {
+        keys.clear();
+        Arrays.fill(slotSizes, 0);
+    }
+}
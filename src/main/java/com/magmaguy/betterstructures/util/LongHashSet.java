@@ -0,0 +1,127 @@
+package com.magmaguy.betterstructures.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash set of primitive longs. Adding and removing keys does not allocate unless the set grows.
+ * Not thread safe.
+ */
+public class LongHashSet {
+    private static final float LOAD_FACTOR = 0.5F;
+    //0 marks empty slots, so the key 0 itself is tracked on the side
+    private boolean containsZero = false;
+    private long[] keys;
+    private int mask;
+    private int size = 0;
+    private int resizeThreshold;
+
+    public LongHashSet(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new long[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private static int mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    public boolean contains(long key) {
+        if (key == 0) return containsZero;
+        int index = mix(key) & mask;
+        while (keys[index] != 0) {
+            if (keys[index] == key) return true;
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return True if the key was not in the set yet
+     */
+    public boolean add(long key) {
+        if (key == 0) {
+            if (containsZero) return false;
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int index = mix(key) & mask;
+        while (keys[index] != 0) {
+            if (keys[index] == key) return false;
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        if (++size >= resizeThreshold) resize(keys.length << 1);
+        return true;
+    }
+
+    /**
+     * @return True if the key was in the set
+     */
+    public boolean remove(long key) {
+        if (key == 0) {
+            if (!containsZero) return false;
+            containsZero = false;
+            size--;
+            return true;
+        }
+        int index = mix(key) & mask;
+        while (keys[index] != 0) {
+            if (keys[index] == key) {
+                shiftBack(index);
+                size--;
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Backward shift deletion, keeps the probe chains intact without tombstones.
+     */
+    private void shiftBack(int freed) {
+        int index = (freed + 1) & mask;
+        while (keys[index] != 0) {
+            int home = mix(keys[index]) & mask;
+            //Only move entries whose home slot is not between the freed slot and their current slot
+            if (((index - home) & mask) >= ((index - freed) & mask)) {
+                keys[freed] = keys[index];
+                freed = index;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[freed] = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        keys = new long[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+        for (long key : oldKeys) {
+            if (key == 0) continue;
+            int index = mix(key) & mask;
+            while (keys[index] != 0) index = (index + 1) & mask;
+            keys[index] = key;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        containsZero = false;
+        size = 0;
+    }
+}
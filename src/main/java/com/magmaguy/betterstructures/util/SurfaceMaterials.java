@@ -3,11 +3,75 @@ package com.magmaguy.betterstructures.util;
 import com.magmaguy.magmacore.util.VersionChecker;
 import org.bukkit.Material;
 
+/**
+ * Material classification used by the fitters and the paste clean-up, resolved for every material once at startup
+ * into a flag table indexed by {@link Material#ordinal()}.
+ */
 public class SurfaceMaterials {
+    public static final byte IGNORABLE = 1;
+    public static final byte SOLID = 1 << 1;
+    public static final byte LIQUID = 1 << 2;
+    public static final byte AIR = 1 << 3;
+    public static final byte PEDESTAL = 1 << 4;
+    //Ignorable blocks that are not air, which is what tree clearing removes
+    public static final byte TREE_PART = 1 << 5;
+    private static final byte[] FLAGS = buildFlags();
+
     private SurfaceMaterials() {
     }
 
+    private static byte[] buildFlags() {
+        Material[] materials = Material.values();
+        byte[] flags = new byte[materials.length];
+        //Resolved once here rather than for every unknown material
+        boolean shortGrass = !VersionChecker.serverVersionOlderThan(21, 0);
+        for (Material material : materials) {
+            //Legacy materials have no key and no block data, they never show up in the world
+            if (material.isLegacy()) continue;
+            byte materialFlags = 0;
+            boolean ignorable = isIgnorable(material, shortGrass);
+            if (ignorable) materialFlags |= IGNORABLE;
+            if (material.isSolid()) materialFlags |= SOLID;
+            if (material == Material.WATER || material == Material.LAVA) materialFlags |= LIQUID;
+            if (material.isAir()) materialFlags |= AIR;
+            if (isPedestal(material)) materialFlags |= PEDESTAL;
+            if (ignorable && !material.isAir()) materialFlags |= TREE_PART;
+            flags[material.ordinal()] = materialFlags;
+        }
+        return flags;
+    }
+
+    /**
+     * @return The flags of the material, a single array load
+     */
+    public static byte flagsOf(Material material) {
+        return FLAGS[material.ordinal()];
+    }
+
     public static boolean ignorable(Material material) {
+        return (FLAGS[material.ordinal()] & IGNORABLE) != 0;
+    }
+
+    public static boolean isSolid(Material material) {
+        return (FLAGS[material.ordinal()] & SOLID) != 0;
+    }
+
+    /**
+     * @return True for solid blocks that are not ignorable, the ones pedestals copy their material from
+     */
+    public static boolean isSolidGround(Material material) {
+        return (FLAGS[material.ordinal()] & (SOLID | IGNORABLE)) == SOLID;
+    }
+
+    public static boolean isTreePart(Material material) {
+        return (FLAGS[material.ordinal()] & TREE_PART) != 0;
+    }
+
+    public static boolean isPedestalMaterial(Material material) {
+        return (FLAGS[material.ordinal()] & PEDESTAL) != 0;
+    }
+
+    private static boolean isIgnorable(Material material, boolean shortGrass) {
         return switch (material.name()) {
             case "ACACIA_LOG", "BIRCH_LOG", "DARK_OAK_LOG", "JUNGLE_LOG", "MANGROVE_LOG", "OAK_LOG", "SPRUCE_LOG",
                  "STRIPPED_ACACIA_LOG", "STRIPPED_BIRCH_LOG", "STRIPPED_DARK_OAK_LOG", "STRIPPED_JUNGLE_LOG",
@@ -31,7 +95,7 @@ public class SurfaceMaterials {
                  "WARPED_HYPHAE", "WARPED_NYLIUM", "WARPED_ROOTS", "STRIPPED_WARPED_HYPHAE", "STRIPPED_WARPED_STEM",
                  "NETHER_SPROUTS", "BONE_BLOCK", "LARGE_FERN" -> true;
             default -> {
-                if (!VersionChecker.serverVersionOlderThan(21, 0) &&
+                if (shortGrass &&
                         (material.name().equals("SHORT_GRASS")))
                     yield true;
                 else if (material.getKey().getKey().equalsIgnoreCase("grass"))
@@ -42,7 +106,7 @@ public class SurfaceMaterials {
         };
     }
 
-    public static boolean isPedestalMaterial(Material material){
+    private static boolean isPedestal(Material material) {
         return switch (material) {
             case DIRT, COARSE_DIRT, ROOTED_DIRT, STONE, SNOW_BLOCK, POWDER_SNOW, SNOW, NETHERRACK, SOUL_SAND, END_STONE,
                  DIRT_PATH, GRASS_BLOCK, GRAVEL, DEEPSLATE, DIORITE, CLAY, SAND, SANDSTONE, TERRACOTTA,
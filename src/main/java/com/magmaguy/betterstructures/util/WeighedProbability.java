@@ -95,6 +95,68 @@ public class WeighedProbability {
         }
     }
 
+    /**
+     * Vose alias table, picks an index in O(1) without allocating once built. Meant for weights that are used for many
+     * draws, such as the ones of the schematic picker.
+     */
+    public static class AliasTable {
+        private final double[] probabilities;
+        private final int[] aliases;
+        private final boolean empty;
+
+        public AliasTable(double[] weights) {
+            int size = weights.length;
+            probabilities = new double[size];
+            aliases = new int[size];
+            double totalWeight = 0.0;
+            int anyPositive = -1;
+            for (int i = 0; i < size; i++) {
+                if (weights[i] <= 0.0) continue;
+                totalWeight += weights[i];
+                anyPositive = i;
+            }
+            empty = anyPositive < 0;
+            if (empty) return;
+
+            double[] scaled = new double[size];
+            int[] small = new int[size];
+            int[] large = new int[size];
+            int smallCount = 0;
+            int largeCount = 0;
+            for (int i = 0; i < size; i++) {
+                scaled[i] = Math.max(0.0, weights[i]) * size / totalWeight;
+                if (scaled[i] < 1.0) small[smallCount++] = i;
+                else large[largeCount++] = i;
+            }
+            while (smallCount > 0 && largeCount > 0) {
+                int less = small[--smallCount];
+                int more = large[--largeCount];
+                probabilities[less] = scaled[less];
+                aliases[less] = more;
+                scaled[more] = scaled[more] + scaled[less] - 1.0;
+                if (scaled[more] < 1.0) small[smallCount++] = more;
+                else large[largeCount++] = more;
+            }
+            //Whatever is left is only off from 1 by rounding errors, as long as it has any weight at all
+            while (largeCount > 0) probabilities[large[--largeCount]] = 1.0;
+            while (smallCount > 0) {
+                int left = small[--smallCount];
+                probabilities[left] = weights[left] > 0.0 ? 1.0 : 0.0;
+                aliases[left] = anyPositive;
+            }
+        }
+
+        /**
+         * @return A random index drawn by weight, or -1 if no weight is positive
+         */
+        public int pick() {
+            if (empty) return -1;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int column = random.nextInt(probabilities.length);
+            return random.nextDouble() < probabilities[column] ? column : aliases[column];
+        }
+    }
+
     /**
      * Ultra-fast version for when you need maximum performance and can precompute arrays.
      * This version avoids object creation entirely during picking.
@@ -0,0 +1,107 @@
+package com.magmaguy.betterstructures.util.distributedload;
+
+import java.util.Queue;
+
+/**
+ * Time that distributed work gets every tick, shared by everything that pastes so that all of it together stays well
+ * below a tick. Each caller asks for its configured share of the tick, scaled by how the server keeps up, and gets
+ * whatever is left of the shared allowance if that is less.
+ * <p>
+ * The scale only grows while the server reports ticks that leave plenty of idle time, and backs off as the busy time
+ * nears 50ms. Where the busy time isn't reported, {@link TickMonitor} only sees ticks that run long, so the scale never
+ * goes past the configured share and halves when a tick overruns.
+ */
+public class TickBudget {
+    private static final double NOMINAL_TICK_MILLIS = 50;
+    //A tick this much longer than nominal counts as the server falling behind
+    private static final double OVERRUN_MILLIS = 5;
+    //Busy time under which the server has room to spare
+    private static final double GROW_BELOW_MILLIS = 35;
+    //Busy time over which the server gets close to falling behind
+    private static final double SHRINK_ABOVE_MILLIS = 45;
+    private static final double GROWTH = 1.05;
+    private static final double BACKOFF = 0.9;
+    private static final double MIN_SCALE = 0.25;
+    private static final double MAX_SCALE = 4;
+    private static final long MIN_BUDGET_NANOS = 500_000L;
+    //Everything that pastes together, well below a 50ms tick
+    private static final long MAX_TOTAL_NANOS = 20_000_000L;
+    private static final int MAX_BATCH = 256;
+    private static double scale = 1;
+    private static long currentTick = -1;
+    private static long spentNanos = 0;
+
+    private TickBudget() {
+    }
+
+    /**
+     * Gets the time a caller can spend this tick. Work run through {@link #run(Queue, long)} counts against the shared
+     * allowance. Main thread only.
+     *
+     * @param percentageOfTick Share of a tick the caller is configured for, with a floor of 2ms
+     * @return Nanoseconds the caller can spend now, 0 if the shared allowance of this tick is used up
+     */
+    public static long allowanceNanos(double percentageOfTick) {
+        rollTick();
+        long shareNanos = Math.max((long) ((1.0 / 20.0) * percentageOfTick * 1000), 2L) * 1_000_000L;
+        long scaledNanos = Math.max(MIN_BUDGET_NANOS, (long) (shareNanos * scale));
+        return Math.max(0, Math.min(scaledNanos, MAX_TOTAL_NANOS - spentNanos));
+    }
+
+    /**
+     * Starts a new allowance when {@link TickMonitor} counted a new tick, and adjusts the scale to the last ticks once
+     * per tick.
+     */
+    private static void rollTick() {
+        if (currentTick == TickMonitor.getTickCount()) return;
+        currentTick = TickMonitor.getTickCount();
+        spentNanos = 0;
+
+        double busyMillis = TickMonitor.getAverageBusyMillis();
+        if (TickMonitor.getLastTickMillis() > NOMINAL_TICK_MILLIS + OVERRUN_MILLIS)
+            scale = Math.max(MIN_SCALE, scale / 2);
+        else if (busyMillis < 0)
+            scale = Math.min(1, scale * GROWTH);
+        else if (busyMillis > SHRINK_ABOVE_MILLIS)
+            scale = Math.max(MIN_SCALE, scale * BACKOFF);
+        else if (busyMillis < GROW_BELOW_MILLIS)
+            scale = Math.min(MAX_SCALE, scale * GROWTH);
+    }
+
+    /**
+     * Runs workloads until the queue is empty or the deadline passes, always at least one. The clock is only read
+     * between batches, which are sized from how long the previous batch took so that a batch fits in about half of the
+     * time left. The time spent counts against the shared allowance of the tick.
+     *
+     * @param workloads     Workloads, polled in order
+     * @param deadlineNanos {@link System#nanoTime()} to stop at
+     */
+    public static void run(Queue<Workload> workloads, long deadlineNanos) {
+        int batch = 1;
+        long start = System.nanoTime();
+        long now = start;
+        try {
+            do {
+                long batchStart = now;
+                int ran = 0;
+                Workload workload;
+                while (ran < batch && (workload = workloads.poll()) != null) {
+                    workload.compute();
+                    ran++;
+                }
+                if (ran < batch) return;
+                now = System.nanoTime();
+                long nanosPerWorkload = Math.max(1, (now - batchStart) / ran);
+                batch = (int) Math.max(1, Math.min(MAX_BATCH, (deadlineNanos - now) / 2 / nanosPerWorkload));
+            } while (now < deadlineNanos);
+        } finally {
+            spentNanos += System.nanoTime() - start;
+        }
+    }
+
+    public static void shutdown() {
+        scale = 1;
+        currentTick = -1;
+        spentNanos = 0;
+    }
+}
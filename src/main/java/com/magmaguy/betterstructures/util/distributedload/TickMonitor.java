@@ -0,0 +1,82 @@
+package com.magmaguy.betterstructures.util.distributedload;
+
+import com.magmaguy.betterstructures.MetadataHandler;
+import lombok.Getter;
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.lang.reflect.Method;
+
+/**
+ * Measures how long server ticks take by timing the interval between two runs of a repeating task.
+ * A healthy server sleeps until the next tick is due, so the measurement sits at 50ms until the server falls behind.
+ * <p>
+ * On Paper, the time ticks actually spend working is read from the server as well, which shows how much room a healthy
+ * server has left.
+ */
+public class TickMonitor {
+    private static final double NOMINAL_TICK_MILLIS = 50;
+    //Weight of the newest tick in the smoothed average
+    private static final double SMOOTHING = 0.1;
+    //Paper only, Server#getAverageTickTime()
+    private static final Method GET_AVERAGE_TICK_TIME = findGetAverageTickTime();
+    private static BukkitTask task = null;
+    private static long lastTickNanos = 0;
+    @Getter
+    private static double lastTickMillis = NOMINAL_TICK_MILLIS;
+    @Getter
+    private static double averageTickMillis = NOMINAL_TICK_MILLIS;
+    //Negative when the server doesn't report it
+    @Getter
+    private static double averageBusyMillis = -1;
+    //Counts the ticks the monitor saw, lets callers tell when a new tick started
+    @Getter
+    private static long tickCount = 0;
+
+    private TickMonitor() {
+    }
+
+    private static Method findGetAverageTickTime() {
+        try {
+            return Server.class.getMethod("getAverageTickTime");
+        } catch (NoSuchMethodException exception) {
+            return null;
+        }
+    }
+
+    public static void start() {
+        if (task != null) return;
+        lastTickNanos = System.nanoTime();
+        task = new BukkitRunnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                lastTickMillis = (now - lastTickNanos) / 1_000_000D;
+                lastTickNanos = now;
+                averageTickMillis += (lastTickMillis - averageTickMillis) * SMOOTHING;
+                averageBusyMillis = readAverageBusyMillis();
+                tickCount++;
+            }
+        }.runTaskTimer(MetadataHandler.PLUGIN, 0, 1);
+    }
+
+    private static double readAverageBusyMillis() {
+        if (GET_AVERAGE_TICK_TIME == null) return -1;
+        try {
+            return ((Number) GET_AVERAGE_TICK_TIME.invoke(Bukkit.getServer())).doubleValue();
+        } catch (ReflectiveOperationException | ClassCastException exception) {
+            return -1;
+        }
+    }
+
+    public static void shutdown() {
+        if (task != null) task.cancel();
+        task = null;
+        lastTickMillis = NOMINAL_TICK_MILLIS;
+        averageTickMillis = NOMINAL_TICK_MILLIS;
+        averageBusyMillis = -1;
+        tickCount = 0;
+    }
+}
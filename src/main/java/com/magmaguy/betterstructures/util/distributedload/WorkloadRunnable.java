@@ -7,11 +7,11 @@ import java.util.Deque;
 
 public class WorkloadRunnable extends BukkitRunnable {
     private final Deque<Workload> workloadDeque = new ArrayDeque<>();
-    private final long maxMillisPerTick;
+    private final double percentageOfTick;
     private final Runnable onComplete;
 
     public WorkloadRunnable(double percentageOfTick, Runnable onComplete) {
-        this.maxMillisPerTick = Math.max((long) ((1.0 / 20.0) * percentageOfTick * 1000), 2L);
+        this.percentageOfTick = percentageOfTick;
         this.onComplete = onComplete;
     }
 
@@ -21,12 +21,9 @@ public class WorkloadRunnable extends BukkitRunnable {
 
     @Override
     public void run() {
-        long stopTime = System.currentTimeMillis() + maxMillisPerTick;
-        while (!workloadDeque.isEmpty() && System.currentTimeMillis() < stopTime) {
-            Workload workload = workloadDeque.poll();
-            if (workload != null) {
-                workload.compute();
-            }
+        if (!workloadDeque.isEmpty()) {
+            long allowanceNanos = TickBudget.allowanceNanos(percentageOfTick);
+            if (allowanceNanos > 0) TickBudget.run(workloadDeque, System.nanoTime() + allowanceNanos);
         }
 
         if (workloadDeque.isEmpty()) {
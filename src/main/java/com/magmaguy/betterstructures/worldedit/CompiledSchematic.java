@@ -0,0 +1,179 @@
+package com.magmaguy.betterstructures.worldedit;
+
+import com.sk89q.worldedit.bukkit.BukkitAdapter;
+import com.sk89q.worldedit.extent.clipboard.Clipboard;
+import com.sk89q.worldedit.math.BlockVector3;
+import com.sk89q.worldedit.world.block.BaseBlock;
+import com.sk89q.worldedit.world.block.BlockState;
+import lombok.Getter;
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.block.TileState;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.block.data.Directional;
+import org.bukkit.block.data.Rail;
+import org.bukkit.block.data.Waterlogged;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A schematic compiled once into a palette of distinct block states and one palette index per block, so pasting it
+ * only looks {@link BlockData} up by index instead of parsing block state strings.
+ * <p>
+ * Blocks are stored in paste order, x then y then z. Blocks that need a full WorldEdit paste, like containers and
+ * signs, keep their {@link BaseBlock} since their NBT can differ from one block to the next.
+ */
+public class CompiledSchematic {
+    public static final byte BLOCK = 0;
+    public static final byte BARRIER = 1;
+    public static final byte BEDROCK = 2;
+    public static final byte WORLDEDIT = 3;
+    @Getter
+    private final int width;
+    @Getter
+    private final int height;
+    @Getter
+    private final int length;
+    private final BlockData[] blockData;
+    private final byte[] kinds;
+    private final boolean[] solid;
+    private final boolean[] nativeWritable;
+    //Palette index of every block, read as unsigned
+    private final short[] blocks;
+    private final Map<Integer, BaseBlock> worldEditBlocks = new HashMap<>();
+
+    private CompiledSchematic(int width, int height, int length, List<BlockState> palette, short[] blocks) {
+        this.width = width;
+        this.height = height;
+        this.length = length;
+        this.blocks = blocks;
+        blockData = new BlockData[palette.size()];
+        kinds = new byte[palette.size()];
+        solid = new boolean[palette.size()];
+        nativeWritable = new boolean[palette.size()];
+        for (int i = 0; i < palette.size(); i++) {
+            BlockState blockState = palette.get(i);
+            Material material = BukkitAdapter.adapt(blockState.getBlockType());
+            solid[i] = material != null && material.isSolid();
+            if (material == Material.BARRIER) kinds[i] = BARRIER;
+            else if (material != null && requiresWorldEditPaste(material.name())) kinds[i] = WORLDEDIT;
+            else {
+                kinds[i] = material == Material.BEDROCK ? BEDROCK : BLOCK;
+                blockData[i] = Bukkit.createBlockData(blockState.getAsString());
+                nativeWritable[i] = isNativeWritable(material, blockData[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads every block of the clipboard once.
+     *
+     * @param clipboard Schematic, already rotated if it gets pasted rotated
+     * @return The compiled schematic
+     */
+    public static CompiledSchematic compile(Clipboard clipboard) {
+        int width = clipboard.getDimensions().x();
+        int height = clipboard.getDimensions().y();
+        int length = clipboard.getDimensions().z();
+        BlockVector3 min = clipboard.getMinimumPoint();
+        List<BlockState> palette = new ArrayList<>();
+        Map<BlockState, Integer> paletteIndexes = new HashMap<>();
+        short[] blocks = new short[width * height * length];
+        int index = 0;
+        for (int x = 0; x < width; x++)
+            for (int y = 0; y < height; y++)
+                for (int z = 0; z < length; z++) {
+                    BlockState blockState = clipboard.getBlock(BlockVector3.at(min.x() + x, min.y() + y, min.z() + z));
+                    Integer paletteIndex = paletteIndexes.get(blockState);
+                    if (paletteIndex == null) {
+                        paletteIndex = palette.size();
+                        palette.add(blockState);
+                        paletteIndexes.put(blockState, paletteIndex);
+                    }
+                    blocks[index++] = (short) (int) paletteIndex;
+                }
+        CompiledSchematic compiledSchematic = new CompiledSchematic(width, height, length, palette, blocks);
+        for (int i = 0; i < blocks.length; i++) {
+            if (compiledSchematic.kinds[blocks[i] & 0xFFFF] != WORLDEDIT) continue;
+            int x = i / (height * length);
+            int y = (i / length) % height;
+            int z = i % length;
+            compiledSchematic.worldEditBlocks.put(i, clipboard.getFullBlock(BlockVector3.at(min.x() + x, min.y() + y, min.z() + z)));
+        }
+        return compiledSchematic;
+    }
+
+    /**
+     * Determines if a block type requires WorldEdit paste
+     */
+    static boolean requiresWorldEditPaste(String name) {
+        name = name.toUpperCase(Locale.ROOT);
+        return name.endsWith("SIGN") || name.endsWith("STAIRS") || name.endsWith("BOX")
+                || name.contains("CHEST") || name.contains("SPAWNER") || name.contains("COMMAND_BLOCK")
+                || name.contains("CAMPFIRE") || name.contains("SCULK") || name.contains("RAIL")
+                || name.equals("BEACON") || name.equals("CAULDRON") || name.equals("ANVIL")
+                || name.equals("DISPENSER") || name.equals("DROPPER") || name.equals("FURNACE")
+                || name.equals("ENCHANTING_TABLE") || name.equals("BARREL") || name.equals("HOPPER")
+                || name.equals("JUKEBOX") || name.equals("LOOM") || name.equals("LEVER")
+                || name.equals("STONECUTTER") || name.equals("CRAFTER") || name.equals("LODESTONE")
+                || name.startsWith("POTTED");
+    }
+
+    /**
+     * Blocks that give off light, let light through, rely on their neighbours or have a block entity need a regular
+     * block placement. Section writes skip light updates, so only full opaque blocks qualify, and {@link SectionWriter}
+     * also checks that the block they replace is one.
+     */
+    private static boolean isNativeWritable(Material material, BlockData blockData) {
+        if (!material.isOccluding()) return false;
+        if (blockData.getLightEmission() > 0 || material.hasGravity()) return false;
+        if (blockData instanceof Directional || blockData instanceof Rail) return false;
+        if (material == Material.WATER || material == Material.LAVA) return false;
+        if (blockData instanceof Waterlogged waterlogged && waterlogged.isWaterlogged()) return false;
+        return !(blockData.createBlockState() instanceof TileState);
+    }
+
+    /**
+     * @return Index of the block in paste order
+     */
+    public int indexOf(int x, int y, int z) {
+        return (x * height + y) * length + z;
+    }
+
+    public byte getKind(int index) {
+        return kinds[blocks[index] & 0xFFFF];
+    }
+
+    /**
+     * @return The block data, null for barriers and blocks that need a WorldEdit paste
+     */
+    public BlockData getBlockData(int index) {
+        return blockData[blocks[index] & 0xFFFF];
+    }
+
+    /**
+     * @return True if the block can be written straight to the chunk section, see {@link SectionWriter}
+     */
+    public boolean isNativeWritable(int index) {
+        return nativeWritable[blocks[index] & 0xFFFF];
+    }
+
+    /**
+     * @return True if the block is solid, false outside of the schematic
+     */
+    public boolean isSolid(int x, int y, int z) {
+        if (x < 0 || y < 0 || z < 0 || x >= width || y >= height || z >= length) return false;
+        return solid[blocks[indexOf(x, y, z)] & 0xFFFF];
+    }
+
+    /**
+     * @return The full block, NBT included, of blocks that need a WorldEdit paste
+     */
+    public BaseBlock getWorldEditBlock(int index) {
+        return worldEditBlocks.get(index);
+    }
+}
@@ -0,0 +1,201 @@
+package com.magmaguy.betterstructures.worldedit;
+
+import com.magmaguy.betterstructures.MetadataHandler;
+import com.magmaguy.betterstructures.config.DefaultConfig;
+import com.magmaguy.betterstructures.util.distributedload.TickBudget;
+import com.magmaguy.betterstructures.util.distributedload.Workload;
+import com.magmaguy.magmacore.util.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Pastes structures a few blocks at a time within a share of every tick. Every world has its own queue and an equal
+ * share of the tick, and each world pastes the structure closest to its online players first, so that a structure far
+ * away doesn't hold up the one in front of someone.
+ * <p>
+ * Pastes can be submitted from any thread, they are handed to the world queues on the main thread.
+ */
+public final class PasteScheduler {
+    //Blocks of distance a waiting paste makes up for every second it waits, so far away pastes still get their turn
+    private static final double AGE_BLOCKS_PER_SECOND = 16;
+    private static final Queue<PasteJob> SUBMITTED = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger PENDING = new AtomicInteger();
+    //Main thread only
+    private static final Map<UUID, WorldQueue> WORLD_QUEUES = new LinkedHashMap<>();
+    private static BukkitTask task = null;
+    private static int firstWorld = 0;
+
+    private PasteScheduler() {
+    }
+
+    public static void start() {
+        if (task != null) return;
+        task = new BukkitRunnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }.runTaskTimer(MetadataHandler.PLUGIN, 0, 1);
+    }
+
+    public static void shutdown() {
+        if (task != null) task.cancel();
+        task = null;
+        PasteJob submitted;
+        while ((submitted = SUBMITTED.poll()) != null) abort(submitted, false);
+        for (WorldQueue worldQueue : WORLD_QUEUES.values()) worldQueue.abort();
+        WORLD_QUEUES.clear();
+        PENDING.set(0);
+        firstWorld = 0;
+    }
+
+    /**
+     * Queues a paste. Safe to call from any thread.
+     *
+     * @param location   Location of the structure, used for the world and the distance to players
+     * @param workloads  Work of the paste, run in order on the main thread
+     * @param onComplete Runs on the main thread once every workload ran, can be null
+     * @param onAbort    Runs on the main thread instead if the paste gets dropped, because its world unloaded or the
+     *                   plugin shut down. Gets whether some of the workloads already ran. Can be null
+     */
+    public static void submit(Location location, Deque<Workload> workloads, Runnable onComplete, Consumer<Boolean> onAbort) {
+        PENDING.incrementAndGet();
+        SUBMITTED.add(new PasteJob(location.getWorld().getUID(), location, workloads, onComplete, onAbort, System.nanoTime()));
+    }
+
+    private static void abort(PasteJob pasteJob, boolean started) {
+        if (pasteJob.onAbort() == null) return;
+        try {
+            pasteJob.onAbort().accept(started);
+        } catch (Exception exception) {
+            Logger.warn("Failed to clean up after a dropped structure paste!");
+            exception.printStackTrace();
+        }
+    }
+
+    /**
+     * @return Amount of pastes that have not started yet, in every world
+     */
+    public static int getPendingCount() {
+        return PENDING.get();
+    }
+
+    private static void tick() {
+        PasteJob submitted;
+        while ((submitted = SUBMITTED.poll()) != null)
+            WORLD_QUEUES.computeIfAbsent(submitted.worldUUID(), uuid -> new WorldQueue()).pending.add(submitted);
+
+        List<WorldQueue> busyQueues = new ArrayList<>(WORLD_QUEUES.size());
+        for (Iterator<Map.Entry<UUID, WorldQueue>> iterator = WORLD_QUEUES.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<UUID, WorldQueue> entry = iterator.next();
+            WorldQueue worldQueue = entry.getValue();
+            World world = Bukkit.getWorld(entry.getKey());
+            if (world == null) {
+                Logger.warn("Dropped " + (worldQueue.pending.size() + (worldQueue.active == null ? 0 : 1)) + " structure pastes because their world was unloaded!");
+                worldQueue.abort();
+                iterator.remove();
+            } else if (worldQueue.active == null && worldQueue.pending.isEmpty()) {
+                iterator.remove();
+            } else {
+                worldQueue.world = world;
+                busyQueues.add(worldQueue);
+            }
+        }
+        if (busyQueues.isEmpty()) return;
+
+        long allowanceNanos = TickBudget.allowanceNanos(DefaultConfig.getPercentageOfTickUsedForPasting());
+        if (allowanceNanos <= 0) return;
+        long tickEnd = System.nanoTime() + allowanceNanos;
+        //Rotates which world goes first so that running over the budget doesn't always come out of the same world
+        firstWorld = (firstWorld + 1) % busyQueues.size();
+        for (int i = 0; i < busyQueues.size(); i++) {
+            long now = System.nanoTime();
+            //Time a world doesn't use goes to the worlds after it
+            long share = Math.max(tickEnd - now, 0) / (busyQueues.size() - i);
+            busyQueues.get((firstWorld + i) % busyQueues.size()).run(now + share);
+        }
+    }
+
+    private static class WorldQueue {
+        private final List<PasteJob> pending = new ArrayList<>();
+        private PasteJob active = null;
+        private World world;
+
+        /**
+         * Drops every paste of the world, running their abort callbacks.
+         */
+        private void abort() {
+            PENDING.addAndGet(-pending.size());
+            for (PasteJob pasteJob : pending) PasteScheduler.abort(pasteJob, false);
+            pending.clear();
+            if (active != null) PasteScheduler.abort(active, true);
+            active = null;
+        }
+
+        /**
+         * Runs workloads until the deadline, always at least one so that no world stalls.
+         */
+        private void run(long deadline) {
+            do {
+                if (active == null) {
+                    active = pollClosest();
+                    if (active == null) return;
+                    PENDING.decrementAndGet();
+                }
+                TickBudget.run(active.workloads(), deadline);
+                if (active.workloads().isEmpty()) {
+                    PasteJob finished = active;
+                    active = null;
+                    if (finished.onComplete() != null) finished.onComplete().run();
+                }
+            } while (System.nanoTime() < deadline);
+        }
+
+        /**
+         * Picks the paste closest to a player in the world, minus what it made up for by waiting. Ties and worlds
+         * without players go by submission order.
+         */
+        private PasteJob pollClosest() {
+            if (pending.isEmpty()) return null;
+            List<Player> players = world.getPlayers();
+            if (players.isEmpty()) return pending.remove(0);
+            List<Location> playerLocations = new ArrayList<>(players.size());
+            for (Player player : players) playerLocations.add(player.getLocation());
+            long now = System.nanoTime();
+            int closest = 0;
+            double closestScore = Double.MAX_VALUE;
+            for (int i = 0; i < pending.size(); i++) {
+                PasteJob pasteJob = pending.get(i);
+                double distanceSquared = Double.MAX_VALUE;
+                for (Location playerLocation : playerLocations)
+                    distanceSquared = Math.min(distanceSquared, playerLocation.distanceSquared(pasteJob.location()));
+                double score = Math.sqrt(distanceSquared) - (now - pasteJob.submittedNanos()) / 1_000_000_000D * AGE_BLOCKS_PER_SECOND;
+                if (score < closestScore) {
+                    closestScore = score;
+                    closest = i;
+                }
+            }
+            return pending.remove(closest);
+        }
+    }
+
+    private record PasteJob(UUID worldUUID, Location location, Deque<Workload> workloads, Runnable onComplete,
+                            Consumer<Boolean> onAbort, long submittedNanos) {
+    }
+}
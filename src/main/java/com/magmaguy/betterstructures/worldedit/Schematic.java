@@ -1,9 +1,7 @@
 package com.magmaguy.betterstructures.worldedit;
 
-import com.magmaguy.betterstructures.MetadataHandler;
 import com.magmaguy.betterstructures.config.DefaultConfig;
-import com.magmaguy.betterstructures.util.WorldEditUtils;
-import com.magmaguy.betterstructures.util.distributedload.WorkloadRunnable;
+import com.magmaguy.betterstructures.util.distributedload.Workload;
 import com.magmaguy.magmacore.util.Logger;
 import com.sk89q.worldedit.*;
 import com.sk89q.worldedit.bukkit.BukkitAdapter;
@@ -12,6 +10,8 @@ import com.sk89q.worldedit.extent.clipboard.io.*;
 import com.sk89q.worldedit.function.operation.*;
 import com.sk89q.worldedit.math.BlockVector3;
 import com.sk89q.worldedit.session.ClipboardHolder;
+import com.sk89q.worldedit.util.SideEffect;
+import com.sk89q.worldedit.util.SideEffectSet;
 import com.sk89q.worldedit.world.World;
 import com.sk89q.worldedit.world.block.BaseBlock;
 import org.bukkit.*;
@@ -21,12 +21,10 @@ import org.bukkit.util.Vector;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 public final class Schematic {
-    private static final Queue<PasteBlockOperation> PASTE_QUEUE = new ConcurrentLinkedQueue<>();
-    private static boolean isDistributedPasting = false;
     private static boolean erroredOnce = false;
 
     private Schematic() {}
@@ -71,73 +69,53 @@ public final class Schematic {
         }
     }
 
-    /** Creates PasteBlock objects from a schematic */
+    /** Creates PasteBlock objects from a compiled schematic */
     private static List<PasteBlock> createPasteBlocks(
-            Clipboard schematicClipboard,
+            CompiledSchematic schematic,
             Location location,
             Vector offset,
             Function<Boolean, Material> pedestalMaterialProvider) {
 
         List<PasteBlock> pasteBlocks = new ArrayList<>();
+        org.bukkit.World world = location.getWorld();
         Location base = location.clone().add(offset);
-        int width = schematicClipboard.getDimensions().x();
-        int height = schematicClipboard.getDimensions().y();
-        int length = schematicClipboard.getDimensions().z();
-        BlockVector3 min = schematicClipboard.getMinimumPoint();
-
-        for (int x = 0; x < width; x++)
-            for (int y = 0; y < height; y++)
-                for (int z = 0; z < length; z++) {
-                    BlockVector3 vec = BlockVector3.at(min.x() + x, min.y() + y, min.z() + z);
-                    BaseBlock baseBlock = schematicClipboard.getFullBlock(vec);
-                    Material material = BukkitAdapter.adapt(baseBlock.getBlockType());
-                    Block worldBlock = base.clone().add(x, y, z).getBlock();
+        int baseX = base.getBlockX();
+        int baseY = base.getBlockY();
+        int baseZ = base.getBlockZ();
+
+        for (int x = 0; x < schematic.getWidth(); x++)
+            for (int y = 0; y < schematic.getHeight(); y++)
+                for (int z = 0; z < schematic.getLength(); z++) {
+                    int index = schematic.indexOf(x, y, z);
+                    byte kind = schematic.getKind(index);
 
                     // Skip barriers
-                    if (material == Material.BARRIER) continue;
+                    if (kind == CompiledSchematic.BARRIER) continue;
 
-                    String matName = material.name();
-                    boolean isGround = !BukkitAdapter.adapt(
-                            schematicClipboard.getBlock(vec.add(0, 1, 0)).getBlockType()
-                    ).isSolid();
+                    Block worldBlock = world.getBlockAt(baseX + x, baseY + y, baseZ + z);
 
                     // If complex block type → use WorldEdit paste
-                    if (requiresWorldEditPaste(matName)) {
-                        pasteBlocks.add(new PasteBlock(worldBlock, null,
-                                WorldEditUtils.createSingleBlockClipboard(base, baseBlock, baseBlock.toImmutableState())));
+                    if (kind == CompiledSchematic.WORLDEDIT) {
+                        pasteBlocks.add(new PasteBlock(worldBlock, null, schematic.getWorldEditBlock(index), false));
                         continue;
                     }
 
                     // Handle bedrock pedestal replacement
-                    if (material == Material.BEDROCK && !worldBlock.getType().isSolid()) {
+                    if (kind == CompiledSchematic.BEDROCK && !worldBlock.getType().isSolid()) {
+                        boolean isGround = !schematic.isSolid(x, y + 1, z);
                         Material pedestalMat = pedestalMaterialProvider.apply(isGround);
                         worldBlock.setType(pedestalMat);
-                        pasteBlocks.add(new PasteBlock(worldBlock, pedestalMat.createBlockData(), null));
+                        pasteBlocks.add(new PasteBlock(worldBlock, pedestalMat.createBlockData(), null, false));
                         continue;
                     }
 
                     // Regular block placement
-                    BlockData data = Bukkit.createBlockData(baseBlock.toImmutableState().getAsString());
-                    pasteBlocks.add(new PasteBlock(worldBlock, data, null));
+                    pasteBlocks.add(new PasteBlock(worldBlock, schematic.getBlockData(index), null, schematic.isNativeWritable(index)));
                 }
 
         return pasteBlocks;
     }
 
-    /** Determines if a block type requires WorldEdit paste */
-    private static boolean requiresWorldEditPaste(String name) {
-        name = name.toUpperCase(Locale.ROOT);
-        return name.endsWith("SIGN") || name.endsWith("STAIRS") || name.endsWith("BOX")
-                || name.contains("CHEST") || name.contains("SPAWNER") || name.contains("COMMAND_BLOCK")
-                || name.contains("CAMPFIRE") || name.contains("SCULK") || name.contains("RAIL")
-                || name.equals("BEACON") || name.equals("CAULDRON") || name.equals("ANVIL")
-                || name.equals("DISPENSER") || name.equals("DROPPER") || name.equals("FURNACE")
-                || name.equals("ENCHANTING_TABLE") || name.equals("BARREL") || name.equals("HOPPER")
-                || name.equals("JUKEBOX") || name.equals("LOOM") || name.equals("LEVER")
-                || name.equals("STONECUTTER") || name.equals("CRAFTER") || name.equals("LODESTONE")
-                || name.startsWith("POTTED");
-    }
-
     /** Paste schematic in distributed workload */
     public static void pasteSchematic(
             Clipboard clipboard,
@@ -146,54 +124,121 @@ public final class Schematic {
             Function<Boolean, Material> pedestalMaterialProvider,
             Runnable onComplete) {
 
-        List<PasteBlock> blocks = createPasteBlocks(clipboard, location, offset, pedestalMaterialProvider);
-        pasteDistributed(blocks, location, onComplete);
+        pasteSchematic(CompiledSchematic.compile(clipboard), location, offset, pedestalMaterialProvider, onComplete);
+    }
+
+    /** Paste a compiled schematic in distributed workload */
+    public static void pasteSchematic(
+            CompiledSchematic schematic,
+            Location location,
+            Vector offset,
+            Function<Boolean, Material> pedestalMaterialProvider,
+            Runnable onComplete) {
+
+        pasteSchematic(schematic, location, offset, pedestalMaterialProvider, onComplete, null);
+    }
+
+    /** Paste a compiled schematic in distributed workload, onAbort runs if the paste gets dropped before it is done */
+    public static void pasteSchematic(
+            CompiledSchematic schematic,
+            Location location,
+            Vector offset,
+            Function<Boolean, Material> pedestalMaterialProvider,
+            Runnable onComplete,
+            Consumer<Boolean> onAbort) {
+
+        List<PasteBlock> blocks = createPasteBlocks(schematic, location, offset, pedestalMaterialProvider);
+        pasteDistributed(blocks, location, onComplete, onAbort);
     }
 
-    /** Adds operation to queue and processes asynchronously */
+    /** Queues the blocks on the paste scheduler, safe to call from any thread */
     public static void pasteDistributed(List<PasteBlock> blocks, Location location, Runnable onComplete) {
-        PASTE_QUEUE.add(new PasteBlockOperation(blocks, location, onComplete));
-        if (!isDistributedPasting) processNextPaste();
+        pasteDistributed(blocks, location, onComplete, null);
     }
 
-    private static void processNextPaste() {
-        PasteBlockOperation op = PASTE_QUEUE.poll();
-        if (op == null) {
-            isDistributedPasting = false;
-            return;
+    /**
+     * Queues the blocks on the paste scheduler, safe to call from any thread. onAbort gets whether some blocks were
+     * already pasted when the paste got dropped, see {@link PasteScheduler#submit}
+     */
+    public static void pasteDistributed(List<PasteBlock> blocks, Location location, Runnable onComplete, Consumer<Boolean> onAbort) {
+        Deque<Workload> workloads = new ArrayDeque<>();
+        List<PasteBlock> regularBlocks = blocks;
+        if (DefaultConfig.isNativeStructurePasting() && SectionWriter.isAvailable()) {
+            List<PasteBlock> nativeBlocks = new ArrayList<>();
+            regularBlocks = new ArrayList<>();
+            for (PasteBlock block : blocks)
+                (block.nativeWrite() ? nativeBlocks : regularBlocks).add(block);
+            Set<Long> touchedChunks = new HashSet<>();
+            for (List<PasteBlock> section : SectionWriter.groupBySection(nativeBlocks))
+                workloads.add(() -> SectionWriter.write(section, touchedChunks));
+            //Queued after the section writes and before the slow blocks, which notify clients on their own
+            if (!nativeBlocks.isEmpty())
+                workloads.add(() -> SectionWriter.refreshChunks(location.getWorld(), touchedChunks));
         }
 
-        isDistributedPasting = true;
-        WorkloadRunnable workload = new WorkloadRunnable(
-                DefaultConfig.getPercentageOfTickUsedForPasting(),
-                () -> {
-                    if (op.onComplete != null) op.onComplete.run();
-                    processNextPaste();
-                });
-
-        for (PasteBlock block : op.blocks) {
-            workload.addWorkload(() -> {
-                if (block.blockData() != null) {
-                    block.block().setBlockData(block.blockData());
-                } else if (block.clipboard() != null) {
-                    try (EditSession session = WorldEdit.getInstance()
-                            .newEditSession(BukkitAdapter.adapt(block.block().getWorld()))) {
-                        Operation worldeditPaste = new ClipboardHolder(block.clipboard())
-                                .createPaste(session)
-                                .to(BlockVector3.at(block.block().getX(), block.block().getY(), block.block().getZ()))
-                                .build();
-                        Operations.complete(worldeditPaste);
-                    } catch (WorldEditException e) {
-                        Logger.warn("Failed pasting block at " + block.block().getLocation());
-                    }
-                }
-            });
+        int worldEditBlockCount = 0;
+        for (PasteBlock block : regularBlocks)
+            if (block.worldEditBlock() != null) worldEditBlockCount++;
+        WorldEditBatch worldEditBatch = new WorldEditBatch(location.getWorld(), worldEditBlockCount);
+        for (PasteBlock block : regularBlocks) {
+            if (block.blockData() != null) workloads.add(() -> block.block().setBlockData(block.blockData()));
+            else if (block.worldEditBlock() != null) workloads.add(() -> worldEditBatch.place(block));
+        }
+
+        PasteScheduler.submit(location, workloads, onComplete, started -> {
+            worldEditBatch.close();
+            if (onAbort != null) onAbort.accept(started);
+        });
+    }
+
+    /** Amount of pastes waiting to start, in every world */
+    public static int getPasteQueueSize() {
+        return PasteScheduler.getPendingCount();
+    }
+
+    /**
+     * Places the blocks that need WorldEdit through one edit session for the whole structure, opened by the first of
+     * them and closed by the last. Blocks are written as they are set so that the work stays spread over ticks.
+     */
+    private static final class WorldEditBatch {
+        private final org.bukkit.World world;
+        private final int size;
+        private int placed = 0;
+        private EditSession session = null;
+
+        private WorldEditBatch(org.bukkit.World world, int size) {
+            this.world = world;
+            this.size = size;
+        }
+
+        private void place(PasteBlock block) {
+            if (session == null) {
+                session = WorldEdit.getInstance().newEditSession(BukkitAdapter.adapt(world));
+                session.setTrackingHistory(false);
+                //Light emitters like campfires still need their light
+                session.setSideEffectApplier(SideEffectSet.none().with(SideEffect.LIGHTING, SideEffect.State.ON));
+                session.setReorderMode(EditSession.ReorderMode.NONE);
+            }
+            try {
+                session.setBlock(BlockVector3.at(block.block().getX(), block.block().getY(), block.block().getZ()), block.worldEditBlock());
+            } catch (WorldEditException e) {
+                Logger.warn("Failed pasting block at " + block.block().getLocation());
+            }
+            if (++placed == size) close();
         }
 
-        workload.runTaskTimer(MetadataHandler.PLUGIN, 0, 1);
+        private void close() {
+            if (session == null) return;
+            try {
+                session.close();
+            } catch (Exception exception) {
+                Logger.warn("Failed to close the WorldEdit session of a structure paste!");
+                exception.printStackTrace();
+            }
+            session = null;
+        }
     }
 
     /** Record definitions */
-    private record PasteBlockOperation(List<PasteBlock> blocks, Location location, Runnable onComplete) {}
-    public record PasteBlock(Block block, BlockData blockData, Clipboard clipboard) {}
+    public record PasteBlock(Block block, BlockData blockData, BaseBlock worldEditBlock, boolean nativeWrite) {}
 }
@@ -0,0 +1,92 @@
+package com.magmaguy.betterstructures.worldedit;
+
+import com.magmaguy.easyminecraftgoals.NMSManager;
+import com.magmaguy.magmacore.util.Logger;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes the plain blocks of a structure straight into the chunk section palettes, a 16x16x16 section at a time,
+ * through the same NMS adapter call that modular world generation uses. Touched chunks are resent to the clients once
+ * the whole structure is written.
+ * <p>
+ * Section writes don't update lighting, so they are only used where the light can't change: a full opaque block
+ * replacing another one. Everything else goes through regular block placement.
+ */
+public final class SectionWriter {
+    //Turned off for the rest of the session if the adapter can't write to this server version
+    private static boolean unsupported = false;
+
+    private SectionWriter() {
+    }
+
+    public static boolean isAvailable() {
+        return !unsupported && NMSManager.getAdapter() != null;
+    }
+
+    /**
+     * Groups blocks by the chunk section they are in, keeping the order the sections are first met in.
+     */
+    public static List<List<Schematic.PasteBlock>> groupBySection(List<Schematic.PasteBlock> blocks) {
+        Map<Long, List<Schematic.PasteBlock>> sections = new LinkedHashMap<>();
+        for (Schematic.PasteBlock pasteBlock : blocks) {
+            Block block = pasteBlock.block();
+            sections.computeIfAbsent(sectionKey(block.getX() >> 4, block.getY() >> 4, block.getZ() >> 4), key -> new ArrayList<>()).add(pasteBlock);
+        }
+        return new ArrayList<>(sections.values());
+    }
+
+    /**
+     * Writes the blocks of one section, falling back to regular block placement if the adapter fails.
+     *
+     * @param section       Blocks of a single chunk section
+     * @param touchedChunks Gets the key of the chunk, see {@link #chunkKey(int, int)}
+     */
+    public static void write(List<Schematic.PasteBlock> section, Set<Long> touchedChunks) {
+        if (section.isEmpty()) return;
+        Block first = section.get(0).block();
+        touchedChunks.add(chunkKey(first.getX() >> 4, first.getZ() >> 4));
+        for (int i = 0; i < section.size(); i++) {
+            Schematic.PasteBlock pasteBlock = section.get(i);
+            Block block = pasteBlock.block();
+            //Replacing air or a see-through block would leave stale light behind
+            if (!unsupported && block.getType().isOccluding()) {
+                try {
+                    NMSManager.getAdapter().setBlockInNativeDataPalette(block.getWorld(), block.getX(), block.getY(), block.getZ(), pasteBlock.blockData(), false);
+                    continue;
+                } catch (Exception | LinkageError exception) {
+                    unsupported = true;
+                    Logger.warn("Could not write structure blocks straight to the chunk sections, falling back to regular block placement!");
+                    exception.printStackTrace();
+                }
+            }
+            block.setBlockData(pasteBlock.blockData());
+        }
+    }
+
+    /**
+     * Resends the chunks to the players that can see them, since section writes don't notify clients.
+     */
+    @SuppressWarnings("deprecation")
+    public static void refreshChunks(World world, Set<Long> touchedChunks) {
+        for (long chunkKey : touchedChunks) {
+            int chunkX = (int) (chunkKey >> 32);
+            int chunkZ = (int) chunkKey;
+            if (world.isChunkLoaded(chunkX, chunkZ)) world.refreshChunk(chunkX, chunkZ);
+        }
+    }
+
+    public static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    private static long sectionKey(int chunkX, int sectionY, int chunkZ) {
+        return ((chunkX & 0x3FFFFFL) << 42) | ((chunkZ & 0x3FFFFFL) << 20) | (sectionY & 0xFFFFFL);
+    }
+}